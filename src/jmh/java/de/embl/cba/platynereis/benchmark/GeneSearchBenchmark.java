@@ -0,0 +1,78 @@
+package de.embl.cba.platynereis.benchmark;
+
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full gene searches, from choosing the search level to collecting the expression of all genes,
+ * on synthetic in-memory gene sources.
+ *
+ * Sources without an atlas folder are used, such that neither the gene presence index,
+ * the block index nor the max-pooled pyramids take part; only the kernels and the
+ * parallel examination of the genes are measured.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx8g" )
+public class GeneSearchBenchmark
+{
+	public static final long[] DIMENSIONS = NeighborhoodBenchmark.DIMENSIONS;
+	public static final int NUM_POSITIONS = 16;
+
+	// genes share these masks in turn, see SyntheticAtlas.createGeneSources
+	public static final int NUM_DISTINCT_MASKS = 8;
+
+	@Param( { "16", "64", "256" } )
+	public int numGenes;
+
+	@Param( { "2.0", "8.0", "32.0" } )
+	public double radius;
+
+	@Param( { "1", "4" } )
+	public int numThreads;
+
+	private Map< String, PlatySource > geneSources;
+	private double[][] positions;
+	private int positionIndex;
+
+	@Setup( Level.Trial )
+	public void createGeneSources()
+	{
+		final RandomAccessibleInterval< UnsignedByteType >[][] masks = new RandomAccessibleInterval[ NUM_DISTINCT_MASKS ][];
+		for ( int i = 0; i < NUM_DISTINCT_MASKS; ++i )
+		{
+			masks[ i ] = SyntheticAtlas.createMipmaps(
+					SyntheticAtlas.createGeneMask( DIMENSIONS, 5 + 5 * i, i ), SyntheticAtlas.NUM_MIPMAP_LEVELS );
+		}
+
+		geneSources = SyntheticAtlas.createGeneSources( masks, numGenes );
+		positions = SyntheticAtlas.createPositions( DIMENSIONS, NUM_POSITIONS, 42 );
+	}
+
+	@Benchmark
+	public Map< String, Double > geneSearch()
+	{
+		positionIndex = ( positionIndex + 1 ) % positions.length;
+
+		final GeneSearch geneSearch = new GeneSearch(
+				radius,
+				positions[ positionIndex ],
+				geneSources,
+				0,
+				SyntheticAtlas.VOXEL_SIZE );
+
+		geneSearch.setNumThreads( numThreads );
+		geneSearch.setLogging( false );
+
+		return geneSearch.runSearchAndGetLocalExpression();
+	}
+}
@@ -0,0 +1,135 @@
+package de.embl.cba.platynereis.benchmark;
+
+import bdv.AbstractViewerSetupImgLoader;
+import bdv.ViewerImgLoader;
+import bdv.ViewerSetupImgLoader;
+import bdv.cache.CacheControl;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Dimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
+
+/**
+ * Serves the mipmap levels of one in-memory gene mask to {@link de.embl.cba.platynereis.GeneSearch},
+ * as the HDF5 loader of a ProSPr source would.
+ *
+ * Only the non-volatile images are available, i.e. the sources cannot be shown in a viewer.
+ */
+public class InMemoryImgLoader implements ViewerImgLoader
+{
+	private final SetupImgLoader setupImgLoader;
+
+	/**
+	 * @param levels
+	 * 			the mipmap levels, each downsampled by a factor of two with respect to the previous one
+	 * @param voxelSize
+	 * 			micrometer size of the voxels of level 0
+	 */
+	public InMemoryImgLoader( RandomAccessibleInterval< UnsignedByteType >[] levels, double voxelSize )
+	{
+		setupImgLoader = new SetupImgLoader( levels, voxelSize );
+	}
+
+	@Override
+	public ViewerSetupImgLoader< ?, ? > getSetupImgLoader( int setupId )
+	{
+		return setupImgLoader;
+	}
+
+	@Override
+	public CacheControl getCacheControl()
+	{
+		// nothing is cached, all levels are in memory
+		return null;
+	}
+
+	static class SetupImgLoader extends AbstractViewerSetupImgLoader< UnsignedByteType, VolatileUnsignedByteType >
+	{
+		private final RandomAccessibleInterval< UnsignedByteType >[] levels;
+		private final double voxelSize;
+		private final double[][] resolutions;
+		private final AffineTransform3D[] transforms;
+
+		SetupImgLoader( RandomAccessibleInterval< UnsignedByteType >[] levels, double voxelSize )
+		{
+			super( new UnsignedByteType(), new VolatileUnsignedByteType() );
+
+			this.levels = levels;
+			this.voxelSize = voxelSize;
+
+			resolutions = new double[ levels.length ][];
+			transforms = new AffineTransform3D[ levels.length ];
+			for ( int level = 0; level < levels.length; ++level )
+			{
+				final double factor = 1 << level;
+				resolutions[ level ] = new double[]{ factor, factor, factor };
+
+				// voxel centers as in the mipmaps written by BigDataViewer
+				transforms[ level ] = new AffineTransform3D();
+				transforms[ level ].set(
+						factor, 0, 0, 0.5 * ( factor - 1 ),
+						0, factor, 0, 0.5 * ( factor - 1 ),
+						0, 0, factor, 0.5 * ( factor - 1 ) );
+			}
+		}
+
+		@Override
+		public RandomAccessibleInterval< UnsignedByteType > getImage( int timepointId, int level, ImgLoaderHint... hints )
+		{
+			return levels[ level ];
+		}
+
+		@Override
+		public RandomAccessibleInterval< VolatileUnsignedByteType > getVolatileImage( int timepointId, int level, ImgLoaderHint... hints )
+		{
+			throw new UnsupportedOperationException( "In-memory gene masks cannot be shown in a viewer." );
+		}
+
+		@Override
+		public RandomAccessibleInterval< FloatType > getFloatImage( int timepointId, int level, boolean normalize, ImgLoaderHint... hints )
+		{
+			throw new UnsupportedOperationException( "In-memory gene masks are only available as unsigned bytes." );
+		}
+
+		@Override
+		public RandomAccessibleInterval< FloatType > getFloatImage( int timepointId, boolean normalize, ImgLoaderHint... hints )
+		{
+			return getFloatImage( timepointId, 0, normalize, hints );
+		}
+
+		@Override
+		public Dimensions getImageSize( int timepointId )
+		{
+			return levels[ 0 ];
+		}
+
+		@Override
+		public VoxelDimensions getVoxelSize( int timepointId )
+		{
+			return new FinalVoxelDimensions( "micrometer", voxelSize, voxelSize, voxelSize );
+		}
+
+		@Override
+		public double[][] getMipmapResolutions()
+		{
+			return resolutions;
+		}
+
+		@Override
+		public AffineTransform3D[] getMipmapTransforms()
+		{
+			return transforms;
+		}
+
+		@Override
+		public int numMipmapLevels()
+		{
+			return levels.length;
+		}
+	}
+}
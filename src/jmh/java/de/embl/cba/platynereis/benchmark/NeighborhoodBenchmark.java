@@ -0,0 +1,65 @@
+package de.embl.cba.platynereis.benchmark;
+
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sphere kernels of {@link Utils} on a synthetic gene mask and cell segmentation,
+ * at positions spread over the animal.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx4g" )
+public class NeighborhoodBenchmark
+{
+	public static final long[] DIMENSIONS = new long[]{ 256, 240, 208 };
+	public static final int NUM_POSITIONS = 64;
+
+	@Param( { "1.0", "2.0", "4.0", "8.0", "16.0" } )
+	public double radius;
+
+	private CellImg< UnsignedByteType, ? > geneMask;
+	private CellImg< UnsignedLongType, ? > labels;
+	private double[][] positions;
+	private int positionIndex;
+
+	@Setup( Level.Trial )
+	public void createVolumes()
+	{
+		geneMask = SyntheticAtlas.createGeneMask( DIMENSIONS, 20, 42 );
+		labels = SyntheticAtlas.createLabels( DIMENSIONS, 16, 42 );
+		positions = SyntheticAtlas.createPositions( DIMENSIONS, NUM_POSITIONS, 42 );
+	}
+
+	@Benchmark
+	public double fractionOfNonZeroVoxels()
+	{
+		return Utils.getFractionOfNonZeroVoxels( geneMask, nextPosition(), radius, SyntheticAtlas.VOXEL_SIZE );
+	}
+
+	@Benchmark
+	public double localSum()
+	{
+		return Utils.getLocalSum( geneMask, nextPosition(), radius, SyntheticAtlas.VOXEL_SIZE );
+	}
+
+	@Benchmark
+	public double localMaximumOfLabels()
+	{
+		return Utils.getLocalMaximum( labels, nextPosition(), radius, SyntheticAtlas.VOXEL_SIZE );
+	}
+
+	private double[] nextPosition()
+	{
+		positionIndex = ( positionIndex + 1 ) % positions.length;
+		return positions[ positionIndex ];
+	}
+}
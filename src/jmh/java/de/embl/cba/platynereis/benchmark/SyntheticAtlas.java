@@ -0,0 +1,297 @@
+package de.embl.cba.platynereis.benchmark;
+
+import de.embl.cba.platynereis.Constants;
+import de.embl.cba.platynereis.PlatySource;
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.Angle;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * In-memory volumes resembling the ProSPr gene masks and the cell segmentation of the atlas.
+ *
+ * The animal is an ellipsoid filling the volume. Genes are expressed in a few spherical
+ * domains within it, and the cells are the Voronoi regions of jittered grid points.
+ * All volumes are cell images with 64^3 cells, as written by BigDataViewer, and are
+ * reproducible for a given seed.
+ */
+public class SyntheticAtlas
+{
+	public static final double VOXEL_SIZE = Constants.PROSPR_SCALING_IN_MICROMETER;
+	public static final int NUM_MIPMAP_LEVELS = 4;
+	public static final int CELL_SIZE = 64;
+
+	// as in the ProSPr masks
+	public static final int MASK_VALUE = 255;
+
+	/**
+	 * The sources' files point into this folder, which does not exist;
+	 * the searches thus find neither indices nor pyramids.
+	 */
+	public static final File DIRECTORY = new File( System.getProperty( "java.io.tmpdir" ), "synthetic-platynereis-atlas" );
+
+	public static CellImg< UnsignedByteType, ? > createGeneMask( long[] dimensions, int numDomains, long seed )
+	{
+		final CellImg< UnsignedByteType, ? > mask = new CellImgFactory<>( new UnsignedByteType(), CELL_SIZE ).create( dimensions );
+		final RandomAccess< UnsignedByteType > access = mask.randomAccess();
+
+		final Random random = new Random( seed );
+		final long[] position = new long[ 3 ];
+
+		for ( int i = 0; i < numDomains; ++i )
+		{
+			final double[] center = getRandomPositionInAnimal( dimensions, random );
+			final double radius = 5 + 20 * random.nextDouble();
+
+			final long[] min = new long[ 3 ];
+			final long[] max = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.max( 0, ( long ) Math.floor( center[ d ] - radius ) );
+				max[ d ] = Math.min( dimensions[ d ] - 1, ( long ) Math.ceil( center[ d ] + radius ) );
+			}
+
+			for ( position[ 2 ] = min[ 2 ]; position[ 2 ] <= max[ 2 ]; ++position[ 2 ] )
+				for ( position[ 1 ] = min[ 1 ]; position[ 1 ] <= max[ 1 ]; ++position[ 1 ] )
+					for ( position[ 0 ] = min[ 0 ]; position[ 0 ] <= max[ 0 ]; ++position[ 0 ] )
+					{
+						if ( getSquaredDistance( position, center ) > radius * radius ) continue;
+						access.setPosition( position );
+						access.get().set( MASK_VALUE );
+					}
+		}
+
+		return mask;
+	}
+
+	/**
+	 * @param cellDiameter
+	 * 			spacing of the grid points, in voxels
+	 */
+	public static CellImg< UnsignedLongType, ? > createLabels( long[] dimensions, int cellDiameter, long seed )
+	{
+		final CellImg< UnsignedLongType, ? > labels = new CellImgFactory<>( new UnsignedLongType(), CELL_SIZE ).create( dimensions );
+
+		final int[] numGridPoints = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d ) numGridPoints[ d ] = ( int ) ( ( dimensions[ d ] - 1 ) / cellDiameter + 1 );
+
+		final Random random = new Random( seed );
+		final double[][] gridPoints = new double[ numGridPoints[ 0 ] * numGridPoints[ 1 ] * numGridPoints[ 2 ] ][];
+		for ( int z = 0, i = 0; z < numGridPoints[ 2 ]; ++z )
+			for ( int y = 0; y < numGridPoints[ 1 ]; ++y )
+				for ( int x = 0; x < numGridPoints[ 0 ]; ++x, ++i )
+					gridPoints[ i ] = new double[]{
+							( x + random.nextDouble() ) * cellDiameter,
+							( y + random.nextDouble() ) * cellDiameter,
+							( z + random.nextDouble() ) * cellDiameter };
+
+		final long[] position = new long[ 3 ];
+		final int[] gridPosition = new int[ 3 ];
+		final Cursor< UnsignedLongType > cursor = labels.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( position );
+
+			if ( ! isInAnimal( position, dimensions ) ) continue;
+
+			for ( int d = 0; d < 3; ++d ) gridPosition[ d ] = ( int ) ( position[ d ] / cellDiameter );
+
+			// the closest jittered grid point is within the neighbouring grid cells
+			long label = 0;
+			double minSquaredDistance = Double.MAX_VALUE;
+			for ( int z = Math.max( 0, gridPosition[ 2 ] - 1 ); z <= Math.min( numGridPoints[ 2 ] - 1, gridPosition[ 2 ] + 1 ); ++z )
+				for ( int y = Math.max( 0, gridPosition[ 1 ] - 1 ); y <= Math.min( numGridPoints[ 1 ] - 1, gridPosition[ 1 ] + 1 ); ++y )
+					for ( int x = Math.max( 0, gridPosition[ 0 ] - 1 ); x <= Math.min( numGridPoints[ 0 ] - 1, gridPosition[ 0 ] + 1 ); ++x )
+					{
+						final int i = ( z * numGridPoints[ 1 ] + y ) * numGridPoints[ 0 ] + x;
+						final double squaredDistance = getSquaredDistance( position, gridPoints[ i ] );
+						if ( squaredDistance < minSquaredDistance )
+						{
+							minSquaredDistance = squaredDistance;
+							label = i + 1;
+						}
+					}
+
+			cursor.get().set( label );
+		}
+
+		return labels;
+	}
+
+	/**
+	 * Mipmap levels of a gene mask, each downsampled by a factor of two with respect
+	 * to the previous one by averaging, as BigDataViewer does when exporting; the coarser
+	 * levels thus hold the fraction of expressing voxels rather than a binary mask.
+	 */
+	public static RandomAccessibleInterval< UnsignedByteType >[] createMipmaps( CellImg< UnsignedByteType, ? > mask, int numLevels )
+	{
+		final RandomAccessibleInterval< UnsignedByteType >[] levels = new RandomAccessibleInterval[ numLevels ];
+		levels[ 0 ] = mask;
+
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			levels[ level ] = downsample( levels[ level - 1 ] );
+		}
+
+		return levels;
+	}
+
+	/**
+	 * Gene sources named as the ProSPr MEDs. Genes are assigned to the given masks in turn,
+	 * such that many genes do not need as many volumes in memory.
+	 */
+	public static Map< String, PlatySource > createGeneSources( RandomAccessibleInterval< UnsignedByteType >[][] masks, int numGenes )
+	{
+		final Map< String, PlatySource > sources = new LinkedHashMap<>();
+
+		for ( int i = 0; i < numGenes; ++i )
+		{
+			final PlatySource source = new PlatySource();
+			source.name = String.format( "prospr-6dpf-1-whole-gene%04d-MEDs", i );
+			source.file = new File( DIRECTORY, source.name + Constants.BDV_XML_SUFFIX );
+			source.setSpimData( createSpimData( source.name, masks[ i % masks.length ], VOXEL_SIZE ) );
+			sources.put( source.name, source );
+		}
+
+		return sources;
+	}
+
+	public static SpimData createSpimData( String name, RandomAccessibleInterval< UnsignedByteType >[] levels, double voxelSize )
+	{
+		final FinalVoxelDimensions voxelDimensions = new FinalVoxelDimensions( "micrometer", voxelSize, voxelSize, voxelSize );
+		final ViewSetup setup = new ViewSetup( 0, name, levels[ 0 ], voxelDimensions, new Channel( 0 ), new Angle( 0 ), new Illumination( 0 ) );
+
+		final SequenceDescription sequenceDescription = new SequenceDescription(
+				new TimePoints( Collections.singletonList( new TimePoint( 0 ) ) ),
+				Collections.singletonMap( 0, setup ),
+				new InMemoryImgLoader( levels, voxelSize ),
+				null );
+
+		final AffineTransform3D calibration = new AffineTransform3D();
+		calibration.scale( voxelSize );
+
+		final ViewRegistrations viewRegistrations = new ViewRegistrations(
+				Collections.singletonList( new ViewRegistration( 0, 0, calibration ) ) );
+
+		return new SpimData( DIRECTORY, sequenceDescription, viewRegistrations );
+	}
+
+	/**
+	 * Random micrometer positions within the animal.
+	 */
+	public static double[][] createPositions( long[] dimensions, int numPositions, long seed )
+	{
+		final Random random = new Random( seed );
+		final double[][] positions = new double[ numPositions ][];
+
+		for ( int i = 0; i < numPositions; ++i )
+		{
+			positions[ i ] = getRandomPositionInAnimal( dimensions, random );
+			for ( int d = 0; d < 3; ++d ) positions[ i ][ d ] *= VOXEL_SIZE;
+		}
+
+		return positions;
+	}
+
+	private static RandomAccessibleInterval< UnsignedByteType > downsample( RandomAccessibleInterval< UnsignedByteType > image )
+	{
+		final long[] dimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d ) dimensions[ d ] = ( image.dimension( d ) + 1 ) / 2;
+
+		final CellImg< UnsignedByteType, ? > downsampled = new CellImgFactory<>( new UnsignedByteType(), CELL_SIZE ).create( dimensions );
+		final RandomAccess< UnsignedByteType > access = image.randomAccess();
+
+		final long[] position = new long[ 3 ];
+		final Cursor< UnsignedByteType > cursor = downsampled.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+
+			// voxels beyond the border repeat the border, as the out of bounds strategy of BigDataViewer's export
+			int sum = 0;
+			for ( int dz = 0; dz < 2; ++dz )
+				for ( int dy = 0; dy < 2; ++dy )
+					for ( int dx = 0; dx < 2; ++dx )
+					{
+						position[ 0 ] = Math.min( image.max( 0 ), 2 * cursor.getLongPosition( 0 ) + dx );
+						position[ 1 ] = Math.min( image.max( 1 ), 2 * cursor.getLongPosition( 1 ) + dy );
+						position[ 2 ] = Math.min( image.max( 2 ), 2 * cursor.getLongPosition( 2 ) + dz );
+						access.setPosition( position );
+						sum += access.get().get();
+					}
+
+			cursor.get().set( ( sum + 4 ) / 8 );
+		}
+
+		return downsampled;
+	}
+
+	private static double[] getRandomPositionInAnimal( long[] dimensions, Random random )
+	{
+		final double[] position = new double[ 3 ];
+		do
+		{
+			for ( int d = 0; d < 3; ++d ) position[ d ] = random.nextDouble() * dimensions[ d ];
+		}
+		while ( ! isInAnimal( position, dimensions ) );
+
+		return position;
+	}
+
+	private static boolean isInAnimal( long[] position, long[] dimensions )
+	{
+		double normalizedSquaredDistance = 0;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double halfWidth = 0.5 * dimensions[ d ];
+			final double distance = ( position[ d ] - halfWidth ) / halfWidth;
+			normalizedSquaredDistance += distance * distance;
+		}
+		return normalizedSquaredDistance <= 1.0;
+	}
+
+	private static boolean isInAnimal( double[] position, long[] dimensions )
+	{
+		double normalizedSquaredDistance = 0;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double halfWidth = 0.5 * dimensions[ d ];
+			final double distance = ( position[ d ] - halfWidth ) / halfWidth;
+			normalizedSquaredDistance += distance * distance;
+		}
+		return normalizedSquaredDistance <= 1.0;
+	}
+
+	private static double getSquaredDistance( long[] position, double[] center )
+	{
+		double squaredDistance = 0;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double distance = position[ d ] - center[ d ];
+			squaredDistance += distance * distance;
+		}
+		return squaredDistance;
+	}
+}
@@ -0,0 +1,129 @@
+package de.embl.cba.platynereis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Reports files that are created or modified in the watched directories.
+ *
+ * As large files are copied in many writes, a file is only reported once it has not been
+ * modified for {@link #SETTLE_MILLIS}; the listener is called on the watcher's thread.
+ */
+public class AtlasDirectoryWatcher
+{
+	public static final long SETTLE_MILLIS = 2000;
+
+	public interface Listener
+	{
+		void fileChanged( File file );
+	}
+
+	private final Listener listener;
+	private final WatchService watchService;
+	private final Map< WatchKey, Path > directories = new HashMap<>();
+	private final Map< File, Long > pendingFiles = new LinkedHashMap<>();
+	private final Thread thread;
+	private volatile boolean isStopped;
+
+	public AtlasDirectoryWatcher( Listener listener ) throws IOException
+	{
+		this.listener = listener;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.thread = new Thread( this::watch, "PlatyBrowser directory watcher" );
+		this.thread.setDaemon( true );
+	}
+
+	public synchronized void addDirectory( File directory ) throws IOException
+	{
+		final Path path = directory.toPath();
+		directories.put( path.register( watchService, ENTRY_CREATE, ENTRY_MODIFY ), path );
+	}
+
+	public void start()
+	{
+		thread.start();
+	}
+
+	public void stop()
+	{
+		isStopped = true;
+
+		try
+		{
+			watchService.close();
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private void watch()
+	{
+		while ( ! isStopped )
+		{
+			try
+			{
+				final WatchKey key = watchService.poll( SETTLE_MILLIS / 2, TimeUnit.MILLISECONDS );
+
+				if ( key != null ) addPendingFiles( key );
+
+				reportSettledFiles();
+			}
+			catch ( InterruptedException | ClosedWatchServiceException e )
+			{
+				return;
+			}
+		}
+	}
+
+	private void addPendingFiles( WatchKey key )
+	{
+		final Path directory;
+		synchronized ( this )
+		{
+			directory = directories.get( key );
+		}
+
+		for ( WatchEvent< ? > event : key.pollEvents() )
+		{
+			// events were lost; the next modification of a file reports it again
+			if ( event.kind() == OVERFLOW ) continue;
+
+			final File file = directory.resolve( ( Path ) event.context() ).toFile();
+			pendingFiles.put( file, System.currentTimeMillis() );
+		}
+
+		key.reset();
+	}
+
+	private void reportSettledFiles()
+	{
+		final long now = System.currentTimeMillis();
+
+		final Iterator< Map.Entry< File, Long > > iterator = pendingFiles.entrySet().iterator();
+		while ( iterator.hasNext() )
+		{
+			final Map.Entry< File, Long > pendingFile = iterator.next();
+			if ( now - pendingFile.getValue() < SETTLE_MILLIS ) continue;
+
+			iterator.remove();
+
+			if ( ! pendingFile.getKey().isFile() ) continue;
+
+			try
+			{
+				listener.fileChanged( pendingFile.getKey() );
+			}
+			catch ( RuntimeException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -10,6 +10,7 @@ public class Constants
 
 	public static final String BDV_XML_SUFFIX = ".xml";
 	public static final String IMARIS_SUFFIX = ".ims";
+	public static final String HDF5_SUFFIX = ".h5";
 	public static final double PROSPR_SCALING_IN_MICROMETER = 0.5;
 	public static final String EM_RAW_FILE_ID = "em-raw-"; //"em-raw-100nm"; //"em-raw-10nm-10nm-25nm"; //"em-raw-100nm"; //
 	public static final String EM_SEGMENTED_FILE_ID = "em-segmented";
@@ -27,4 +28,10 @@ public class Constants
 	public static final CharSequence MEDS = "-MEDs" ;
 	public static final CharSequence SPMS = "-SPMs";
 	public static final String OLD = "-OLD";
+	public static final double GENE_SEARCH_MIN_NUM_VOXELS_PER_RADIUS = 4.0;
+	public static final int GENE_SEARCH_CACHE_SIZE = 200;
+	public static final int NUM_SIMILAR_GENES = 10;
+	public static final int NUM_SOURCE_PREFETCH_THREADS = 4;
+	public static final long HDF5_READER_IDLE_MILLIS = 30000;
+	public static final int MAX_IDLE_HDF5_READERS = 64;
 }
@@ -3,25 +3,71 @@ package de.embl.cba.platynereis;
 import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
 import bdv.util.Bdv;
+import de.embl.cba.platynereis.genesearch.GeneBlockIndex;
+import de.embl.cba.platynereis.genesearch.GenePresenceIndex;
+import de.embl.cba.platynereis.genesearch.GeneSearchCache;
+import de.embl.cba.platynereis.genesearch.GeneSearchExecutor;
+import de.embl.cba.platynereis.genesearch.MaxPooledPyramid;
+import de.embl.cba.platynereis.genesearch.MaxPooledPyramids;
+import de.embl.cba.platynereis.genesearch.SummedVolumeTable;
+import de.embl.cba.platynereis.genesearch.SummedVolumeTables;
+import de.embl.cba.platynereis.utils.SphereKernel;
 import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 
+import java.io.File;
 import java.util.*;
-
-import static de.embl.cba.platynereis.utils.Utils.openSpimData;
+import java.util.concurrent.*;
 
 public class GeneSearch < T extends RealType< T > & NativeType< T > >
 {
+	public interface ProgressListener
+	{
+		/**
+		 * Called whenever a gene has been examined, with the non-zero expression levels
+		 * of all genes examined so far, sorted by increasing expression.
+		 */
+		void progress( Map< String, Double > sortedExpressionLevels, int numExaminedGenes, int numGenes );
+	}
 
 	private final double micrometerRadius;
 	private final double[] micrometerPosition;
-	private final Map< String, PlatySource > dataSources;
+	private Map< String, PlatySource > dataSources;
 	private final Bdv bdv;
 	private final int mipMapLevel;
 	private final double micrometerVoxelSize;
 	private Map< String, Double > localExpression;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private boolean isLogging = true;
+	private double minNumVoxelsPerRadius = Constants.GENE_SEARCH_MIN_NUM_VOXELS_PER_RADIUS;
+	private int searchMipMapLevel;
+	private double searchVoxelSize;
+	private volatile boolean isCancelled;
+	private ProgressListener progressListener;
+	private Map< String, Double > examinedExpression;
+	private int numGenes;
+	private GeneSearchCache resultCache;
+	private GenePresenceIndex index;
+	private MaxPooledPyramids pyramids;
+
+	// the replaced sources of a reloaded atlas are dropped with their values
+	private static final Map< PlatySource, Double > maskValues = Collections.synchronizedMap( new WeakHashMap<>() );
+
+	/**
+	 * Creates a search that does not depend on a viewer, e.g. for batch runs without a display.
+	 */
+	public GeneSearch( double micrometerRadius,
+					   double[] micrometerPosition,
+					   Map< String, PlatySource > dataSources,
+					   int mipMapLevel,
+					   double micrometerVoxelSize )
+	{
+		this( micrometerRadius, micrometerPosition, dataSources, null, mipMapLevel, micrometerVoxelSize );
+	}
 
 	public GeneSearch( double micrometerRadius,
 					   double[] micrometerPosition,
@@ -46,47 +92,595 @@ public class GeneSearch < T extends RealType< T > & NativeType< T > >
 		return localSortedExpression;
 	}
 
+	/**
+	 * The genes are examined on at most this many of the threads shared by all searches, see {@link GeneSearchExecutor}.
+	 */
+	public void setNumThreads( int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	public void setLogging( boolean isLogging )
+	{
+		this.isLogging = isLogging;
+	}
+
+	/**
+	 * The search runs on the coarsest mipmap level at which the search radius
+	 * still spans at least this many voxels.
+	 */
+	public void setMinNumVoxelsPerRadius( double minNumVoxelsPerRadius )
+	{
+		this.minNumVoxelsPerRadius = minNumVoxelsPerRadius;
+	}
+
+	/**
+	 * Results are taken from and added to the cache; cancelled searches are not cached.
+	 */
+	public void setResultCache( GeneSearchCache resultCache )
+	{
+		this.resultCache = resultCache;
+	}
+
+	public int getSearchMipMapLevel()
+	{
+		return searchMipMapLevel;
+	}
+
+	public double getSearchVoxelSize()
+	{
+		return searchVoxelSize;
+	}
+
+	/**
+	 * @throws IllegalStateException if any gene could not be examined
+	 */
 	public Map< String, Double > runSearchAndGetLocalExpression()
 	{
-		final Set< String > sources = dataSources.keySet();
+		final Map< String, PlatySource > registeredSources = dataSources;
+		dataSources = retainGeneSources( registeredSources );
+
+		try
+		{
+			return search();
+		}
+		finally
+		{
+			releaseGeneSources( dataSources );
+			dataSources = registeredSources;
+		}
+	}
+
+	private Map< String, Double > search()
+	{
+		final ArrayList< String > geneNames = getGeneNames();
 
 		localExpression = new LinkedHashMap<>(  );
+		examinedExpression = new LinkedHashMap<>(  );
+		numGenes = geneNames.size();
 
-		for ( String name : sources )
+		if ( geneNames.size() == 0 ) return localExpression;
+
+		final PlatySource firstSource = dataSources.get( geneNames.get( 0 ) );
+
+		setSearchLevel( firstSource );
+
+		// the sources are compared by identity, such that reloaded sources are searched anew
+		final ArrayList< PlatySource > geneSources = new ArrayList<>();
+		for ( String name : geneNames ) geneSources.add( dataSources.get( name ) );
+
+		if ( resultCache != null )
 		{
-			if ( name.contains( Constants.EM_FILE_ID ) ) continue;
-			if ( ! name.contains( Constants.MEDS ) ) continue;
-			if ( name.contains( Constants.OLD ) ) continue;
+			final Map< String, Double > cachedExpression = resultCache.get(
+					geneSources, micrometerPosition, micrometerRadius, searchMipMapLevel, searchVoxelSize );
 
-			(new Thread(new Runnable(){
-				public void run(){
-					Utils.log( "Examining " + name );
+			if ( cachedExpression != null )
+			{
+				if ( isLogging ) Utils.log( "Gene search result taken from cache; " + resultCache );
+				localExpression = cachedExpression;
+				examinedExpression.putAll( cachedExpression );
+				final String lastName = geneNames.get( geneNames.size() - 1 );
+				publishProgress( lastName, cachedExpression.get( lastName ) );
+				return localExpression;
+			}
+		}
+
+		final Map< String, Double > indexedExpression = getIndexedLocalExpression();
+
+		pyramids = MaxPooledPyramids.forDirectory( firstSource.file.getParentFile() );
+
+		final Set< String > prunedGenes = getPrunedGenes( firstSource.file.getParentFile(), geneNames, indexedExpression.keySet() );
+
+		for ( String name : prunedGenes ) indexedExpression.put( name, 0.0 );
+
+		for ( String name : indexedExpression.keySet() )
+		{
+			if ( geneNames.contains( name ) ) publishProgress( name, indexedExpression.get( name ) );
+		}
+
+		final ArrayList< String > examinedGenes = new ArrayList<>( geneNames );
+		examinedGenes.removeAll( indexedExpression.keySet() );
+
+		final Map< String, CompletableFuture< Double > > futures =
+				GeneSearchExecutor.examine( examinedGenes, numThreads, this::examine, () -> isCancelled );
+
+		try
+		{
+			// collecting in gene order keeps the order of the data sources
+			for ( String name : geneNames )
+			{
+				if ( indexedExpression.containsKey( name ) )
+				{
+					localExpression.put( name, indexedExpression.get( name ) );
+				}
+				else
+				{
+					localExpression.put( name, getExpression( name, futures.get( name ) ) );
 				}
-			})).start();
+			}
+		}
+		catch ( CancellationException e )
+		{
+			if ( ! isCancelled ) throw e;
+		}
+
+		if ( resultCache != null && ! isCancelled )
+		{
+			resultCache.put( geneSources, micrometerPosition, micrometerRadius, searchMipMapLevel, searchVoxelSize, localExpression );
+		}
+
+		return localExpression;
+
+	}
+
+	/**
+	 * Waits for the examination of one gene.
+	 *
+	 * @throws CancellationException if the search has been cancelled meanwhile
+	 * @throws IllegalStateException if the gene could not be examined, such that a failed
+	 * 			search never returns, caches or writes incomplete results
+	 */
+	private double getExpression( String name, Future< Double > future )
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			// the genes that are not started yet are not examined any more
+			isCancelled = true;
+			throw new CancellationException( "Gene search interrupted" );
+		}
+		catch ( ExecutionException e )
+		{
+			if ( isCancelled ) throw new CancellationException( "Gene search cancelled" );
+			throw new IllegalStateException( "Gene search failed for " + name + ": " + e.getCause(), e.getCause() );
+		}
+	}
+
+	/**
+	 * Stops the search as soon as the genes currently being examined are done.
+	 * {@link #runSearchAndGetLocalExpression()} then returns the genes examined so far.
+	 */
+	public void cancel()
+	{
+		isCancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		return isCancelled;
+	}
+
+	public void setProgressListener( ProgressListener progressListener )
+	{
+		this.progressListener = progressListener;
+	}
+
+	private double examine( String name )
+	{
+		if ( isCancelled ) throw new CancellationException( "Gene search cancelled" );
 
-			final PlatySource source = dataSources.get( name );
+		final double expression = getLocalExpression( name );
 
-			if ( source.spimData == null )
+		publishProgress( name, expression );
+
+		return expression;
+	}
+
+	private synchronized void publishProgress( String name, double expression )
+	{
+		examinedExpression.put( name, expression );
+
+		if ( progressListener == null || isCancelled ) return;
+
+		final Map< String, Double > sortedExpression = Utils.sortByValue( examinedExpression );
+		removeGenesWithZeroExpression( sortedExpression );
+
+		progressListener.progress( sortedExpression, examinedExpression.size(), numGenes );
+	}
+
+	/**
+	 * Evaluates all genes of the atlas' gene presence index at once, if the index
+	 * exists and is on the search level. Genes that are not in the index are searched one by one.
+	 */
+	private Map< String, Double > getIndexedLocalExpression()
+	{
+		if ( index == null ) return new HashMap<>(  );
+
+		if ( isLogging ) Utils.log( "Examining " + index.getGeneNames().size() + " genes using " + GenePresenceIndex.FILE_NAME );
+
+		return index.getLocalExpression( micrometerPosition, micrometerRadius );
+	}
+
+	/**
+	 * Returns the genes that the atlas' gene block index, if any, shows to have
+	 * no expression anywhere near the search sphere.
+	 */
+	private Set< String > getPrunedGenes( File atlasDirectory, List< String > geneNames, Set< String > examinedGenes )
+	{
+		final Set< String > prunedGenes = getPrunedGenes( atlasDirectory, geneNames, micrometerPosition, micrometerRadius, searchVoxelSize );
+		prunedGenes.removeAll( examinedGenes );
+
+		if ( isLogging && GeneBlockIndex.forDirectory( atlasDirectory ) != null )
+		{
+			Utils.log( "Skipping " + prunedGenes.size() + " genes without expression near the search position, using " + GeneBlockIndex.FILE_NAME );
+		}
+
+		return prunedGenes;
+	}
+
+	/**
+	 * Returns the genes that the atlas' gene block index, if any, shows to have
+	 * no expression anywhere near a sphere that is searched on a level of the given voxel size.
+	 */
+	public static Set< String > getPrunedGenes( File atlasDirectory, Collection< String > geneNames, double[] micrometerPosition, double micrometerRadius, double searchVoxelSize )
+	{
+		final Set< String > prunedGenes = new HashSet<>(  );
+
+		final GeneBlockIndex blockIndex = GeneBlockIndex.forDirectory( atlasDirectory );
+		if ( blockIndex == null ) return prunedGenes;
+
+		// the search centers the sphere on a voxel and rounds the radius up, both within one voxel;
+		// the margin also covers coarse voxels that are non-zero because of finer ones outside the block
+		final double margin = 2 * Math.max( searchVoxelSize, blockIndex.getVoxelSize() );
+		final Set< String > candidateGenes = blockIndex.getCandidateGenes( micrometerPosition, micrometerRadius + margin );
+
+		for ( String name : geneNames )
+		{
+			if ( blockIndex.contains( name ) && ! candidateGenes.contains( name ) ) prunedGenes.add( name );
+		}
+
+		return prunedGenes;
+	}
+
+	/**
+	 * Computes the fraction of expressing voxels of all genes within a box given in
+	 * micrometer units. Genes with an up to date summed-volume table are evaluated in constant time,
+	 * all others by iterating the box at full resolution; both count the expressing full resolution voxels.
+	 */
+	public static Map< String, Double > getBoxExpression(
+			Map< String, PlatySource > dataSources,
+			double[] micrometerMin,
+			double[] micrometerMax )
+	{
+		final ArrayList< String > geneNames = getGeneNames( dataSources );
+
+		final Map< String, Double > boxExpression = new LinkedHashMap<>(  );
+
+		if ( geneNames.size() == 0 ) return boxExpression;
+
+		final SummedVolumeTables tables = SummedVolumeTables.forDirectory( dataSources.get( geneNames.get( 0 ) ).file.getParentFile() );
+
+		for ( String name : geneNames )
+		{
+			final SummedVolumeTable table = tables != null ? tables.get( name ) : null;
+
+			if ( table != null )
 			{
-				source.spimData = openSpimData( source.file );
+				boxExpression.put( name, table.getFractionOfExpressingVoxels( micrometerMin, micrometerMax ) );
 			}
+			else
+			{
+				boxExpression.put( name, getBoxFractionOfNonZeroVoxels( dataSources.get( name ), micrometerMin, micrometerMax ) );
+			}
+		}
 
-			final ViewerImgLoader imgLoader = ( ViewerImgLoader ) source.spimData.getSequenceDescription().getImgLoader();
-			final ViewerSetupImgLoader< ?, ? > setupImgLoader = imgLoader.getSetupImgLoader( 0 );
-			final RandomAccessibleInterval< T > image = (RandomAccessibleInterval<T>) setupImgLoader.getImage( 0, mipMapLevel );
+		return boxExpression;
+	}
 
-			final double fractionOfNonZeroVoxels = Utils.getFractionOfNonZeroVoxels(
-					image,
-					micrometerPosition,
-					micrometerRadius,
-					micrometerVoxelSize );
+	private static double getBoxFractionOfNonZeroVoxels( PlatySource source, double[] micrometerMin, double[] micrometerMax )
+	{
+		final RandomAccessibleInterval< ? extends RealType< ? > > image =
+				( RandomAccessibleInterval< ? extends RealType< ? > > ) getSetupImgLoader( source ).getImage( 0, 0 );
 
-			localExpression.put( name, fractionOfNonZeroVoxels );
+		final double voxelSize = getVoxelSize( source, 0 );
 
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = Math.max( image.min( d ), ( long ) Math.floor( micrometerMin[ d ] / voxelSize ) );
+			max[ d ] = Math.min( image.max( d ), ( long ) Math.floor( micrometerMax[ d ] / voxelSize ) );
+			if ( max[ d ] < min[ d ] ) return 0.0;
 		}
 
-		return localExpression;
+		long numVoxels = 0;
+		long numNonZeroVoxels = 0;
+		for ( RealType< ? > voxel : Views.interval( image, min, max ) )
+		{
+			numVoxels++;
+			if ( voxel.getRealDouble() != 0 ) numNonZeroVoxels++;
+		}
+
+		return 1.0 * numNonZeroVoxels / numVoxels;
+	}
+
+	public static boolean isGeneSource( String name )
+	{
+		if ( name.contains( Constants.EM_FILE_ID ) ) return false;
+		if ( ! name.contains( Constants.MEDS ) ) return false;
+		if ( name.contains( Constants.OLD ) ) return false;
+
+		return true;
+	}
+
+	private ArrayList< String > getGeneNames()
+	{
+		return getGeneNames( dataSources );
+	}
+
+	/**
+	 * Iterating a {@link SourceRegistry} needs no lock, as it iterates a snapshot of the sources.
+	 */
+	public static ArrayList< String > getGeneNames( Map< String, PlatySource > dataSources )
+	{
+		final ArrayList< String > geneNames = new ArrayList<>(  );
+
+		for ( String name : dataSources.keySet() )
+		{
+			if ( isGeneSource( name ) ) geneNames.add( name );
+		}
+
+		return geneNames;
+	}
+
+	private void setSearchLevel( PlatySource source )
+	{
+		final double[][] resolutions = source.getMipmapResolutions();
+
+		// mipMapLevel and micrometerVoxelSize are the finest level the search may use
+		final double scale = micrometerVoxelSize / resolutions[ mipMapLevel ][ 0 ];
+
+		searchMipMapLevel = getAppropriateLevel( micrometerRadius, scale, resolutions, mipMapLevel, minNumVoxelsPerRadius );
+		searchVoxelSize = scale * resolutions[ searchMipMapLevel ][ 0 ];
+
+		index = getPresenceIndex( source.file.getParentFile(), searchMipMapLevel );
+	}
+
+	/**
+	 * The gene presence index of the atlas directory, if it is on the search level.
+	 *
+	 * A finer index is not used, as evaluating it would sweep all its voxels within the sphere,
+	 * e.g. tens of millions at the full resolution for large radii, which the coarser search level avoids.
+	 */
+	public static GenePresenceIndex getPresenceIndex( File atlasDirectory, int searchMipMapLevel )
+	{
+		final GenePresenceIndex index = GenePresenceIndex.forDirectory( atlasDirectory );
+		return index != null && index.getMipMapLevel() == searchMipMapLevel ? index : null;
+	}
+
+	public static int getAppropriateLevel( double radius, double scale, double[][] resolutions, int minLevel, double minNumVoxelsPerRadius )
+	{
+		int appropriateLevel = minLevel;
+		for( int level = minLevel + 1; level < resolutions.length; ++level )
+		{
+			double levelVoxelSize = resolutions[ level ][ 0 ] * scale;
+			if ( radius / levelVoxelSize < minNumVoxelsPerRadius ) break;
+			appropriateLevel = level;
+		}
+		return appropriateLevel;
+	}
+
+	private double getLocalExpression( String name )
+	{
+		if ( isLogging ) Utils.log( "Examining " + name );
+
+		final PlatySource source = dataSources.get( name );
+
+		final RandomAccessibleInterval< T > image =
+				(RandomAccessibleInterval<T>) getSetupImgLoader( source ).getImage( 0, searchMipMapLevel );
+
+		final MaxPooledPyramid pyramid = pyramids != null ? pyramids.get( name ) : null;
+		if ( pyramid != null )
+		{
+			final int downsamplingLog2 = MaxPooledPyramid.getDownsamplingLog2(
+					getSetupImgLoader( source ).getMipmapResolutions(), searchMipMapLevel );
+
+			if ( downsamplingLog2 >= 0 )
+			{
+				return getExpression( source, searchMipMapLevel, pyramid.sample(
+						image,
+						Utils.getPixelPosition( micrometerPosition, searchVoxelSize ),
+						( int ) Math.ceil( micrometerRadius / searchVoxelSize ),
+						downsamplingLog2 ) );
+			}
+		}
+
+		// the search level's voxel size converts position and radius into voxel units of that level
+		return getExpression( source, searchMipMapLevel, Utils.getLocalStatistics(
+				image,
+				micrometerPosition,
+				micrometerRadius,
+				searchVoxelSize ) );
+	}
 
+	/**
+	 * The fraction of expressing voxels of a gene, from the statistics of its mask on a mipmap level.
+	 *
+	 * The coarser levels are averaged, such that a voxel is non-zero as soon as any of the
+	 * full resolution voxels it covers expresses; counting non-zero voxels would thus inflate
+	 * the fraction at the border of every expression domain. Above level 0 the fraction is
+	 * therefore estimated from the mean intensity relative to the mask value, see {@link #getMaskValue}.
+	 */
+	public static double getExpression( PlatySource source, int mipMapLevel, SphereKernel.Statistics statistics )
+	{
+		if ( mipMapLevel == 0 ) return statistics.getFractionOfNonZeroVoxels();
+		if ( statistics.numNonZeroVoxels == 0 ) return 0.0;
+
+		return statistics.getFractionOfMaskValue( getMaskValue( source ) );
+	}
+
+	/**
+	 * The value of the expressing voxels of a gene mask, e.g. 1 or 255, or 0 if the gene is not expressed.
+	 *
+	 * The brightest voxel of the coarsest level covers expressing full resolution voxels if there
+	 * are any, thus only the full resolution voxels below it are read. The value is computed once per source.
+	 */
+	public static double getMaskValue( PlatySource source )
+	{
+		final Double maskValue = maskValues.get( source );
+		if ( maskValue != null ) return maskValue;
+
+		// concurrent searches may read the value twice, which is cheap compared to blocking them
+		final double readMaskValue = readMaskValue( source );
+		maskValues.put( source, readMaskValue );
+		return readMaskValue;
+	}
+
+	private static double readMaskValue( PlatySource source )
+	{
+		final ViewerSetupImgLoader< ?, ? > setupImgLoader = getSetupImgLoader( source );
+		final double[][] resolutions = setupImgLoader.getMipmapResolutions();
+		final int coarsestLevel = resolutions.length - 1;
+
+		final Cursor< ? extends RealType< ? > > cursor =
+				Views.iterable( ( RandomAccessibleInterval< ? extends RealType< ? > > ) setupImgLoader.getImage( 0, coarsestLevel ) ).localizingCursor();
+
+		double coarsestMax = 0;
+		final long[] coarsestMaxPosition = new long[ 3 ];
+		while ( cursor.hasNext() )
+		{
+			final double value = cursor.next().getRealDouble();
+			if ( value <= coarsestMax ) continue;
+			coarsestMax = value;
+			cursor.localize( coarsestMaxPosition );
+		}
+
+		if ( coarsestMax == 0 || coarsestLevel == 0 ) return coarsestMax;
+
+		final RandomAccessibleInterval< ? extends RealType< ? > > image =
+				( RandomAccessibleInterval< ? extends RealType< ? > > ) setupImgLoader.getImage( 0, 0 );
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double factor = resolutions[ coarsestLevel ][ d ] / resolutions[ 0 ][ d ];
+			min[ d ] = Math.max( image.min( d ), ( long ) Math.floor( coarsestMaxPosition[ d ] * factor ) );
+			max[ d ] = Math.min( image.max( d ), ( long ) Math.ceil( ( coarsestMaxPosition[ d ] + 1 ) * factor ) - 1 );
+		}
+
+		double maskValue = coarsestMax;
+		for ( RealType< ? > voxel : Views.interval( image, min, max ) )
+		{
+			maskValue = Math.max( maskValue, voxel.getRealDouble() );
+		}
+
+		return maskValue;
+	}
+
+	public static double getVoxelSize( PlatySource source, int mipMapLevel )
+	{
+		final double[][] resolutions = source.getMipmapResolutions();
+		final double scale = source.getSourceTransform().get( 0, 0 );
+		return scale * resolutions[ mipMapLevel ][ 0 ];
+	}
+
+	/**
+	 * Copies the sources, e.g. of the registry of a browser, and keeps the gene sources among them
+	 * open until {@link #releaseGeneSources(Map)}, also if they are replaced meanwhile, see {@link PlatySource#close()}.
+	 *
+	 * @throws IllegalStateException if a gene source has been closed without being replaced
+	 */
+	public static Map< String, PlatySource > retainGeneSources( Map< String, PlatySource > dataSources )
+	{
+		while ( true )
+		{
+			final Map< String, PlatySource > sources = new LinkedHashMap<>( dataSources );
+			final ArrayList< PlatySource > retainedSources = new ArrayList<>();
+
+			PlatySource closedSource = null;
+			for ( String name : getGeneNames( sources ) )
+			{
+				final PlatySource source = sources.get( name );
+				if ( ! source.retain() )
+				{
+					closedSource = source;
+					break;
+				}
+				retainedSources.add( source );
+			}
+
+			if ( closedSource == null ) return sources;
+
+			for ( PlatySource source : retainedSources ) source.release();
+
+			// a replaced source is closed after its replacement has been registered
+			if ( dataSources.get( closedSource.name ) == closedSource )
+			{
+				throw new IllegalStateException( closedSource.name + " has been closed." );
+			}
+		}
+	}
+
+	public static void releaseGeneSources( Map< String, PlatySource > retainedSources )
+	{
+		for ( String name : getGeneNames( retainedSources ) ) retainedSources.get( name ).release();
+	}
+
+	/**
+	 * Lists the gene sources of an atlas directory without opening them,
+	 * named and ordered as in {@link PlatyBrowser}.
+	 */
+	public static Map< String, PlatySource > getGeneSources( File directory )
+	{
+		final Map< String, PlatySource > geneSources = new LinkedHashMap<>();
+
+		final File[] files = directory.listFiles();
+		if ( files == null ) return geneSources;
+		Arrays.sort( files, ( f1, f2 ) -> f1.getName().toLowerCase().compareTo( f2.getName().toLowerCase() ) );
+
+		for ( File file : files )
+		{
+			if ( ! file.getName().endsWith( Constants.BDV_XML_SUFFIX ) ) continue;
+
+			final String name = PlatyBrowser.getSourceName( file );
+			if ( ! isGeneSource( name ) ) continue;
+
+			final PlatySource source = new PlatySource();
+			source.name = name;
+			source.file = file;
+			geneSources.put( name, source );
+		}
+
+		return geneSources;
+	}
+
+	/**
+	 * Gives the HDF5 readers of the sources of {@link #getGeneSources(File)} back, once done with them.
+	 */
+	public static void closeGeneSources( Map< String, PlatySource > geneSources )
+	{
+		for ( PlatySource source : geneSources.values() ) source.close();
+	}
+
+	public static ViewerSetupImgLoader< ?, ? > getSetupImgLoader( PlatySource source )
+	{
+		final ViewerImgLoader imgLoader = ( ViewerImgLoader ) source.getSpimData().getSequenceDescription().getImgLoader();
+		return imgLoader.getSetupImgLoader( 0 );
 	}
 
 
@@ -0,0 +1,171 @@
+package de.embl.cba.platynereis;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import de.embl.cba.platynereis.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide pool of HDF5 readers, such that image loaders of several XMLs that point into
+ * the same HDF5 file share one file handle.
+ *
+ * Readers are keyed by the canonical path and the modification time of their file, such that a
+ * file that is rewritten gets a new reader, while users of the old one keep reading until they
+ * are closed. Readers are reference counted: each {@link #acquire(File)} must be paired with a
+ * {@link #release(IHDF5Reader)} of the returned reader. Readers that are no longer used are closed
+ * after {@link Constants#HDF5_READER_IDLE_MILLIS}, or right away, oldest first, if more than
+ * {@link Constants#MAX_IDLE_HDF5_READERS} are idle; idle readers of older versions of a file are
+ * closed as soon as a newer version is acquired.
+ */
+public class Hdf5ReaderPool
+{
+	private static class PooledReader
+	{
+		final String path;
+		final IHDF5Reader reader;
+		int numUsers;
+		long idleSinceMillis;
+
+		PooledReader( String path, IHDF5Reader reader )
+		{
+			this.path = path;
+			this.reader = reader;
+		}
+	}
+
+	// in order of the last acquire or release, such that the longest idle readers come first
+	private static final Map< String, PooledReader > readers = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor( runnable -> {
+		final Thread thread = new Thread( runnable, "PlatyBrowser HDF5 reader eviction" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	static
+	{
+		final long period = Math.max( 1, Constants.HDF5_READER_IDLE_MILLIS / 2 );
+		evictor.scheduleWithFixedDelay( () -> evictIdleReaders( Constants.HDF5_READER_IDLE_MILLIS ), period, period, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Returns the shared reader of the file, opening it if needed.
+	 * The reader must not be closed by the caller, but be given back with {@link #release(IHDF5Reader)}.
+	 */
+	public static synchronized IHDF5Reader acquire( File file )
+	{
+		final String path = getPath( file );
+		final String key = path + ":" + new File( path ).lastModified();
+
+		PooledReader pooledReader = readers.get( key );
+		if ( pooledReader == null )
+		{
+			closeIdleReaders( path );
+			pooledReader = new PooledReader( path, HDF5Factory.openForReading( new File( path ) ) );
+			readers.put( key, pooledReader );
+		}
+
+		pooledReader.numUsers++;
+		return pooledReader.reader;
+	}
+
+	/**
+	 * Gives back a reader of {@link #acquire(File)}; readers are identified by themselves rather than
+	 * by their file, as the file may have changed since.
+	 */
+	public static synchronized void release( IHDF5Reader reader )
+	{
+		PooledReader pooledReader = null;
+		for ( PooledReader candidate : readers.values() )
+		{
+			if ( candidate.reader == reader ) pooledReader = candidate;
+		}
+
+		if ( pooledReader == null || pooledReader.numUsers == 0 )
+		{
+			Utils.log( "HDF5 reader released more often than acquired, or not acquired from the pool." );
+			return;
+		}
+
+		if ( --pooledReader.numUsers == 0 )
+		{
+			pooledReader.idleSinceMillis = System.currentTimeMillis();
+			evictIdleReaders( Constants.HDF5_READER_IDLE_MILLIS );
+		}
+	}
+
+	/**
+	 * @return the number of open readers, including idle ones
+	 */
+	public static synchronized int size()
+	{
+		return readers.size();
+	}
+
+	/**
+	 * Closes all idle readers.
+	 */
+	public static void closeIdleReaders()
+	{
+		evictIdleReaders( 0 );
+	}
+
+	private static synchronized void evictIdleReaders( long idleMillis )
+	{
+		final long now = System.currentTimeMillis();
+
+		int numIdle = 0;
+		for ( PooledReader pooledReader : readers.values() )
+		{
+			if ( pooledReader.numUsers == 0 ) numIdle++;
+		}
+
+		final Iterator< Map.Entry< String, PooledReader > > iterator = readers.entrySet().iterator();
+		while ( iterator.hasNext() )
+		{
+			final PooledReader pooledReader = iterator.next().getValue();
+			if ( pooledReader.numUsers > 0 ) continue;
+
+			if ( numIdle > Constants.MAX_IDLE_HDF5_READERS || now - pooledReader.idleSinceMillis >= idleMillis )
+			{
+				iterator.remove();
+				numIdle--;
+				pooledReader.reader.close();
+			}
+		}
+	}
+
+	// of older versions of the file
+	private static void closeIdleReaders( String path )
+	{
+		final Iterator< PooledReader > iterator = readers.values().iterator();
+		while ( iterator.hasNext() )
+		{
+			final PooledReader pooledReader = iterator.next();
+			if ( pooledReader.numUsers > 0 || ! pooledReader.path.equals( path ) ) continue;
+
+			iterator.remove();
+			pooledReader.reader.close();
+		}
+	}
+
+	private static String getPath( File file )
+	{
+		try
+		{
+			return file.getCanonicalPath();
+		}
+		catch ( IOException e )
+		{
+			return file.getAbsolutePath();
+		}
+	}
+}
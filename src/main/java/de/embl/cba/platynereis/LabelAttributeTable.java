@@ -0,0 +1,134 @@
+package de.embl.cba.platynereis;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the tab separated attribute table of a label source, with one row per label.
+ *
+ * Numeric cells are parsed as Double and all others are kept as String. Progress is reported
+ * in the bytes read from the file, such that tables of several hundred thousand cells can show
+ * a progress bar.
+ */
+public class LabelAttributeTable
+{
+	public static final String DELIMITER = "\t";
+
+	public interface ProgressListener
+	{
+		/**
+		 * Called on the parsing thread, about once per percent.
+		 */
+		void progress( long numBytesRead, long numBytes );
+	}
+
+	public static JTable load( File file, ProgressListener progressListener ) throws IOException
+	{
+		final long numBytes = file.length();
+		final long progressInterval = Math.max( 1, numBytes / 100 );
+
+		final DefaultTableModel model = new DefaultTableModel();
+
+		// counts bytes rather than characters, which differ for line breaks of two characters and non-ASCII cells
+		final CountingInputStream in = new CountingInputStream( new FileInputStream( file ) );
+
+		try ( BufferedReader reader = new BufferedReader( new InputStreamReader( in, StandardCharsets.UTF_8 ) ) )
+		{
+			final String header = reader.readLine();
+			if ( header == null ) throw new IOException( "Empty table: " + file );
+
+			final String[] columnNames = header.split( DELIMITER );
+			model.setColumnIdentifiers( columnNames );
+
+			long nextProgress = progressInterval;
+
+			String line;
+			while ( ( line = reader.readLine() ) != null )
+			{
+				if ( line.isEmpty() ) continue;
+
+				model.addRow( parseRow( line, columnNames.length ) );
+
+				final long numBytesRead = in.getCount();
+				if ( progressListener != null && numBytesRead >= nextProgress )
+				{
+					progressListener.progress( Math.min( numBytesRead, numBytes ), numBytes );
+					nextProgress = numBytesRead + progressInterval;
+				}
+			}
+		}
+
+		if ( progressListener != null ) progressListener.progress( numBytes, numBytes );
+
+		return new JTable( model );
+	}
+
+	/**
+	 * Counts the bytes read from the file; the reader buffers, thus the count is ahead of the parsed lines by up to a buffer.
+	 */
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private long count;
+
+		CountingInputStream( InputStream in )
+		{
+			super( in );
+		}
+
+		long getCount()
+		{
+			return count;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final int b = super.read();
+			if ( b >= 0 ) count++;
+			return b;
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			final int n = super.read( b, off, len );
+			if ( n > 0 ) count += n;
+			return n;
+		}
+
+		@Override
+		public long skip( long n ) throws IOException
+		{
+			final long skipped = super.skip( n );
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	private static Object[] parseRow( String line, int numColumns )
+	{
+		final String[] cells = line.split( DELIMITER, -1 );
+		final Object[] row = new Object[ numColumns ];
+
+		for ( int column = 0; column < numColumns && column < cells.length; ++column )
+		{
+			row[ column ] = parseCell( cells[ column ] );
+		}
+
+		return row;
+	}
+
+	private static Object parseCell( String cell )
+	{
+		try
+		{
+			return Double.parseDouble( cell );
+		}
+		catch ( NumberFormatException e )
+		{
+			return cell;
+		}
+	}
+}
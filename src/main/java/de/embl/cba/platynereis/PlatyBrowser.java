@@ -1,22 +1,21 @@
 package de.embl.cba.platynereis;
 
-import bdv.VolatileSpimSource;
 import bdv.img.imaris.Imaris;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.tools.brightness.ConverterSetup;
 import bdv.util.Bdv;
 import bdv.viewer.Interpolation;
 import de.embl.cba.bdv.utils.BdvUtils;
-import de.embl.cba.bdv.utils.selection.BdvSelectionEventHandler;
-import de.embl.cba.bdv.utils.sources.SelectableARGBConvertedRealSource;
+import de.embl.cba.platynereis.genesearch.GeneSearchCache;
+import de.embl.cba.platynereis.genesearch.IndexedSources;
 import de.embl.cba.platynereis.ui.BdvSourcesPanel;
 import de.embl.cba.platynereis.ui.MainUI;
 import de.embl.cba.platynereis.utils.FileUtils;
 import de.embl.cba.platynereis.utils.Utils;
 import de.embl.cba.tables.TableBdvConnector;
-import de.embl.cba.tables.TableUtils;
 import de.embl.cba.tables.objects.ObjectCoordinate;
 import de.embl.cba.tables.objects.ObjectTablePanel;
+import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.registration.ViewTransformAffine;
 import mpicbg.spim.data.sequence.FinalVoxelDimensions;
@@ -25,9 +24,14 @@ import net.imglib2.realtransform.Scale;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static de.embl.cba.bdv.utils.BdvUserInterfaceUtils.showBrightnessDialog;
 
@@ -35,39 +39,219 @@ public class PlatyBrowser
 {
     public static final String LABEL_ATTRIBUTES_FOLDER = "label_attributes";
     Bdv bdv;
-    public Map< String, PlatySource > dataSources;
+    public final SourceRegistry dataSources = new SourceRegistry();
     String defaultSource;
     AffineTransform3D emRawDataTransform;
     BdvSourcesPanel legend;
     private final MainUI mainUI;
+    private final SourcePrefetcher sourcePrefetcher = new SourcePrefetcher( Constants.NUM_SOURCE_PREFETCH_THREADS );
+    private final SourceCatalog sourceCatalog;
+
+    // one writer, such that catalogs of concurrent updates do not overwrite each other
+    private final ExecutorService sourceCatalogWriter = Executors.newSingleThreadExecutor( runnable -> {
+        final Thread thread = new Thread( runnable, "PlatyBrowser source catalog writer" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+    private final File directory;
+    private final ArrayList< SourcesListener > sourcesListeners = new ArrayList<>(  );
+    private AtlasDirectoryWatcher directoryWatcher;
+    private final boolean preloadAttributeTables;
+    private final StartupTimings startupTimings;
+
+    public interface SourcesListener
+    {
+        /**
+         * Called on the event dispatch thread.
+         */
+        void sourceAdded( String name );
+    }
 
     public PlatyBrowser( String directory )
     {
-        dataSources = Collections.synchronizedMap( new LinkedHashMap() );
+        this( directory, false );
+    }
+
+    /**
+     * @param preloadAttributeTables parse the attribute tables of all label sources in the background,
+     *                               rather than when a label source is shown
+     */
+    public PlatyBrowser( String directory, boolean preloadAttributeTables )
+    {
+        this.preloadAttributeTables = preloadAttributeTables;
+
+        startupTimings = new StartupTimings( directory );
 
+        this.directory = new File( directory );
+
+        dataSources.addStateListener( ( source, state ) -> {
+            if ( state == PlatySource.State.FAILED ) Utils.log( "Could not open source: " + source.name );
+        } );
+
+        long start = System.nanoTime();
+        sourceCatalog = SourceCatalog.forDirectory( this.directory );
+        startupTimings.record( StartupTimings.Phase.SOURCE_CATALOG, start );
+
+        start = System.nanoTime();
         ArrayList< File > imageFiles = getImageFiles( directory );
 
         ArrayList< File > attributeFiles = getAttributeFiles( directory );
+        startupTimings.record( StartupTimings.Phase.DIRECTORY_LISTING, start );
 
         bdv = initDefaultSourceAndBdv( imageFiles );
 
-        initDataSources( imageFiles, attributeFiles, bdv );
+        initDataSources( imageFiles, attributeFiles );
 
-        new Thread(new Runnable(){
-            public void run(){
-                configureObjectSources( );
-            }
-        }).start();
+        if ( preloadAttributeTables ) preloadAttributeTables( );
 
-        new Thread(new Runnable(){
-            public void run(){
-                fetchProsprSources( );
-            }
-        }).start();
+        prefetchProsprSources( );
+
+        updateSourceCatalog( this.directory );
 
+        start = System.nanoTime();
         mainUI = new MainUI( this.bdv, this );
+        startupTimings.record( StartupTimings.Phase.UI_CONSTRUCTION, start );
 
         legend = mainUI.getBdvSourcesPanel();
+
+        watchDirectory( );
+
+        mainUI.addWindowListener( new WindowAdapter()
+        {
+            @Override
+            public void windowClosed( WindowEvent e )
+            {
+                close();
+            }
+        } );
+
+        startupTimings.recordFirstFrame( bdv.getBdvHandle().getViewerPanel() );
+    }
+
+    /**
+     * The timings are logged once the viewer is fully rendered for the first time.
+     */
+    public StartupTimings getStartupTimings()
+    {
+        return startupTimings;
+    }
+
+    /**
+     * Stops watching the directory and opening sources, and closes the image data of all
+     * sources that are not shown, such that their HDF5 readers can be evicted from the {@link Hdf5ReaderPool}.
+     */
+    public void close()
+    {
+        if ( directoryWatcher != null ) directoryWatcher.stop();
+
+        sourcePrefetcher.shutdown();
+
+        for ( PlatySource source : dataSources.values() )
+        {
+            if ( source.getBdvStackSource() == null ) source.close();
+        }
+    }
+
+    public void addSourcesListener( SourcesListener sourcesListener )
+    {
+        sourcesListeners.add( sourcesListener );
+    }
+
+    /**
+     * Adds sources and label attribute tables that appear in the atlas directory while
+     * the browser is running. Sources that are shown are left untouched; sources that are
+     * replaced are closed and their gene search results dropped.
+     */
+    private void watchDirectory( )
+    {
+        try
+        {
+            directoryWatcher = new AtlasDirectoryWatcher( file -> atlasFileChanged( file ) );
+            directoryWatcher.addDirectory( directory );
+
+            final File attributesDirectory = new File( directory, LABEL_ATTRIBUTES_FOLDER );
+            if ( attributesDirectory.isDirectory() ) directoryWatcher.addDirectory( attributesDirectory );
+
+            directoryWatcher.start();
+        }
+        catch ( IOException e )
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private void atlasFileChanged( File file )
+    {
+        // the indices of the gene search check their sources only when told so
+        IndexedSources.sourcesChanged( file.getParentFile() );
+
+        if ( file.getParentFile().getName().equals( LABEL_ATTRIBUTES_FOLDER ) )
+        {
+            attributeFileChanged( file );
+            return;
+        }
+
+        if ( file.getName().endsWith( Constants.HDF5_SUFFIX ) )
+        {
+            // the image data of a BDV source, which may be written after its XML
+            file = new File( file.getParentFile(), file.getName().replace( Constants.HDF5_SUFFIX, Constants.BDV_XML_SUFFIX ) );
+            if ( ! file.isFile() ) return;
+        }
+
+        if ( ! file.getName().endsWith( Constants.BDV_XML_SUFFIX ) && ! file.getName().endsWith( Constants.IMARIS_SUFFIX ) ) return;
+
+        final PlatySource existingSource = dataSources.get( getSourceName( file ) );
+
+        if ( existingSource != null && existingSource.getBdvStackSource() != null )
+        {
+            Utils.log( "Source changed, please restart to show the change: " + existingSource.name );
+            return;
+        }
+
+        final PlatySource source = initDataSource( file, getAttributeFiles( directory.toString() ) );
+
+        if ( source == null ) return;
+
+        Utils.log( ( existingSource == null ? "Source added: " : "Source updated: " ) + source.name );
+
+        if ( existingSource != null )
+        {
+            // searches still reading the source keep it open until they are done
+            existingSource.close();
+            GeneSearchCache.invalidateAll( existingSource );
+        }
+
+        sourcePrefetcher.prefetch( source, SourcePrefetcher.PRIORITY_BACKGROUND );
+
+        updateSourceCatalog( directory );
+
+        if ( preloadAttributeTables && source.getAttributeFile() != null ) source.loadAttributeTable( null );
+
+        if ( existingSource == null )
+        {
+            SwingUtilities.invokeLater( () -> {
+                for ( SourcesListener sourcesListener : sourcesListeners ) sourcesListener.sourceAdded( source.name );
+            } );
+        }
+    }
+
+    private void attributeFileChanged( File attributeFile )
+    {
+        final ArrayList< PlatySource > labelSources = new ArrayList<>(  );
+
+        for ( PlatySource source : dataSources.values() )
+        {
+            if ( source.isLabelSource && attributeFile.toString().contains( source.name ) ) labelSources.add( source );
+        }
+
+        for ( PlatySource source : labelSources )
+        {
+            Utils.log( "Label attributes added: " + attributeFile.getName() );
+            source.setAttributeFile( attributeFile );
+
+            if ( source.getBdvStackSource() != null ) SwingUtilities.invokeLater( () -> showAttributeTable( source ) );
+            else if ( preloadAttributeTables ) source.loadAttributeTable( null );
+        }
     }
 
     public ArrayList< PlatySource > getPlatySources( ArrayList< String > selectedSourceNames )
@@ -110,6 +294,26 @@ public class PlatyBrowser
         return mainUI;
     }
 
+    public SourcePrefetcher getSourcePrefetcher()
+    {
+        return sourcePrefetcher;
+    }
+
+    /**
+     * Moves the gene sources ahead of the sources that are opened in the background.
+     */
+    public void prefetchGeneSources( int priority )
+    {
+        final ArrayList< PlatySource > geneSources = new ArrayList<>(  );
+
+        for ( PlatySource source : dataSources.values() )
+        {
+            if ( GeneSearch.isGeneSource( source.name ) ) geneSources.add( source );
+        }
+
+        sourcePrefetcher.prefetch( geneSources, priority );
+    }
+
     public Bdv getBdv()
     {
         return bdv;
@@ -129,35 +333,55 @@ public class PlatyBrowser
         return defaultSource;
     }
 
-    private void configureObjectSources()
+    private void preloadAttributeTables()
     {
-        Set< String > names = dataSources.keySet();
+        for ( PlatySource source : dataSources.values() )
+        {
+            if ( source.isLabelSource && source.getAttributeFile() != null ) source.loadAttributeTable( null );
+        }
+    }
+
+    /**
+     * Shows the attribute table of a label source, the first time the source is shown.
+     * The table is parsed in the background, unless it is preloaded already; a progress
+     * monitor pops up if this takes long.
+     */
+    public void showAttributeTable( PlatySource source )
+    {
+        if ( ! source.isLabelSource || source.getAttributeFile() == null ) return;
+
+        if ( ! source.setAttributeTableShown() ) return;
 
-        for (  String name : names )
+        final ProgressMonitor progressMonitor = new ProgressMonitor(
+                mainUI, "Loading label attributes", source.getAttributeFile().getName(), 0, 100 );
+
+        source.loadAttributeTable( ( numBytesRead, numBytes ) ->
+                SwingUtilities.invokeLater( () -> progressMonitor.setProgress( ( int ) ( 100 * numBytesRead / numBytes ) ) )
+        ).whenComplete( ( jTable, throwable ) -> SwingUtilities.invokeLater( () ->
         {
-            PlatySource source = dataSources.get( name );
+            progressMonitor.close();
 
-            if ( source.isLabelSource && source.attributeFile != null )
+            if ( throwable != null )
             {
-                try
-                {
-                    final JTable jTable = TableUtils.loadTable( source.attributeFile, "\t" );
-                    final ObjectTablePanel objectTablePanel = new ObjectTablePanel( jTable );
-                    objectTablePanel.setCoordinateColumn( ObjectCoordinate.Label, "label_id" );
-                    objectTablePanel.setCoordinateColumn( ObjectCoordinate.X, "com_x_microns" );
-                    objectTablePanel.setCoordinateColumn( ObjectCoordinate.Y, "com_y_microns" );
-                    objectTablePanel.setCoordinateColumn( ObjectCoordinate.Z, "com_z_microns" );
-                    objectTablePanel.showPanel();
-
-                    final TableBdvConnector tableBdvConnector = new TableBdvConnector( objectTablePanel, source.bdvSelectionEventHandler );
-                    tableBdvConnector.setSelectionByAttribute( true );
-                }
-                catch ( IOException e )
-                {
-                    e.printStackTrace();
-                }
+                throwable.printStackTrace();
+                return;
             }
-        }
+
+            showObjectTablePanel( source, jTable );
+        } ) );
+    }
+
+    private void showObjectTablePanel( PlatySource source, JTable jTable )
+    {
+        final ObjectTablePanel objectTablePanel = new ObjectTablePanel( jTable );
+        objectTablePanel.setCoordinateColumn( ObjectCoordinate.Label, "label_id" );
+        objectTablePanel.setCoordinateColumn( ObjectCoordinate.X, "com_x_microns" );
+        objectTablePanel.setCoordinateColumn( ObjectCoordinate.Y, "com_y_microns" );
+        objectTablePanel.setCoordinateColumn( ObjectCoordinate.Z, "com_z_microns" );
+        objectTablePanel.showPanel();
+
+        final TableBdvConnector tableBdvConnector = new TableBdvConnector( objectTablePanel, source.bdvSelectionEventHandler );
+        tableBdvConnector.setSelectionByAttribute( true );
     }
 
     public void run()
@@ -168,16 +392,16 @@ public class PlatyBrowser
     public void removeDataSource( String dataSourceName )
     {
         // TODO: extra class for dataSources ?
-        if ( dataSources.get( dataSourceName ).bdvStackSource != null && dataSources.get( dataSourceName ).bdvStackSource.getBdvHandle() != null )
+        if ( dataSources.get( dataSourceName ).getBdvStackSource() != null && dataSources.get( dataSourceName ).getBdvStackSource().getBdvHandle() != null )
         {
-            dataSources.get( dataSourceName ).bdvStackSource.removeFromBdv();
+            dataSources.get( dataSourceName ).getBdvStackSource().removeFromBdv();
         }
     }
 
     public void setDataSourceColor( String sourceName, Color color )
     {
         // TODO: extra class for dataSources ?
-        dataSources.get( sourceName ).bdvStackSource.setColor( Utils.asArgbType( color ) );
+        dataSources.get( sourceName ).getBdvStackSource().setColor( Utils.asArgbType( color ) );
         dataSources.get( sourceName ).color = color;
     }
 
@@ -197,7 +421,7 @@ public class PlatyBrowser
 //
 //        int max = ( int ) gd.getNextNumber();
 //
-//        dataSources.get( sourceName ).bdvStackSource.setDisplayRange( 0.0, max );
+//        dataSources.get( sourceName ).getBdvStackSource().setDisplayRange( 0.0, max );
 //        dataSources.get( sourceName ).maxLutValue = max;
 
     }
@@ -257,15 +481,21 @@ public class PlatyBrowser
 
                 source.name = Constants.DEFAULT_EM_RAW_FILE_ID;
                 source.file = file;
+                source.catalogEntry = sourceCatalog.getValidEntry( file );
 
-                dataSources.put( source.name, source );
                 defaultSource = source.name;
 
                 source.color = Constants.DEFAULT_EM_RAW_COLOR;
                 source.maxLutValue = 255;
-                source.spimData = Utils.openSpimData( file );
 
+                source.startupTimings = startupTimings;
+
+                dataSources.register( source );
+                source.getSpimData();
+
+                final long start = System.nanoTime();
                 bdv = Utils.showSourceInBdv( dataSources.get( defaultSource ), bdv );
+                startupTimings.record( StartupTimings.Phase.UI_CONSTRUCTION, start );
                 bdv.getBdvHandle().getViewerPanel().setInterpolation( Interpolation.NLINEAR );
 
 
@@ -278,134 +508,189 @@ public class PlatyBrowser
 
     }
 
-    private void initDataSources( ArrayList< File > imageFiles, ArrayList< File > attributeFiles, Bdv bdv )
+    private void initDataSources( ArrayList< File > imageFiles, ArrayList< File > attributeFiles )
     {
         for ( File file : imageFiles )
         {
-            final String fileName = file.getName();
+            initDataSource( file, attributeFiles );
+        }
+    }
 
-            if ( fileName.contains( Constants.DEFAULT_EM_RAW_FILE_ID ) )
-            {
-               continue; // has been already initialised before
-            }
+    /**
+     * @return the source, or null if the file is not a source or is the default source
+     */
+    private PlatySource initDataSource( File file, ArrayList< File > attributeFiles )
+    {
+        final String fileName = file.getName();
 
-            if ( ! fileName.endsWith( Constants.BDV_XML_SUFFIX ) && ! fileName.endsWith( Constants.IMARIS_SUFFIX ) )
-            {
-                continue;
-            }
+        if ( fileName.contains( Constants.DEFAULT_EM_RAW_FILE_ID ) )
+        {
+           return null; // has been already initialised before
+        }
 
-            PlatySource source = new PlatySource();
+        if ( ! fileName.endsWith( Constants.BDV_XML_SUFFIX ) && ! fileName.endsWith( Constants.IMARIS_SUFFIX ) )
+        {
+            return null;
+        }
+
+        PlatySource source = new PlatySource();
+
+        source.file = file;
+
+        source.startupTimings = startupTimings;
+
+        source.catalogEntry = sourceCatalog.getValidEntry( file );
 
-            source.name = getSourceName( file );
+        source.name = source.catalogEntry != null ? source.catalogEntry.name : getSourceName( file );
 
-            dataSources.put( source.name, source );
+        if ( fileName.contains( Constants.EM_FILE_ID ) )
+        {
+            source.maxLutValue = 255;
+        }
+        else
+        {
+            source.maxLutValue = 1000; // to render the binary prospr more transparent
+        }
 
-            source.file = file;
 
-            if ( fileName.contains( Constants.EM_FILE_ID ) )
+        if ( fileName.contains( Constants.EM_FILE_ID ) )
+        {
+            if ( fileName.endsWith( Constants.BDV_XML_SUFFIX ) )
             {
-                source.maxLutValue = 255;
+                // opening the EM sources before the ProSPr sources speeds up showing them
+                sourcePrefetcher.prefetch( source, SourcePrefetcher.PRIORITY_VIEWER );
             }
-            else
+            else if ( fileName.contains( Constants.IMARIS_SUFFIX ) )
             {
-                source.maxLutValue = 1000; // to render the binary prospr more transparent
+                double[] calibration = new double[] { 0.01, 0.01, 0.025 };
+                final long start = System.nanoTime();
+                source.spimDataMinimal = openImaris( file, calibration );
+                startupTimings.record( StartupTimings.Phase.HDF5_OPENING, start );
+                source.isSpimDataMinimal = true;
             }
 
 
-            if ( fileName.contains( Constants.EM_FILE_ID ) )
+            if ( fileName.contains( Constants.EM_RAW_FILE_ID )  )
             {
-                if ( fileName.endsWith( Constants.BDV_XML_SUFFIX ) )
-                {
-                    source.spimData = Utils.openSpimData( file );
-                }
-                else if ( fileName.contains( Constants.IMARIS_SUFFIX ) )
-                {
-                    double[] calibration = new double[] { 0.01, 0.01, 0.025 };
-                    source.spimDataMinimal = openImaris( file, calibration );
-                    source.isSpimDataMinimal = true;
-                }
-
-
-                if ( fileName.contains( Constants.EM_RAW_FILE_ID )  )
-                {
-                    source.color = Constants.DEFAULT_EM_RAW_COLOR;
-                }
-
-                if ( fileName.contains( Constants.EM_SEGMENTED_FILE_ID ) )
-                {
-                    source.color = Constants.DEFAULT_EM_SEGMENTATION_COLOR;
-                }
-
-                if ( fileName.contains( Constants.LABELS_FILE_ID ) )
-                {
-                	source.labelSource = new SelectableARGBConvertedRealSource(
-							new VolatileSpimSource(
-									source.spimData,
-									0,
-									source.name ) );
+                source.color = Constants.DEFAULT_EM_RAW_COLOR;
+            }
 
-					source.bdvSelectionEventHandler = new BdvSelectionEventHandler(
-                            bdv,
-							source.labelSource );
+            if ( fileName.contains( Constants.EM_SEGMENTED_FILE_ID ) )
+            {
+                source.color = Constants.DEFAULT_EM_SEGMENTATION_COLOR;
+            }
 
+            if ( fileName.contains( Constants.LABELS_FILE_ID ) )
+            {
+					// the label source is created when first shown, see Utils.showSourceInBdv, such that the image data is opened only then
 					source.isLabelSource = true;
 
-					source.spimData = null;
-
 					source.maxLutValue = 600;
 
-                    for ( File attributeFile : attributeFiles )
+                for ( File attributeFile : attributeFiles )
+                {
+                    if ( attributeFile.toString().contains( source.name ) )
                     {
-                        if ( attributeFile.toString().contains( source.name ) )
-                        {
-                            // doing like this (i.e. without a break) should take the latest version
-                            source.attributeFile = attributeFile;
-                        }
+                        // doing like this (i.e. without a break) should take the latest version
+                        source.setAttributeFile( attributeFile );
                     }
                 }
             }
-            else // gene
+        }
+        else // gene
+        {
+            source.color = Constants.DEFAULT_GENE_COLOR;
+
+            if ( ! fileName.contains( Constants.NEW_PROSPR ) && ! fileName.contains( Constants.AVG_PROSPR ) )
             {
-                source.color = Constants.DEFAULT_GENE_COLOR;
+                source.isRegisteredToEmWhenOpened = true;
             }
-
         }
 
+        // only now, such that other threads see the source fully configured
+        dataSources.register( source );
+
+        return source;
+    }
+
+    /**
+     * Opens the ProSPr sources in the background; sources needed by the viewer or
+     * a gene search are opened first, see {@link SourcePrefetcher}.
+     * Sources in the source catalog are opened on demand only, as their metadata is known already.
+     */
+    private void prefetchProsprSources( )
+    {
+        for ( PlatySource source : dataSources.values() )
+        {
+            if ( source.file.getName().contains( Constants.EM_FILE_ID ) ) continue;
+
+            if ( source.catalogEntry != null && source.catalogEntry.isValid() ) continue;
+
+            sourcePrefetcher.prefetch( source, SourcePrefetcher.PRIORITY_BACKGROUND );
+        }
     }
 
 
-    private void fetchProsprSources( )
+    /**
+     * Adds the sources that are not in the source catalog yet, once they are opened,
+     * and removes the sources that no longer exist.
+     */
+    private void updateSourceCatalog( File directory )
     {
-        Set< String > names = dataSources.keySet();
+        final ArrayList< PlatySource > sources = new ArrayList<>(  );
+        final ArrayList< CompletableFuture< SpimData > > newSources = new ArrayList<>(  );
 
-        for (  String name : names )
+        for ( PlatySource source : dataSources.values() )
         {
-            PlatySource source = dataSources.get( name );
+            if ( ! source.file.getName().endsWith( Constants.BDV_XML_SUFFIX ) ) continue;
 
-            if ( source.file.getName().contains( Constants.EM_FILE_ID ) ) continue;
+            sources.add( source );
+            if ( source.catalogEntry == null ) newSources.add( source.getSpimDataFuture() );
+        }
 
-            if ( source.file.getName().endsWith( Constants.BDV_XML_SUFFIX ) )
-            {
-                if ( source.spimData == null )
-                {
-                    source.spimData = Utils.openSpimData( source.file );
+        Utils.log( "Sources taken from the source catalog: " + ( sources.size() - newSources.size() ) + "/" + sources.size() );
 
-//                    if ( labelSource.file.getName().contains( Constants.NEW_PROSPR ) )
-//                    {
-                    if ( ! source.file.getName().contains( Constants.NEW_PROSPR )
-                            && ! source.file.getName().contains( Constants.AVG_PROSPR ) )
-                    {
-                        ProSPrRegistration.setInverseEmSimilarityTransform( source );
-                    }
+        if ( newSources.size() == 0 && sources.size() == sourceCatalog.size() ) return;
 
-//                    }
-                }
+        CompletableFuture.allOf( newSources.toArray( new CompletableFuture[ 0 ] ) )
+                .thenRunAsync( () -> writeSourceCatalog( directory ), sourceCatalogWriter );
+    }
+
+    /**
+     * Writes the sources registered at the time of writing, rather than those of the update that
+     * requested it, such that a late write of an earlier update does not bring back replaced sources.
+     * Sources that are still opening are added by the write of their own update.
+     */
+    private void writeSourceCatalog( File directory )
+    {
+        final ArrayList< SourceCatalog.Entry > entries = new ArrayList<>(  );
+
+        for ( PlatySource source : dataSources.values() )
+        {
+            if ( ! source.file.getName().endsWith( Constants.BDV_XML_SUFFIX ) ) continue;
+
+            if ( source.catalogEntry != null )
+            {
+                entries.add( source.catalogEntry );
+                continue;
             }
+
+            final SpimData spimData = source.getSpimDataFuture().getNow( null );
+            if ( spimData != null ) entries.add( SourceCatalog.Entry.create( source.name, source.file, spimData ) );
         }
-    }
 
+        try
+        {
+            SourceCatalog.create( directory, entries ).write();
+            Utils.log( "Source catalog written: " + SourceCatalog.getFile( directory ) );
+        }
+        catch ( IOException e )
+        {
+            e.printStackTrace();
+        }
+    }
 
-    private static String getSourceName( File file )
+    public static String getSourceName( File file )
     {
         String dataSourceName = null;
 
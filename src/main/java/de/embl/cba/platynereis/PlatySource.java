@@ -1,30 +1,67 @@
 package de.embl.cba.platynereis;
 
+import bdv.ViewerImgLoader;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.util.BdvStackSource;
 import de.embl.cba.bdv.utils.selection.BdvSelectionEventHandler;
 import de.embl.cba.bdv.utils.sources.SelectableARGBConvertedRealSource;
+import de.embl.cba.platynereis.utils.Utils;
 import mpicbg.spim.data.SpimData;
-import mpicbg.spim.data.generic.AbstractSpimData;
+import net.imglib2.realtransform.AffineTransform3D;
 
+import javax.swing.*;
 import java.awt.*;
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PlatySource
 {
+    /**
+     * DISCOVERED, then OPENING, then READY or FAILED; a source is opened only once.
+     */
+    public enum State
+    {
+        DISCOVERED,
+        OPENING,
+        READY,
+        FAILED
+    }
+
+    public interface StateListener
+    {
+        void stateChanged( PlatySource source, State state );
+    }
+
+    // Image data, opened lazily, see getSpimData() and SourcePrefetcher
+    private final CompletableFuture< SpimData > spimData = new CompletableFuture<>();
+    private final AtomicReference< State > state = new AtomicReference<>( State.DISCOVERED );
+    private final List< StateListener > stateListeners = new CopyOnWriteArrayList<>();
 
-    public SpimData spimData;
     public SpimDataMinimal spimDataMinimal;
     public boolean isSpimDataMinimal = false;
 
-    public SelectableARGBConvertedRealSource labelSource;
+    // old ProSPr sources are registered to the EM when opened
+    public boolean isRegisteredToEmWhenOpened = false;
+
+    // where opening the source takes its time, may be null
+    public StartupTimings startupTimings;
+
+    // metadata of a previous session, if the file did not change since
+    public SourceCatalog.Entry catalogEntry;
+
+    // created when the source is first shown, see Utils.showSourceInBdv
+    private volatile SelectableARGBConvertedRealSource labelSource;
 
 
     public BdvSelectionEventHandler bdvSelectionEventHandler;
     public boolean isLabelSource = false;
 
     // Display
-    public BdvStackSource bdvStackSource;
+    private volatile BdvStackSource bdvStackSource;
 
     // Other
     public File file;
@@ -33,5 +70,309 @@ public class PlatySource
     public Color color;
     public String name;
 
-    public File attributeFile;
-}
\ No newline at end of file
+    private volatile File attributeFile;
+
+    // Label attributes, parsed once the source is shown or preloaded, see PlatyBrowser.showAttributeTable
+    private CompletableFuture< JTable > attributeTable;
+    private List< LabelAttributeTable.ProgressListener > attributeTableProgressListeners;
+    private boolean isAttributeTableShown;
+
+    // searches reading the image data, see retain()
+    private int numUsers;
+    private boolean isCloseRequested;
+
+    /**
+     * Returns the image data, opening it in the calling thread if no other thread does so yet.
+     *
+     * @return null if the image data could not be opened
+     */
+    public SpimData getSpimData()
+    {
+        openUnlessOpening();
+        return spimData.join();
+    }
+
+    /**
+     * Completes once the image data is opened, without opening it.
+     */
+    public CompletableFuture< SpimData > getSpimDataFuture()
+    {
+        return spimData;
+    }
+
+    public boolean isReady()
+    {
+        return spimData.isDone();
+    }
+
+    public State getState()
+    {
+        return state.get();
+    }
+
+    /**
+     * The listener is called on the thread that changes the state; if the source is
+     * READY or FAILED already, it is called right away.
+     */
+    public synchronized void addStateListener( StateListener stateListener )
+    {
+        stateListeners.add( stateListener );
+
+        final State current = state.get();
+        if ( current == State.READY || current == State.FAILED ) stateListener.stateChanged( this, current );
+    }
+
+    /**
+     * Taken from the source catalog, if possible, such that the image data need not be opened.
+     */
+    public double[][] getMipmapResolutions()
+    {
+        if ( catalogEntry != null ) return catalogEntry.mipmapResolutions;
+
+        return ( ( ViewerImgLoader ) getSpimData().getSequenceDescription().getImgLoader() ).getSetupImgLoader( 0 ).getMipmapResolutions();
+    }
+
+    /**
+     * The transform from voxel to micrometer units, including registrations.
+     * Taken from the source catalog, if possible, such that the image data need not be opened.
+     */
+    public AffineTransform3D getSourceTransform()
+    {
+        if ( catalogEntry != null ) return catalogEntry.sourceTransform.copy();
+
+        return getSpimData().getViewRegistrations().getViewRegistration( 0, 0 ).getModel().copy();
+    }
+
+    /**
+     * Sets image data that is opened already, e.g. created in memory, instead of opening the file.
+     *
+     * @throws IllegalStateException if the source is opened, or being opened, already
+     */
+    public void setSpimData( SpimData spimData )
+    {
+        if ( ! state.compareAndSet( State.DISCOVERED, State.OPENING ) )
+        {
+            throw new IllegalStateException( "Image data of " + name + " cannot be set, the source is " + state.get() + " already." );
+        }
+
+        notifyStateListeners( State.OPENING );
+
+        this.spimData.complete( spimData );
+        setState( spimData != null ? State.READY : State.FAILED );
+    }
+
+    /**
+     * Parses the attribute table in a background thread, unless this is done already.
+     *
+     * @param progressListener is also called if the table is being parsed already, e.g. preloaded; may be null
+     */
+    public synchronized CompletableFuture< JTable > loadAttributeTable( LabelAttributeTable.ProgressListener progressListener )
+    {
+        if ( attributeTable != null )
+        {
+            if ( progressListener != null && ! attributeTable.isDone() ) attributeTableProgressListeners.add( progressListener );
+            return attributeTable;
+        }
+
+        final CompletableFuture< JTable > table = new CompletableFuture<>();
+        final File file = attributeFile;
+
+        final List< LabelAttributeTable.ProgressListener > progressListeners = new CopyOnWriteArrayList<>();
+        if ( progressListener != null ) progressListeners.add( progressListener );
+
+        new Thread( () -> {
+            try
+            {
+                final long start = System.nanoTime();
+                table.complete( LabelAttributeTable.load( file, ( numBytesRead, numBytes ) -> {
+                    for ( LabelAttributeTable.ProgressListener listener : progressListeners )
+                        listener.progress( numBytesRead, numBytes );
+                } ) );
+                record( StartupTimings.Phase.TABLE_LOADING, start );
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                table.completeExceptionally( e );
+            }
+        }, "PlatyBrowser attribute table " + file.getName() ).start();
+
+        attributeTable = table;
+        attributeTableProgressListeners = progressListeners;
+        return attributeTable;
+    }
+
+    /**
+     * @return true only for the first call after the attribute file was set
+     */
+    public synchronized boolean setAttributeTableShown()
+    {
+        if ( isAttributeTableShown ) return false;
+        isAttributeTableShown = true;
+        return true;
+    }
+
+    public SelectableARGBConvertedRealSource getLabelSource()
+    {
+        return labelSource;
+    }
+
+    public void setLabelSource( SelectableARGBConvertedRealSource labelSource )
+    {
+        this.labelSource = labelSource;
+    }
+
+    /**
+     * @return null unless the source is shown
+     */
+    public BdvStackSource getBdvStackSource()
+    {
+        return bdvStackSource;
+    }
+
+    public void setBdvStackSource( BdvStackSource bdvStackSource )
+    {
+        this.bdvStackSource = bdvStackSource;
+    }
+
+    public File getAttributeFile()
+    {
+        return attributeFile;
+    }
+
+    public synchronized void setAttributeFile( File attributeFile )
+    {
+        this.attributeFile = attributeFile;
+        attributeTable = null;
+        isAttributeTableShown = false;
+    }
+
+    /**
+     * Keeps the image data open until {@link #release()}, also if the source is closed meanwhile,
+     * e.g. as it was replaced while a search reads it.
+     *
+     * @return false if the source has been closed already, such that it is not retained
+     */
+    public synchronized boolean retain()
+    {
+        if ( isCloseRequested ) return false;
+        numUsers++;
+        return true;
+    }
+
+    /**
+     * Closes the image data if the source was closed while it was retained.
+     */
+    public void release()
+    {
+        synchronized ( this )
+        {
+            if ( numUsers == 0 ) throw new IllegalStateException( name + " released more often than retained." );
+            if ( --numUsers > 0 || ! isCloseRequested ) return;
+        }
+
+        closeSpimData();
+    }
+
+    /**
+     * Gives the HDF5 reader of opened image data back to the {@link Hdf5ReaderPool}, once no search
+     * retains the source any more; the image data then stops working.
+     */
+    public void close()
+    {
+        synchronized ( this )
+        {
+            // the pooled reader must be given back only once
+            if ( isCloseRequested ) return;
+            isCloseRequested = true;
+            if ( numUsers > 0 ) return;
+        }
+
+        closeSpimData();
+    }
+
+    private void closeSpimData()
+    {
+        // a source that is being opened is closed once it is open
+        spimData.thenAccept( opened -> {
+            if ( opened != null ) Utils.closeSpimData( opened );
+        } );
+    }
+
+    void openUnlessOpening()
+    {
+        if ( ! state.compareAndSet( State.DISCOVERED, State.OPENING ) ) return;
+
+        notifyStateListeners( State.OPENING );
+
+        if ( file == null || ! file.getName().endsWith( Constants.BDV_XML_SUFFIX ) )
+        {
+            // Imaris sources are opened when they are discovered
+            spimData.complete( null );
+            setState( spimDataMinimal != null ? State.READY : State.FAILED );
+            return;
+        }
+
+        try
+        {
+            long start = System.nanoTime();
+            final SpimData opened = Utils.openSpimData( file );
+            record( StartupTimings.Phase.XML_PARSING, start );
+
+            if ( opened != null && opened.getSequenceDescription().getImgLoader() instanceof ViewerImgLoader )
+            {
+                // the HDF5 file is opened with the first setup image loader
+                start = System.nanoTime();
+                ( ( ViewerImgLoader ) opened.getSequenceDescription().getImgLoader() ).getSetupImgLoader( 0 );
+                record( StartupTimings.Phase.HDF5_OPENING, start );
+            }
+
+            start = System.nanoTime();
+            if ( opened != null && catalogEntry != null )
+            {
+                catalogEntry.setSourceTransform( opened );
+            }
+            else if ( opened != null && isRegisteredToEmWhenOpened )
+            {
+                ProSPrRegistration.setInverseEmSimilarityTransform( opened );
+            }
+            record( StartupTimings.Phase.REGISTRATION, start );
+
+            spimData.complete( opened );
+            setState( opened != null ? State.READY : State.FAILED );
+        }
+        catch ( Throwable e )
+        {
+            // also for errors of the native HDF5 library, such that threads waiting in getSpimData() return
+            e.printStackTrace();
+            spimData.complete( null );
+            setState( State.FAILED );
+            if ( e instanceof Error ) throw ( Error ) e;
+        }
+    }
+
+    private synchronized void setState( State newState )
+    {
+        state.set( newState );
+        notifyStateListeners( newState );
+    }
+
+    private void notifyStateListeners( State newState )
+    {
+        for ( StateListener stateListener : stateListeners )
+        {
+            try
+            {
+                stateListener.stateChanged( this, newState );
+            }
+            catch ( RuntimeException e )
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void record( StartupTimings.Phase phase, long start )
+    {
+        if ( startupTimings != null ) startupTimings.record( phase, start );
+    }
+}
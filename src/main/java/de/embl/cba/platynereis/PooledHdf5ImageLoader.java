@@ -0,0 +1,40 @@
+package de.embl.cba.platynereis;
+
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.Partition;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A BDV HDF5 image loader that reads with a shared reader of the {@link Hdf5ReaderPool}
+ * instead of opening its own, see {@link XmlIoPooledHdf5ImageLoader}.
+ */
+public class PooledHdf5ImageLoader extends Hdf5ImageLoader
+{
+	private final IHDF5Reader pooledReader;
+	private final AtomicBoolean isReleased = new AtomicBoolean();
+
+	public PooledHdf5ImageLoader( File hdf5File, ArrayList< Partition > partitions, AbstractSequenceDescription< ?, ?, ? > sequenceDescription )
+	{
+		this( hdf5File, Hdf5ReaderPool.acquire( hdf5File ), partitions, sequenceDescription );
+	}
+
+	private PooledHdf5ImageLoader( File hdf5File, IHDF5Reader pooledReader, ArrayList< Partition > partitions, AbstractSequenceDescription< ?, ?, ? > sequenceDescription )
+	{
+		super( hdf5File, pooledReader, partitions, sequenceDescription, false );
+		this.pooledReader = pooledReader;
+	}
+
+	/**
+	 * Clears the cache and gives the reader back to the pool, once; images obtained before stop working.
+	 */
+	public void release()
+	{
+		close();
+		if ( isReleased.compareAndSet( false, true ) ) Hdf5ReaderPool.release( pooledReader );
+	}
+}
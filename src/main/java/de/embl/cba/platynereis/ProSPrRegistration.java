@@ -4,6 +4,7 @@ import bdv.BigDataViewer;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.tools.brightness.ConverterSetup;
 import bdv.viewer.SourceAndConverter;
+import mpicbg.spim.data.generic.AbstractSpimData;
 import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.FinalRealInterval;
@@ -51,9 +52,9 @@ public class ProSPrRegistration
     {
         RandomAccessibleInterval< ? > image;
 
-        if ( source.spimData != null )
+        if ( ! source.isSpimDataMinimal )
         {
-            image = source.spimData.getSequenceDescription().getImgLoader().getSetupImgLoader( 0 ).getImage( 0 );
+            image = source.getSpimData().getSequenceDescription().getImgLoader().getSetupImgLoader( 0 ).getImage( 0 );
         }
         else
         {
@@ -80,9 +81,9 @@ public class ProSPrRegistration
     public static VoxelDimensions getVoxelDimensions( PlatySource source )
     {
 
-        if ( source.spimData != null )
+        if ( ! source.isSpimDataMinimal )
         {
-            return source.spimData.getSequenceDescription().getViewSetupsOrdered().get( 0 ).getVoxelSize();
+            return source.getSpimData().getSequenceDescription().getViewSetupsOrdered().get( 0 ).getVoxelSize();
         }
         else
         {
@@ -103,9 +104,9 @@ public class ProSPrRegistration
         ViewRegistration viewRegistration;
 
         // the ViewRegistration in the file contains the scaling relative to 1 micrometer
-        if ( source.spimData != null )
+        if ( ! source.isSpimDataMinimal )
         {
-            viewRegistration = source.spimData.getViewRegistrations().getViewRegistrationsOrdered( ).get( 0 );
+            viewRegistration = source.getSpimData().getViewRegistrations().getViewRegistrationsOrdered( ).get( 0 );
         }
         else
         {
@@ -136,9 +137,9 @@ public class ProSPrRegistration
         ViewRegistration viewRegistration;
 
         // the ViewRegistration in the file contains the scaling relative to 1 micrometer
-        if ( source.spimData != null )
+        if ( ! source.isSpimDataMinimal )
         {
-            viewRegistration = source.spimData.getViewRegistrations().getViewRegistrationsOrdered( ).get( 0 );
+            viewRegistration = source.getSpimData().getViewRegistrations().getViewRegistrationsOrdered( ).get( 0 );
         }
         else
         {
@@ -162,6 +163,16 @@ public class ProSPrRegistration
 
     }
 
+    /**
+     * As {@link #setInverseEmSimilarityTransform(PlatySource)}, for image data that is being opened.
+     */
+    public static void setInverseEmSimilarityTransform( AbstractSpimData< ? > spimData )
+    {
+        final AffineTransform3D viewRegistrationAffineTransform = spimData.getViewRegistrations().getViewRegistrationsOrdered( ).get( 0 ).getModel();
+
+        viewRegistrationAffineTransform.preConcatenate( getTransformationFromEmToProsprInMicrometerUnits().inverse() );
+    }
+
     public static AffineTransform3D getTransformationFromEmToProsprInMicrometerUnits( )
     {
         if ( emToProsprInMicrometerUnits == null )
@@ -0,0 +1,274 @@
+package de.embl.cba.platynereis;
+
+import bdv.ViewerImgLoader;
+import bdv.ViewerSetupImgLoader;
+import de.embl.cba.platynereis.utils.FileUtils;
+import de.embl.cba.platynereis.utils.Utils;
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewTransformAffine;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Metadata of all BDV sources of an atlas directory, kept between sessions.
+ *
+ * For each source the catalog holds its name, the modification time and length of its XML,
+ * the modification time of its HDF5 file, its mipmap resolutions and dimensions, its voxel size
+ * and its final source transform, i.e. including the ProSPr registration. Entries whose XML or
+ * image data changed are ignored, such that only these sources are parsed again.
+ *
+ * As atlas directories are often shared and read-only, catalogs are stored in the user's home.
+ */
+public class SourceCatalog
+{
+	public static final String FOLDER = ".platybrowser";
+
+	private static final int MAGIC = 0x50534332; // "PSC2"
+
+	private final File directory;
+	private final Map< File, Entry > entries;
+
+	public static class Entry
+	{
+		public final String name;
+		public final File file;
+		public final long lastModified;
+		public final long length;
+		public final long hdf5LastModified;
+		public final double[][] mipmapResolutions;
+		public final long[][] mipmapDimensions;
+		public final String voxelUnit;
+		public final double[] voxelSize;
+		public final AffineTransform3D sourceTransform;
+
+		private Entry( String name, File file, long lastModified, long length, long hdf5LastModified, double[][] mipmapResolutions, long[][] mipmapDimensions,
+					   String voxelUnit, double[] voxelSize, AffineTransform3D sourceTransform )
+		{
+			this.name = name;
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.hdf5LastModified = hdf5LastModified;
+			this.mipmapResolutions = mipmapResolutions;
+			this.mipmapDimensions = mipmapDimensions;
+			this.voxelUnit = voxelUnit;
+			this.voxelSize = voxelSize;
+			this.sourceTransform = sourceTransform;
+		}
+
+		/**
+		 * Creates the entry of an opened source; the image data is not modified.
+		 */
+		public static Entry create( String name, File file, SpimData spimData )
+		{
+			final ViewerSetupImgLoader< ?, ? > setupImgLoader =
+					( ( ViewerImgLoader ) spimData.getSequenceDescription().getImgLoader() ).getSetupImgLoader( 0 );
+
+			final double[][] mipmapResolutions = setupImgLoader.getMipmapResolutions();
+			final long[][] mipmapDimensions = new long[ mipmapResolutions.length ][];
+			for ( int level = 0; level < mipmapResolutions.length; ++level )
+			{
+				mipmapDimensions[ level ] = Intervals.dimensionsAsLongArray( setupImgLoader.getImage( 0, level ) );
+			}
+
+			final VoxelDimensions voxelDimensions = spimData.getSequenceDescription().getViewSetupsOrdered().get( 0 ).getVoxelSize();
+			final double[] voxelSize = new double[ voxelDimensions.numDimensions() ];
+			voxelDimensions.dimensions( voxelSize );
+
+			return new Entry(
+					name,
+					file.getAbsoluteFile(),
+					file.lastModified(),
+					file.length(),
+					FileUtils.getHdf5File( file ).lastModified(),
+					mipmapResolutions,
+					mipmapDimensions,
+					voxelDimensions.unit(),
+					voxelSize,
+					spimData.getViewRegistrations().getViewRegistration( 0, 0 ).getModel().copy() );
+		}
+
+		/**
+		 * False once the XML or the HDF5 file changed, e.g. when the image data is rewritten with other mipmap levels.
+		 */
+		public boolean isValid()
+		{
+			return file.lastModified() == lastModified
+					&& file.length() == length
+					&& FileUtils.getHdf5File( file ).lastModified() == hdf5LastModified;
+		}
+
+		/**
+		 * Replaces the transforms of the image data by the catalogued source transform,
+		 * such that registrations need not be applied again.
+		 */
+		public void setSourceTransform( SpimData spimData )
+		{
+			final ViewRegistration viewRegistration = spimData.getViewRegistrations().getViewRegistration( 0, 0 );
+			viewRegistration.identity();
+			viewRegistration.preconcatenateTransform( new ViewTransformAffine( "catalog", sourceTransform.copy() ) );
+		}
+	}
+
+	private SourceCatalog( File directory, Map< File, Entry > entries )
+	{
+		this.directory = directory;
+		this.entries = entries;
+	}
+
+	/**
+	 * Returns the catalog of the directory; it is empty if there is none yet or it cannot be read.
+	 */
+	public static SourceCatalog forDirectory( File directory )
+	{
+		final File file = getFile( directory );
+
+		if ( file.exists() )
+		{
+			try
+			{
+				return open( directory, file );
+			}
+			catch ( IOException e )
+			{
+				Utils.log( "Could not read the source catalog " + file + ": " + e.getMessage() );
+			}
+		}
+
+		return new SourceCatalog( directory, new LinkedHashMap<>() );
+	}
+
+	/**
+	 * Returns a catalog holding the given entries.
+	 */
+	public static SourceCatalog create( File directory, Collection< Entry > entries )
+	{
+		final Map< File, Entry > entryMap = new LinkedHashMap<>();
+		for ( Entry entry : entries ) entryMap.put( entry.file, entry );
+		return new SourceCatalog( directory, entryMap );
+	}
+
+	public static File getFile( File directory )
+	{
+		final String id = Integer.toHexString( directory.getAbsolutePath().hashCode() );
+		return new File( new File( System.getProperty( "user.home" ), FOLDER ), "source-catalog-" + id + ".bin" );
+	}
+
+	/**
+	 * @return the entry of an XML file, or null if there is none or the file changed since
+	 */
+	public Entry getValidEntry( File file )
+	{
+		final Entry entry = entries.get( file.getAbsoluteFile() );
+		if ( entry == null || ! entry.isValid() ) return null;
+		return entry;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	private static SourceCatalog open( File directory, File file ) throws IOException
+	{
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+		{
+			if ( in.readInt() != MAGIC )
+			{
+				throw new IOException( "Not a source catalog: " + file );
+			}
+
+			// the file name only holds a hash of the directory
+			if ( ! in.readUTF().equals( directory.getAbsolutePath() ) )
+			{
+				throw new IOException( "Catalog of another directory: " + file );
+			}
+
+			final Map< File, Entry > entries = new LinkedHashMap<>();
+
+			final int numEntries = in.readInt();
+			for ( int i = 0; i < numEntries; ++i )
+			{
+				final String name = in.readUTF();
+				final File sourceFile = new File( in.readUTF() );
+				final long lastModified = in.readLong();
+				final long length = in.readLong();
+				final long hdf5LastModified = in.readLong();
+
+				final int numLevels = in.readInt();
+				final double[][] mipmapResolutions = new double[ numLevels ][];
+				final long[][] mipmapDimensions = new long[ numLevels ][];
+				for ( int level = 0; level < numLevels; ++level )
+				{
+					mipmapResolutions[ level ] = new double[]{ in.readDouble(), in.readDouble(), in.readDouble() };
+					mipmapDimensions[ level ] = new long[]{ in.readLong(), in.readLong(), in.readLong() };
+				}
+
+				final String voxelUnit = in.readUTF();
+				final double[] voxelSize = new double[]{ in.readDouble(), in.readDouble(), in.readDouble() };
+
+				final double[] rowPacked = new double[ 12 ];
+				for ( int j = 0; j < 12; ++j ) rowPacked[ j ] = in.readDouble();
+				final AffineTransform3D sourceTransform = new AffineTransform3D();
+				sourceTransform.set( rowPacked );
+
+				entries.put( sourceFile, new Entry( name, sourceFile, lastModified, length, hdf5LastModified,
+						mipmapResolutions, mipmapDimensions, voxelUnit, voxelSize, sourceTransform ) );
+			}
+
+			return new SourceCatalog( directory, entries );
+		}
+	}
+
+	public void write() throws IOException
+	{
+		final File file = getFile( directory );
+		final File tmpFile = new File( file.getParentFile(), file.getName() + ".tmp" );
+
+		if ( ! file.getParentFile().isDirectory() && ! file.getParentFile().mkdirs() )
+		{
+			throw new IOException( "Could not create " + file.getParentFile() );
+		}
+
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeUTF( directory.getAbsolutePath() );
+			out.writeInt( entries.size() );
+
+			for ( Entry entry : entries.values() )
+			{
+				out.writeUTF( entry.name );
+				out.writeUTF( entry.file.getAbsolutePath() );
+				out.writeLong( entry.lastModified );
+				out.writeLong( entry.length );
+				out.writeLong( entry.hdf5LastModified );
+
+				out.writeInt( entry.mipmapResolutions.length );
+				for ( int level = 0; level < entry.mipmapResolutions.length; ++level )
+				{
+					for ( int d = 0; d < 3; ++d ) out.writeDouble( entry.mipmapResolutions[ level ][ d ] );
+					for ( int d = 0; d < 3; ++d ) out.writeLong( entry.mipmapDimensions[ level ][ d ] );
+				}
+
+				out.writeUTF( entry.voxelUnit );
+				for ( int d = 0; d < 3; ++d ) out.writeDouble( entry.voxelSize[ d ] );
+
+				final double[] rowPacked = entry.sourceTransform.getRowPackedCopy();
+				for ( int j = 0; j < 12; ++j ) out.writeDouble( rowPacked[ j ] );
+			}
+		}
+
+		if ( ( file.exists() && ! file.delete() ) || ! tmpFile.renameTo( file ) )
+		{
+			throw new IOException( "Could not write " + file );
+		}
+	}
+}
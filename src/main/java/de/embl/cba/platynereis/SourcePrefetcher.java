@@ -0,0 +1,94 @@
+package de.embl.cba.platynereis;
+
+import mpicbg.spim.data.SpimData;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens the image data of sources on a bounded pool of background threads.
+ *
+ * Requests are served by decreasing priority and, within one priority, in the order in which
+ * they were made. Requesting a source again with a higher priority moves it ahead of the queue.
+ * Sources that are open or being opened, e.g. by a caller of {@link PlatySource#getSpimData()},
+ * are skipped.
+ */
+public class SourcePrefetcher
+{
+	public static final int PRIORITY_BACKGROUND = 0;
+	public static final int PRIORITY_GENE_SEARCH = 1;
+	public static final int PRIORITY_VIEWER = 2;
+
+	private final ThreadPoolExecutor executorService;
+	private final AtomicLong numRequests = new AtomicLong();
+
+	public SourcePrefetcher( int numThreads )
+	{
+		executorService = new ThreadPoolExecutor(
+				numThreads,
+				numThreads,
+				10, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<>(),
+				runnable -> {
+					final Thread thread = new Thread( runnable, "PlatyBrowser source prefetcher" );
+					thread.setDaemon( true );
+					return thread;
+				} );
+
+		executorService.allowCoreThreadTimeOut( true );
+	}
+
+	public CompletableFuture< SpimData > prefetch( PlatySource source, int priority )
+	{
+		if ( ! source.isReady() )
+		{
+			executorService.execute( new Request( source, priority, numRequests.getAndIncrement() ) );
+		}
+
+		return source.getSpimDataFuture();
+	}
+
+	public void prefetch( Collection< PlatySource > sources, int priority )
+	{
+		for ( PlatySource source : sources )
+		{
+			prefetch( source, priority );
+		}
+	}
+
+	public void shutdown()
+	{
+		executorService.shutdownNow();
+	}
+
+	private static class Request implements Runnable, Comparable< Request >
+	{
+		private final PlatySource source;
+		private final int priority;
+		private final long index;
+
+		Request( PlatySource source, int priority, long index )
+		{
+			this.source = source;
+			this.priority = priority;
+			this.index = index;
+		}
+
+		@Override
+		public void run()
+		{
+			source.openUnlessOpening();
+		}
+
+		@Override
+		public int compareTo( Request other )
+		{
+			if ( priority != other.priority ) return Integer.compare( other.priority, priority );
+			return Long.compare( index, other.index );
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package de.embl.cba.platynereis;
+
+import mpicbg.spim.data.SpimData;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The sources of an atlas by name, in the order in which they were registered.
+ *
+ * Sources are registered at startup and, rarely, by the directory watcher, while they are read
+ * from many threads. Each registration therefore publishes a new copy of the map, such that
+ * iterating never needs a lock and never sees a source that is not fully configured.
+ * The map cannot be modified but with {@link #register(PlatySource)}.
+ */
+public class SourceRegistry extends AbstractMap< String, PlatySource >
+{
+	private volatile Map< String, PlatySource > sources = Collections.emptyMap();
+	private final List< PlatySource.StateListener > stateListeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Adds a source, replacing one of the same name.
+	 * The source must be fully configured, as it is visible to other threads right away.
+	 *
+	 * @return the replaced source, or null
+	 */
+	public synchronized PlatySource register( PlatySource source )
+	{
+		for ( PlatySource.StateListener stateListener : stateListeners ) source.addStateListener( stateListener );
+
+		final LinkedHashMap< String, PlatySource > copy = new LinkedHashMap<>( sources );
+		final PlatySource replaced = copy.put( source.name, source );
+		sources = Collections.unmodifiableMap( copy );
+
+		return replaced;
+	}
+
+	/**
+	 * Notifies of the state changes of all registered sources, including ones that are registered later.
+	 * The listener is called on the thread that changes the state.
+	 */
+	public synchronized void addStateListener( PlatySource.StateListener stateListener )
+	{
+		stateListeners.add( stateListener );
+		for ( PlatySource source : sources.values() ) source.addStateListener( stateListener );
+	}
+
+	/**
+	 * Completes once the source is opened, without opening it, see {@link SourcePrefetcher}.
+	 *
+	 * @return null if there is no such source
+	 */
+	public CompletableFuture< SpimData > whenReady( String name )
+	{
+		final PlatySource source = sources.get( name );
+		return source == null ? null : source.getSpimDataFuture();
+	}
+
+	public List< PlatySource > getSources( PlatySource.State state )
+	{
+		final ArrayList< PlatySource > sourcesInState = new ArrayList<>();
+		for ( PlatySource source : sources.values() )
+		{
+			if ( source.getState() == state ) sourcesInState.add( source );
+		}
+		return sourcesInState;
+	}
+
+	@Override
+	public PlatySource get( Object name )
+	{
+		return sources.get( name );
+	}
+
+	@Override
+	public boolean containsKey( Object name )
+	{
+		return sources.containsKey( name );
+	}
+
+	@Override
+	public Set< Entry< String, PlatySource > > entrySet()
+	{
+		return sources.entrySet();
+	}
+}
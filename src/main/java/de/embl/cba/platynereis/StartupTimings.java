@@ -0,0 +1,177 @@
+package de.embl.cba.platynereis;
+
+import bdv.viewer.ViewerPanel;
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.ui.TransformListener;
+
+import javax.swing.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall clock timings of the phases of a startup, for finding out where the time goes.
+ *
+ * Phases may be recorded several times and from several threads, e.g. the XML parsing of all
+ * sources, so that for each phase the summed duration, the number of recordings and the time
+ * since the start at which it last ended are kept. Phases that continue in the background after
+ * the first frame, such as opening the ProSPr sources, keep accumulating.
+ */
+public class StartupTimings
+{
+	/**
+	 * Without a new frame for this long, the viewer is considered fully rendered.
+	 */
+	public static final long RENDER_QUIET_MILLIS = 1000;
+
+	/**
+	 * The report is logged after this long at the latest, also if no frame was painted,
+	 * e.g. as the window is hidden, or if the viewer keeps rendering.
+	 */
+	public static final long FIRST_FRAME_TIMEOUT_MILLIS = 60000;
+
+	public enum Phase
+	{
+		DIRECTORY_LISTING( "Directory listing" ),
+		SOURCE_CATALOG( "Source catalog" ),
+		XML_PARSING( "XML parsing" ),
+		HDF5_OPENING( "HDF5 opening" ),
+		REGISTRATION( "Registration setup" ),
+		TABLE_LOADING( "Table loading" ),
+		UI_CONSTRUCTION( "UI construction" ),
+		FIRST_FRAME( "First fully rendered frame" );
+
+		private final String description;
+
+		Phase( String description )
+		{
+			this.description = description;
+		}
+
+		public String getDescription()
+		{
+			return description;
+		}
+	}
+
+	private static class Timing
+	{
+		final AtomicLong nanos = new AtomicLong();
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong endNanos = new AtomicLong();
+	}
+
+	private final String name;
+	private final long startNanos;
+	private final Map< Phase, Timing > timings = new ConcurrentHashMap<>();
+
+	public StartupTimings( String name )
+	{
+		this.name = name;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Records a phase that started at the given {@link System#nanoTime()} and ends now.
+	 */
+	public void record( Phase phase, long phaseStartNanos )
+	{
+		record( phase, phaseStartNanos, System.nanoTime() );
+	}
+
+	private void record( Phase phase, long phaseStartNanos, long phaseEndNanos )
+	{
+		final Timing timing = timings.computeIfAbsent( phase, p -> new Timing() );
+		timing.nanos.addAndGet( phaseEndNanos - phaseStartNanos );
+		timing.count.incrementAndGet();
+		timing.endNanos.accumulateAndGet( phaseEndNanos - startNanos, Math::max );
+	}
+
+	/**
+	 * @return the summed duration of all recordings of the phase, 0 if it was not recorded
+	 */
+	public long getMillis( Phase phase )
+	{
+		final Timing timing = timings.get( phase );
+		return timing == null ? 0 : timing.nanos.get() / 1000000;
+	}
+
+	public long getCount( Phase phase )
+	{
+		final Timing timing = timings.get( phase );
+		return timing == null ? 0 : timing.count.get();
+	}
+
+	/**
+	 * @return the time since the start at which the phase last ended, -1 if it was not recorded
+	 */
+	public long getEndMillis( Phase phase )
+	{
+		final Timing timing = timings.get( phase );
+		return timing == null ? -1 : timing.endNanos.get() / 1000000;
+	}
+
+	public String getReport()
+	{
+		final StringBuilder report = new StringBuilder();
+		report.append( "Startup timings of " ).append( name ).append( ":\n" );
+		report.append( String.format( "%-28s %12s %8s %12s\n", "phase", "total [ms]", "count", "end [ms]" ) );
+
+		for ( Phase phase : Phase.values() )
+		{
+			if ( ! timings.containsKey( phase ) ) continue;
+
+			report.append( String.format( "%-28s %12d %8d %12d\n",
+					phase.getDescription(), getMillis( phase ), getCount( phase ), getEndMillis( phase ) ) );
+		}
+
+		return report.toString();
+	}
+
+	public void log()
+	{
+		Utils.log( getReport() );
+	}
+
+	/**
+	 * Records the {@link Phase#FIRST_FRAME} once the viewer stopped rendering new frames, as
+	 * it does while image data is still being loaded, and logs the report; see also
+	 * {@link #FIRST_FRAME_TIMEOUT_MILLIS}.
+	 */
+	public void recordFirstFrame( ViewerPanel viewerPanel )
+	{
+		final AtomicLong lastFrameNanos = new AtomicLong( -1 );
+
+		final TransformListener< AffineTransform3D > frameListener = transform -> lastFrameNanos.set( System.nanoTime() );
+		viewerPanel.addRenderTransformListener( frameListener );
+		viewerPanel.requestRepaint();
+
+		final long timeoutNanos = System.nanoTime() + FIRST_FRAME_TIMEOUT_MILLIS * 1000000;
+
+		final Timer timer = new Timer( ( int ) ( RENDER_QUIET_MILLIS / 4 ), null );
+		timer.addActionListener( e ->
+		{
+			final long now = System.nanoTime();
+			final long last = lastFrameNanos.get();
+			final boolean isTimedOut = now - timeoutNanos >= 0;
+			if ( ! isTimedOut && ( last < 0 || now - last < RENDER_QUIET_MILLIS * 1000000 ) ) return;
+
+			timer.stop();
+			viewerPanel.removeTransformListener( frameListener );
+
+			if ( last < 0 )
+			{
+				Utils.log( "No frame was rendered within " + FIRST_FRAME_TIMEOUT_MILLIS / 1000 + " s; the first frame is not timed." );
+			}
+			else
+			{
+				if ( isTimedOut ) Utils.log( "The viewer was still rendering after " + FIRST_FRAME_TIMEOUT_MILLIS / 1000 + " s; the first frame is timed until the last frame so far." );
+				record( Phase.FIRST_FRAME, startNanos, last );
+			}
+
+			log();
+		} );
+		timer.start();
+	}
+}
@@ -0,0 +1,64 @@
+package de.embl.cba.platynereis;
+
+import bdv.img.hdf5.Partition;
+import bdv.img.hdf5.XmlIoHdf5ImageLoader;
+import mpicbg.spim.data.XmlHelpers;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.ImgLoaderIo;
+import mpicbg.spim.data.generic.sequence.XmlIoBasicImgLoader;
+import org.jdom2.Element;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static mpicbg.spim.data.XmlHelpers.loadPath;
+
+/**
+ * Creates a {@link PooledHdf5ImageLoader} from the ImageLoader element of a BDV XML, without
+ * opening a reader of its own first, as BDV's loader does.
+ *
+ * BDV XMLs declare the format {@link #BDV_FORMAT}; {@link de.embl.cba.platynereis.utils.Utils#openSpimData(File)}
+ * switches it to {@link #FORMAT} before parsing. Loaders are written back in BDV's format.
+ */
+@ImgLoaderIo( format = XmlIoPooledHdf5ImageLoader.FORMAT, type = PooledHdf5ImageLoader.class )
+public class XmlIoPooledHdf5ImageLoader implements XmlIoBasicImgLoader< PooledHdf5ImageLoader >
+{
+	public static final String FORMAT = "platybrowser.hdf5.pooled";
+	public static final String BDV_FORMAT = "bdv.hdf5";
+
+	@Override
+	public Element toXml( final PooledHdf5ImageLoader imgLoader, final File basePath )
+	{
+		return new XmlIoHdf5ImageLoader().toXml( imgLoader, basePath );
+	}
+
+	@Override
+	public PooledHdf5ImageLoader fromXml( final Element elem, final File basePath, final AbstractSequenceDescription< ?, ?, ? > sequenceDescription )
+	{
+		final String path = loadPath( elem, "hdf5", basePath ).toString();
+		final ArrayList< Partition > partitions = new ArrayList<>();
+		for ( final Element p : elem.getChildren( "partition" ) )
+			partitions.add( partitionFromXml( p, basePath ) );
+		return new PooledHdf5ImageLoader( new File( path ), partitions, sequenceDescription );
+	}
+
+	private Partition partitionFromXml( final Element elem, final File basePath )
+	{
+		String path;
+		try
+		{
+			path = XmlHelpers.loadPath( elem, "path", basePath ).toString();
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( e );
+		}
+
+		final int[] timepointIds = XmlHelpers.getIntArray( elem, "timepoints" );
+		final int[] timepointIdsPartition = XmlHelpers.getIntArray( elem, "timepointsMapped", timepointIds );
+		final int[] setupIds = XmlHelpers.getIntArray( elem, "setups" );
+		final int[] setupIdsPartition = XmlHelpers.getIntArray( elem, "setupsMapped", setupIds );
+
+		return new Partition( path, timepointIds, setupIds, timepointIdsPartition, setupIdsPartition );
+	}
+}
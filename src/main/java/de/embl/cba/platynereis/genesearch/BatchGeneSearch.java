@@ -0,0 +1,326 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.Constants;
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.utils.Utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Runs gene searches for many positions and streams one row per position to a TSV file.
+ *
+ * The positions are searched one after the other, each in parallel over the genes on the
+ * threads shared by all gene searches, see {@link GeneSearchExecutor}; rows are written as soon as
+ * they are complete, such that no results are held in memory. If the output file already exists,
+ * it acts as checkpoint: queries with a row in the file are skipped and
+ * new rows are appended. The existing rows must belong to the first queries, in order.
+ */
+public class BatchGeneSearch
+{
+	public static final String DELIMITER = "\t";
+
+	public static final String[] QUERY_COLUMNS = { "x", "y", "z", "radius" };
+	public static final String ID_COLUMN = "id";
+
+	public static class Query
+	{
+		public final String id;
+		public final double[] micrometerPosition;
+		public final double micrometerRadius;
+
+		public Query( String id, double[] micrometerPosition, double micrometerRadius )
+		{
+			this.id = id;
+			this.micrometerPosition = micrometerPosition;
+			this.micrometerRadius = micrometerRadius;
+		}
+	}
+
+	private final Map< String, PlatySource > dataSources;
+	private final ArrayList< String > geneNames;
+	private final double micrometerVoxelSize;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private double minNumVoxelsPerRadius = Constants.GENE_SEARCH_MIN_NUM_VOXELS_PER_RADIUS;
+	private int progressInterval = 100;
+
+	public BatchGeneSearch( Map< String, PlatySource > dataSources )
+	{
+		this.dataSources = dataSources;
+
+		geneNames = new ArrayList<>();
+		for ( String name : dataSources.keySet() )
+		{
+			if ( GeneSearch.isGeneSource( name ) ) geneNames.add( name );
+		}
+
+		if ( geneNames.size() == 0 )
+		{
+			throw new IllegalArgumentException( "No gene sources found." );
+		}
+
+		micrometerVoxelSize = GeneSearch.getVoxelSize( dataSources.get( geneNames.get( 0 ) ), 0 );
+	}
+
+	public void setNumThreads( int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	public void setMinNumVoxelsPerRadius( double minNumVoxelsPerRadius )
+	{
+		this.minNumVoxelsPerRadius = minNumVoxelsPerRadius;
+	}
+
+	public void setProgressInterval( int progressInterval )
+	{
+		this.progressInterval = Math.max( 1, progressInterval );
+	}
+
+	public ArrayList< String > getGeneNames()
+	{
+		return geneNames;
+	}
+
+	public void run( List< Query > queries, File outputFile ) throws IOException
+	{
+		final String header = getHeader();
+
+		final int numDone = readCheckpoint( outputFile, header, queries );
+
+		if ( numDone > 0 )
+		{
+			Utils.log( "Resuming from " + outputFile + ": " + numDone + " of " + queries.size() + " positions already done." );
+		}
+
+		final long startTime = System.currentTimeMillis();
+		final boolean isNewFile = ! outputFile.exists() || outputFile.length() == 0;
+
+		try ( Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( outputFile, true ), StandardCharsets.UTF_8 ) ) )
+		{
+			if ( isNewFile )
+			{
+				writer.write( header + "\n" );
+				writer.flush();
+			}
+
+			// one position after the other, each searched in parallel over the genes
+			for ( int q = numDone; q < queries.size(); ++q )
+			{
+				final String row;
+				try
+				{
+					row = search( queries.get( q ) );
+				}
+				catch ( RuntimeException e )
+				{
+					throw new IOException( "Batch gene search stopped; restart to resume from " + outputFile, e );
+				}
+
+				writer.write( row + "\n" );
+				writer.flush();
+
+				final int numWritten = q + 1;
+				if ( ( numWritten - numDone ) % progressInterval == 0 || numWritten == queries.size() )
+				{
+					logProgress( numWritten, numDone, queries.size(), startTime );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads queries from a text file with one query per line, either as "x y z radius"
+	 * or as "id x y z radius", in micrometer units. Values may be separated by tabs,
+	 * commas or spaces. Empty lines and lines starting with # are skipped, as is a first line
+	 * with the column names, i.e. "x y z radius" or "id x y z radius" in any case.
+	 * Queries without id are numbered by their line.
+	 *
+	 * @throws IOException for any other line that is not a query, such that no position is silently dropped
+	 */
+	public static ArrayList< Query > readQueries( File file ) throws IOException
+	{
+		final ArrayList< Query > queries = new ArrayList<>();
+
+		try ( BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), StandardCharsets.UTF_8 ) ) )
+		{
+			String line;
+			int lineNumber = 0;
+			boolean isFirstLine = true;
+			while ( ( line = reader.readLine() ) != null )
+			{
+				lineNumber++;
+				line = line.trim();
+				if ( line.isEmpty() || line.startsWith( "#" ) ) continue;
+
+				final String[] values = line.split( "[\\t, ]+" );
+				if ( values.length != 4 && values.length != 5 )
+				{
+					throw new IOException( file + ", line " + lineNumber + ": expected x y z radius, optionally preceded by an id." );
+				}
+
+				final boolean isHeader = isFirstLine && isHeader( values );
+				isFirstLine = false;
+				if ( isHeader ) continue;
+
+				final int first = values.length - 4;
+				final double[] numbers = new double[ 4 ];
+				try
+				{
+					for ( int i = 0; i < 4; ++i ) numbers[ i ] = Double.parseDouble( values[ first + i ] );
+				}
+				catch ( NumberFormatException e )
+				{
+					throw new IOException( file + ", line " + lineNumber + ": " + e.getMessage() );
+				}
+
+				final String id = first == 1 ? values[ 0 ] : String.valueOf( lineNumber );
+				queries.add( new Query( id, new double[]{ numbers[ 0 ], numbers[ 1 ], numbers[ 2 ] }, numbers[ 3 ] ) );
+			}
+		}
+
+		return queries;
+	}
+
+	private static boolean isHeader( String[] values )
+	{
+		final int first = values.length - QUERY_COLUMNS.length;
+		if ( first == 1 && ! values[ 0 ].equalsIgnoreCase( ID_COLUMN ) ) return false;
+
+		for ( int i = 0; i < QUERY_COLUMNS.length; ++i )
+		{
+			if ( ! values[ first + i ].equalsIgnoreCase( QUERY_COLUMNS[ i ] ) ) return false;
+		}
+
+		return true;
+	}
+
+	private String search( Query query )
+	{
+		final GeneSearch geneSearch = new GeneSearch(
+				query.micrometerRadius,
+				query.micrometerPosition,
+				dataSources,
+				0,
+				micrometerVoxelSize );
+
+		geneSearch.setNumThreads( numThreads );
+		geneSearch.setLogging( false );
+		geneSearch.setMinNumVoxelsPerRadius( minNumVoxelsPerRadius );
+
+		final Map< String, Double > expression = geneSearch.runSearchAndGetLocalExpression();
+
+		final StringBuilder row = new StringBuilder( query.id );
+		for ( int d = 0; d < 3; ++d ) row.append( DELIMITER ).append( query.micrometerPosition[ d ] );
+		row.append( DELIMITER ).append( query.micrometerRadius );
+		row.append( DELIMITER ).append( geneSearch.getSearchMipMapLevel() );
+		for ( String geneName : geneNames )
+		{
+			row.append( DELIMITER ).append( expression.get( geneName ) );
+		}
+
+		return row.toString();
+	}
+
+	private String getHeader()
+	{
+		final StringBuilder header = new StringBuilder( "id" );
+		header.append( DELIMITER ).append( "X" ).append( DELIMITER ).append( "Y" ).append( DELIMITER ).append( "Z" );
+		header.append( DELIMITER ).append( "SearchRadius_um" );
+		header.append( DELIMITER ).append( "SearchResolutionLevel" );
+		for ( String geneName : geneNames ) header.append( DELIMITER ).append( geneName );
+		return header.toString();
+	}
+
+	/**
+	 * Returns the number of complete rows in an existing output file,
+	 * removing a partially written last row. The rows must be those of the
+	 * first queries, in the same order, as the remaining queries are appended.
+	 */
+	private static int readCheckpoint( File outputFile, String header, List< Query > queries ) throws IOException
+	{
+		if ( ! outputFile.exists() || outputFile.length() == 0 ) return 0;
+
+		int numRows = 0;
+		long completeLength = 0;
+
+		try ( BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( outputFile ), StandardCharsets.UTF_8 ) ) )
+		{
+			final String existingHeader = reader.readLine();
+			if ( ! header.equals( existingHeader ) )
+			{
+				throw new IOException( "Existing " + outputFile + " has different columns; please choose another output file." );
+			}
+		}
+
+		try ( RandomAccessFile file = new RandomAccessFile( outputFile, "rw" ) )
+		{
+			final byte[] buffer = new byte[ 1 << 16 ];
+			long position = 0;
+			int numRead;
+			while ( ( numRead = file.read( buffer ) ) > 0 )
+			{
+				for ( int i = 0; i < numRead; ++i )
+				{
+					if ( buffer[ i ] == '\n' )
+					{
+						numRows++;
+						completeLength = position + i + 1;
+					}
+				}
+				position += numRead;
+			}
+
+			// the header line has been counted as well; without it the file is started from scratch
+			file.setLength( completeLength );
+		}
+
+		final int numDone = Math.max( 0, numRows - 1 );
+
+		if ( numDone > queries.size() )
+		{
+			throw new IOException( "Existing " + outputFile + " has " + numDone + " rows, but there are only "
+					+ queries.size() + " queries; please choose another output file." );
+		}
+
+		validateDoneQueries( outputFile, queries, numDone );
+
+		return numDone;
+	}
+
+	/**
+	 * Checks that the rows of the output file are those of the first queries,
+	 * such that resuming with other or reordered queries does not mix up the results.
+	 */
+	private static void validateDoneQueries( File outputFile, List< Query > queries, int numDone ) throws IOException
+	{
+		try ( BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( outputFile ), StandardCharsets.UTF_8 ) ) )
+		{
+			reader.readLine(); // header
+
+			for ( int i = 0; i < numDone; ++i )
+			{
+				final String row = reader.readLine();
+				final int idEnd = row.indexOf( DELIMITER );
+				final String id = idEnd < 0 ? row : row.substring( 0, idEnd );
+
+				if ( ! id.equals( queries.get( i ).id ) )
+				{
+					throw new IOException( "Existing " + outputFile + ", row " + ( i + 1 ) + ": id " + id
+							+ " differs from query " + queries.get( i ).id + "; please choose another output file." );
+				}
+			}
+		}
+	}
+
+	private static void logProgress( int numWritten, int numDone, int numQueries, long startTime )
+	{
+		final double secondsPerQuery = ( System.currentTimeMillis() - startTime ) / 1000.0 / Math.max( 1, numWritten - numDone );
+		final long remainingSeconds = ( long ) ( secondsPerQuery * ( numQueries - numWritten ) );
+
+		Utils.log( String.format( "Batch gene search: %d / %d (%.1f%%), about %d min remaining",
+				numWritten, numQueries, 100.0 * numWritten / numQueries, remainingSeconds / 60 ) );
+	}
+}
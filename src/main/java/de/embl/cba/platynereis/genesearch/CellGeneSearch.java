@@ -0,0 +1,162 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Computes the fraction of expressing voxels of all genes within one segmented cell.
+ *
+ * The cell is extracted once from a coarse level of the label image (see {@link CellSpans})
+ * and mapped into the voxel grid of the genes through their source transforms, which include
+ * the registration to the EM; the mapped spans are then read for every gene.
+ */
+public class CellGeneSearch
+{
+	private final PlatySource labels;
+	private Map< String, PlatySource > dataSources;
+	private int geneMipMapLevel = 0;
+	private int labelMipMapLevel = -1;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private boolean isLogging = true;
+
+	/**
+	 * @param labels
+	 * 			the source of the cell segmentation, e.g. em-segmented-cells-labels
+	 */
+	public CellGeneSearch( PlatySource labels, Map< String, PlatySource > dataSources )
+	{
+		this.labels = labels;
+		this.dataSources = dataSources;
+	}
+
+	public void setGeneMipMapLevel( int geneMipMapLevel )
+	{
+		this.geneMipMapLevel = geneMipMapLevel;
+	}
+
+	/**
+	 * By default the cell is extracted from the coarsest label level that is still finer than the genes.
+	 */
+	public void setLabelMipMapLevel( int labelMipMapLevel )
+	{
+		this.labelMipMapLevel = labelMipMapLevel;
+	}
+
+	public void setNumThreads( int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	public void setLogging( boolean isLogging )
+	{
+		this.isLogging = isLogging;
+	}
+
+	/**
+	 * @param labelId
+	 * 			the cell
+	 * @param micrometerSeedPosition
+	 * 			optional position within the cell, in micrometer units of the label image;
+	 * 			without it the whole label level is scanned for the cell
+	 * @throws IllegalStateException if any gene could not be examined
+	 */
+	public Map< String, Double > runSearchAndGetLocalExpression( double labelId, double[] micrometerSeedPosition )
+	{
+		if ( ! labels.retain() ) throw new IllegalStateException( labels.name + " has been replaced; please select the cell again." );
+
+		final Map< String, PlatySource > registeredSources = dataSources;
+
+		try
+		{
+			dataSources = GeneSearch.retainGeneSources( registeredSources );
+
+			try
+			{
+				return search( labelId, micrometerSeedPosition );
+			}
+			finally
+			{
+				GeneSearch.releaseGeneSources( dataSources );
+				dataSources = registeredSources;
+			}
+		}
+		finally
+		{
+			labels.release();
+		}
+	}
+
+	private Map< String, Double > search( double labelId, double[] micrometerSeedPosition )
+	{
+		final ArrayList< String > geneNames = GeneSearch.getGeneNames( dataSources );
+
+		final Map< String, Double > localExpression = new LinkedHashMap<>(  );
+
+		if ( geneNames.size() == 0 ) return localExpression;
+
+		final double geneVoxelSize = GeneSearch.getVoxelSize( dataSources.get( geneNames.get( 0 ) ), geneMipMapLevel );
+
+		final int level = labelMipMapLevel >= 0 ? labelMipMapLevel : CellSpans.getCoarsestLevel( labels, geneVoxelSize );
+		final CellSpans cell = CellSpans.forLabel( labels, level, labelId, micrometerSeedPosition );
+
+		if ( isLogging ) Utils.log( "Cell " + ( long ) labelId + ": " + cell.getNumVoxels() + " voxels in " + cell.getNumSpans() + " spans at label level " + level );
+
+		// the spans only depend on the transform of the genes, thus are shared by most genes
+		final Map< String, CellSpans > mappedCells = new ConcurrentHashMap<>(  );
+
+		// once the search fails, the genes that are not started yet are not examined any more
+		final AtomicBoolean isFailed = new AtomicBoolean();
+		final Map< String, CompletableFuture< Double > > futures = GeneSearchExecutor.examine(
+				geneNames, numThreads, name -> getLocalExpression( name, cell, mappedCells ), isFailed::get );
+
+		try
+		{
+			for ( String name : geneNames )
+			{
+				localExpression.put( name, futures.get( name ).get() );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			isFailed.set( true );
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException( "Gene search interrupted", e );
+		}
+		catch ( ExecutionException e )
+		{
+			isFailed.set( true );
+			// a partial result would look like genes without expression
+			throw new IllegalStateException( "Gene search failed: " + e.getCause(), e.getCause() );
+		}
+
+		return localExpression;
+	}
+
+	private < T extends RealType< T > & NativeType< T > >
+	double getLocalExpression( String name, CellSpans cell, Map< String, CellSpans > mappedCells )
+	{
+		if ( isLogging ) Utils.log( "Examining " + name );
+
+		final PlatySource source = dataSources.get( name );
+
+		final AffineTransform3D voxelToMicrometer = CellSpans.getVoxelToMicrometer( source, geneMipMapLevel );
+
+		final CellSpans mappedCell = mappedCells.computeIfAbsent(
+				Arrays.toString( voxelToMicrometer.getRowPackedCopy() ),
+				key -> cell.map( voxelToMicrometer ) );
+
+		final RandomAccessibleInterval< T > image =
+				( RandomAccessibleInterval< T > ) GeneSearch.getSetupImgLoader( source ).getImage( 0, geneMipMapLevel );
+
+		return GeneSearch.getExpression( source, geneMipMapLevel, mappedCell.sample( image ) );
+	}
+}
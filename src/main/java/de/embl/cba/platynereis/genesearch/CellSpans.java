@@ -0,0 +1,390 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.utils.SphereKernel;
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.Cursor;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.*;
+
+/**
+ * The voxels of one segmented cell as run-length spans along x.
+ *
+ * Cells are extracted once from a coarse level of the label image and kept in a small
+ * cache; the spans can then be mapped into the voxel grid of any other image.
+ * The label image is read from its source in the browser, such that it is opened only once.
+ */
+public class CellSpans
+{
+	public static final int DEFAULT_MAX_NUM_CACHED_CELLS = 32;
+
+	// keyed by label source, level and label; sources are compared by identity, thus a reloaded source extracts its cells anew
+	private static final Map< List< Object >, CellSpans > cache = Collections.synchronizedMap(
+			new LinkedHashMap< List< Object >, CellSpans >( 16, 0.75f, true )
+			{
+				@Override
+				protected boolean removeEldestEntry( Map.Entry< List< Object >, CellSpans > eldest )
+				{
+					return size() > DEFAULT_MAX_NUM_CACHED_CELLS;
+				}
+			} );
+
+	private final int[] spanY;
+	private final int[] spanZ;
+	private final int[] spanXStart;
+	private final int[] spanXEnd;
+	private final AffineTransform3D voxelToMicrometer;
+	private final long numVoxels;
+
+	private CellSpans( long[] sortedVoxels, AffineTransform3D voxelToMicrometer )
+	{
+		this.voxelToMicrometer = voxelToMicrometer;
+		this.numVoxels = sortedVoxels.length;
+
+		int numSpans = 0;
+		for ( int i = 0; i < sortedVoxels.length; ++i )
+		{
+			if ( i == 0 || sortedVoxels[ i ] != sortedVoxels[ i - 1 ] + 1 || getX( sortedVoxels[ i ] ) == 0 ) numSpans++;
+		}
+
+		spanY = new int[ numSpans ];
+		spanZ = new int[ numSpans ];
+		spanXStart = new int[ numSpans ];
+		spanXEnd = new int[ numSpans ];
+
+		int span = -1;
+		for ( int i = 0; i < sortedVoxels.length; ++i )
+		{
+			final long voxel = sortedVoxels[ i ];
+			if ( i == 0 || voxel != sortedVoxels[ i - 1 ] + 1 || getX( voxel ) == 0 )
+			{
+				span++;
+				spanY[ span ] = ( int ) getY( voxel );
+				spanZ[ span ] = ( int ) getZ( voxel );
+				spanXStart[ span ] = ( int ) getX( voxel );
+			}
+			spanXEnd[ span ] = ( int ) getX( voxel );
+		}
+	}
+
+	/**
+	 * Returns the spans of one cell, extracting them on first access.
+	 *
+	 * @param labels
+	 * 			the source of the label image
+	 * @param mipMapLevel
+	 * 			label image level the cell is extracted from
+	 * @param labelId
+	 * 			must not be the background (0)
+	 * @param micrometerSeedPosition
+	 * 			a position within the cell, in global micrometer units of the label image,
+	 * 			from which the cell is grown; if null, the whole level is scanned
+	 */
+	public static CellSpans forLabel( PlatySource labels, int mipMapLevel, double labelId, double[] micrometerSeedPosition )
+	{
+		if ( labelId == 0 )
+		{
+			throw new IllegalArgumentException( "Label 0 is the background, not a cell." );
+		}
+
+		final List< Object > key = Arrays.asList( labels, mipMapLevel, labelId );
+
+		final CellSpans cached = cache.get( key );
+		if ( cached != null ) return cached;
+
+		final CellSpans cellSpans = extract( labels, mipMapLevel, labelId, micrometerSeedPosition );
+		cache.put( key, cellSpans );
+		return cellSpans;
+	}
+
+	/**
+	 * Returns the label at a position given in global micrometer units of the label image.
+	 */
+	public static double getLabelId( PlatySource labels, double[] micrometerPosition )
+	{
+		final RandomAccessibleInterval< ? extends RealType< ? > > image = getLabels( labels, 0 );
+		final long[] voxel = toVoxel( micrometerPosition, getVoxelToMicrometer( labels, 0 ) );
+
+		if ( ! Intervals.contains( image, new Point( voxel ) ) ) return 0;
+
+		final RandomAccess< ? extends RealType< ? > > access = image.randomAccess();
+		access.setPosition( voxel );
+		return access.get().getRealDouble();
+	}
+
+	/**
+	 * Returns the coarsest level of the label image whose voxels are not larger than maxVoxelSize micrometer.
+	 */
+	public static int getCoarsestLevel( PlatySource labels, double maxVoxelSize )
+	{
+		final int numLevels = labels.getMipmapResolutions().length;
+
+		int coarsestLevel = 0;
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			final AffineTransform3D voxelToMicrometer = getVoxelToMicrometer( labels, level );
+			double voxelSize = 0;
+			for ( int d = 0; d < 3; ++d )
+			{
+				voxelSize = Math.max( voxelSize, Math.abs( voxelToMicrometer.get( d, d ) ) );
+			}
+			if ( voxelSize > maxVoxelSize ) break;
+			coarsestLevel = level;
+		}
+
+		return coarsestLevel;
+	}
+
+	public long getNumVoxels()
+	{
+		return numVoxels;
+	}
+
+	public int getNumSpans()
+	{
+		return spanY.length;
+	}
+
+	/**
+	 * Maps the cell into the voxel grid of another image, e.g. of a gene.
+	 *
+	 * @param targetVoxelToMicrometer
+	 * 			from the voxels of the target to global micrometer units, i.e. the full transform of the
+	 * 			target source at its mipmap level, including registrations, see {@link #getVoxelToMicrometer};
+	 * 			target voxel v covers [v - 0.5, v + 0.5)
+	 */
+	public CellSpans map( AffineTransform3D targetVoxelToMicrometer )
+	{
+		final AffineTransform3D voxelToTarget = voxelToMicrometer.copy();
+		voxelToTarget.preConcatenate( targetVoxelToMicrometer.inverse() );
+
+		// label voxels larger than the target voxels are sampled at several points
+		double maxLabelVoxelSize = 0;
+		final double[] origin = new double[ 3 ];
+		voxelToTarget.apply( new double[ 3 ], origin );
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double[] step = new double[ 3 ];
+			step[ d ] = 1.0;
+			final double[] mappedStep = new double[ 3 ];
+			voxelToTarget.apply( step, mappedStep );
+			double length = 0;
+			for ( int e = 0; e < 3; ++e ) length += ( mappedStep[ e ] - origin[ e ] ) * ( mappedStep[ e ] - origin[ e ] );
+			maxLabelVoxelSize = Math.max( maxLabelVoxelSize, Math.sqrt( length ) );
+		}
+		final int numSamples = Math.max( 1, ( int ) Math.ceil( maxLabelVoxelSize ) );
+
+		final HashSet< Long > targetVoxels = new HashSet<>();
+		final double[] labelVoxel = new double[ 3 ];
+		final double[] target = new double[ 3 ];
+
+		for ( int span = 0; span < spanY.length; ++span )
+			for ( int x = spanXStart[ span ]; x <= spanXEnd[ span ]; ++x )
+				for ( int sz = 0; sz < numSamples; ++sz )
+					for ( int sy = 0; sy < numSamples; ++sy )
+						for ( int sx = 0; sx < numSamples; ++sx )
+						{
+							// sample points are centered within the label voxel, which spans [-0.5, 0.5) around its index
+							labelVoxel[ 0 ] = x - 0.5 + ( sx + 0.5 ) / numSamples;
+							labelVoxel[ 1 ] = spanY[ span ] - 0.5 + ( sy + 0.5 ) / numSamples;
+							labelVoxel[ 2 ] = spanZ[ span ] - 0.5 + ( sz + 0.5 ) / numSamples;
+							voxelToTarget.apply( labelVoxel, target );
+
+							final long tx = ( long ) Math.floor( target[ 0 ] + 0.5 );
+							final long ty = ( long ) Math.floor( target[ 1 ] + 0.5 );
+							final long tz = ( long ) Math.floor( target[ 2 ] + 0.5 );
+							if ( tx < 0 || ty < 0 || tz < 0 ) continue;
+
+							targetVoxels.add( pack( tx, ty, tz ) );
+						}
+
+		return new CellSpans( toSortedArray( targetVoxels ), targetVoxelToMicrometer.copy() );
+	}
+
+	/**
+	 * Statistics of the image within the spans, which must be in the image's voxel grid.
+	 * Spans outside the image count as zero voxels, i.e. the number of voxels is always that of the cell.
+	 */
+	public < T extends RealType< T > & NativeType< T > > SphereKernel.Statistics sample( RandomAccessibleInterval< T > image )
+	{
+		final SphereKernel.RunScanner scanner = SphereKernel.createScanner( image );
+		final SphereKernel.Statistics statistics = new SphereKernel.Statistics();
+
+		for ( int span = 0; span < spanY.length; ++span )
+		{
+			final long y = spanY[ span ];
+			final long z = spanZ[ span ];
+			if ( y < image.min( 1 ) || y > image.max( 1 ) || z < image.min( 2 ) || z > image.max( 2 ) ) continue;
+
+			final long x = Math.max( spanXStart[ span ], image.min( 0 ) );
+			final long xEnd = Math.min( spanXEnd[ span ], image.max( 0 ) );
+			if ( x > xEnd ) continue;
+
+			scanner.scan( y, z, x, xEnd, statistics );
+		}
+
+		statistics.numVoxels = numVoxels;
+		return statistics;
+	}
+
+	private static CellSpans extract( PlatySource labels, int mipMapLevel, double labelId, double[] micrometerSeedPosition )
+	{
+		final RandomAccessibleInterval< ? extends RealType< ? > > image = getLabels( labels, mipMapLevel );
+		final AffineTransform3D voxelToMicrometer = getVoxelToMicrometer( labels, mipMapLevel );
+
+		long[] voxels = null;
+
+		if ( micrometerSeedPosition != null )
+		{
+			voxels = growFromSeed( image, toVoxel( micrometerSeedPosition, voxelToMicrometer ), labelId );
+		}
+
+		if ( voxels == null )
+		{
+			Utils.log( "Scanning the label image for cell " + ( long ) labelId + "..." );
+			voxels = scan( image, labelId );
+		}
+
+		return new CellSpans( voxels, voxelToMicrometer );
+	}
+
+	/**
+	 * Collects the voxels connected to the seed, or to a voxel of the label next to it,
+	 * as the seed may fall just outside the cell at coarse levels.
+	 * Returns null if no voxel of the label is found near the seed.
+	 */
+	private static long[] growFromSeed( RandomAccessibleInterval< ? extends RealType< ? > > labels, long[] seed, double labelId )
+	{
+		final RandomAccess< ? extends RealType< ? > > access = labels.randomAccess();
+
+		long[] start = null;
+		final long[] position = new long[ 3 ];
+		for ( int radius = 0; radius <= 2 && start == null; ++radius )
+			for ( long dz = -radius; dz <= radius && start == null; ++dz )
+				for ( long dy = -radius; dy <= radius && start == null; ++dy )
+					for ( long dx = -radius; dx <= radius && start == null; ++dx )
+					{
+						position[ 0 ] = seed[ 0 ] + dx;
+						position[ 1 ] = seed[ 1 ] + dy;
+						position[ 2 ] = seed[ 2 ] + dz;
+						if ( ! Intervals.contains( labels, new Point( position ) ) ) continue;
+						access.setPosition( position );
+						if ( access.get().getRealDouble() == labelId ) start = position.clone();
+					}
+
+		if ( start == null ) return null;
+
+		final HashSet< Long > visited = new HashSet<>();
+		final ArrayDeque< Long > queue = new ArrayDeque<>();
+		visited.add( pack( start[ 0 ], start[ 1 ], start[ 2 ] ) );
+		queue.add( pack( start[ 0 ], start[ 1 ], start[ 2 ] ) );
+
+		final long[][] neighbours = { { 1, 0, 0 }, { -1, 0, 0 }, { 0, 1, 0 }, { 0, -1, 0 }, { 0, 0, 1 }, { 0, 0, -1 } };
+
+		while ( ! queue.isEmpty() )
+		{
+			final long voxel = queue.poll();
+			for ( long[] neighbour : neighbours )
+			{
+				position[ 0 ] = getX( voxel ) + neighbour[ 0 ];
+				position[ 1 ] = getY( voxel ) + neighbour[ 1 ];
+				position[ 2 ] = getZ( voxel ) + neighbour[ 2 ];
+				if ( ! Intervals.contains( labels, new Point( position ) ) ) continue;
+
+				final long packed = pack( position[ 0 ], position[ 1 ], position[ 2 ] );
+				if ( visited.contains( packed ) ) continue;
+
+				access.setPosition( position );
+				if ( access.get().getRealDouble() != labelId ) continue;
+
+				visited.add( packed );
+				queue.add( packed );
+			}
+		}
+
+		return toSortedArray( visited );
+	}
+
+	private static long[] scan( RandomAccessibleInterval< ? extends RealType< ? > > labels, double labelId )
+	{
+		final ArrayList< Long > voxels = new ArrayList<>();
+
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( labels ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			if ( cursor.next().getRealDouble() != labelId ) continue;
+			voxels.add( pack( cursor.getLongPosition( 0 ), cursor.getLongPosition( 1 ), cursor.getLongPosition( 2 ) ) );
+		}
+
+		return toSortedArray( voxels );
+	}
+
+	private static RandomAccessibleInterval< ? extends RealType< ? > > getLabels( PlatySource labels, int mipMapLevel )
+	{
+		return ( RandomAccessibleInterval< ? extends RealType< ? > > ) GeneSearch.getSetupImgLoader( labels ).getImage( 0, mipMapLevel );
+	}
+
+	/**
+	 * The transform from the voxels of a mipmap level of the source to global micrometer units,
+	 * including registrations, such as the registration of ProSPr sources to the EM.
+	 */
+	public static AffineTransform3D getVoxelToMicrometer( PlatySource source, int mipMapLevel )
+	{
+		final double[][] resolutions = source.getMipmapResolutions();
+
+		final AffineTransform3D voxelToMicrometer = new AffineTransform3D();
+		voxelToMicrometer.set(
+				resolutions[ mipMapLevel ][ 0 ], 0, 0, 0.5 * ( resolutions[ mipMapLevel ][ 0 ] - 1 ),
+				0, resolutions[ mipMapLevel ][ 1 ], 0, 0.5 * ( resolutions[ mipMapLevel ][ 1 ] - 1 ),
+				0, 0, resolutions[ mipMapLevel ][ 2 ], 0.5 * ( resolutions[ mipMapLevel ][ 2 ] - 1 ) );
+		voxelToMicrometer.preConcatenate( source.getSourceTransform() );
+
+		return voxelToMicrometer;
+	}
+
+	private static long[] toVoxel( double[] micrometerPosition, AffineTransform3D voxelToMicrometer )
+	{
+		final double[] voxel = new double[ 3 ];
+		voxelToMicrometer.applyInverse( voxel, micrometerPosition );
+		return new long[]{ Math.round( voxel[ 0 ] ), Math.round( voxel[ 1 ] ), Math.round( voxel[ 2 ] ) };
+	}
+
+	private static long[] toSortedArray( Collection< Long > voxels )
+	{
+		final long[] array = new long[ voxels.size() ];
+		int i = 0;
+		for ( long voxel : voxels ) array[ i++ ] = voxel;
+		Arrays.sort( array );
+		return array;
+	}
+
+	// z, y, x in the high, middle and low 21 bits, such that sorting orders voxels by z, y, x
+	private static long pack( long x, long y, long z )
+	{
+		return ( z << 42 ) | ( y << 21 ) | x;
+	}
+
+	private static long getX( long packed )
+	{
+		return packed & 0x1FFFFF;
+	}
+
+	private static long getY( long packed )
+	{
+		return ( packed >>> 21 ) & 0x1FFFFF;
+	}
+
+	private static long getZ( long packed )
+	{
+		return packed >>> 42;
+	}
+}
@@ -0,0 +1,348 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.Constants;
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.utils.SphereKernel;
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Searches genes within several concentric spheres around one position.
+ *
+ * As in {@link GeneSearch}, each radius is searched on the coarsest resolution level
+ * at which it spans enough voxels, and results are shared with the {@link GeneSearchCache},
+ * the {@link GenePresenceIndex} and the {@link GeneBlockIndex}. The radii that remain to be
+ * examined are grouped by level, and the radii of one level are sampled in a single
+ * sweep over the largest of their spheres, see {@link SphereKernel#sampleConcentric}.
+ */
+public class ConcentricGeneSearch
+{
+	private final double[] micrometerRadii;
+	private final double[] micrometerPosition;
+	private Map< String, PlatySource > dataSources;
+	private final int mipMapLevel;
+	private final double micrometerVoxelSize;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private boolean isLogging = true;
+	private double minNumVoxelsPerRadius = Constants.GENE_SEARCH_MIN_NUM_VOXELS_PER_RADIUS;
+	private int[] searchMipMapLevels;
+	private double[] searchVoxelSizes;
+	private boolean[] isIndexed;
+	private GenePresenceIndex index;
+	private GeneSearchCache resultCache;
+	private volatile boolean isCancelled;
+
+	public ConcentricGeneSearch( double[] micrometerRadii,
+								 double[] micrometerPosition,
+								 Map< String, PlatySource > dataSources,
+								 int mipMapLevel,
+								 double micrometerVoxelSize )
+	{
+		this.micrometerRadii = micrometerRadii.clone();
+		Arrays.sort( this.micrometerRadii );
+		this.micrometerPosition = micrometerPosition;
+		this.dataSources = dataSources;
+		this.mipMapLevel = mipMapLevel;
+		this.micrometerVoxelSize = micrometerVoxelSize;
+	}
+
+	public void setNumThreads( int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	public void setLogging( boolean isLogging )
+	{
+		this.isLogging = isLogging;
+	}
+
+	public void setMinNumVoxelsPerRadius( double minNumVoxelsPerRadius )
+	{
+		this.minNumVoxelsPerRadius = minNumVoxelsPerRadius;
+	}
+
+	/**
+	 * Results of each radius are taken from and added to the cache, which may be shared
+	 * with {@link GeneSearch}; cancelled searches are not cached.
+	 */
+	public void setResultCache( GeneSearchCache resultCache )
+	{
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * Stops the search as soon as the genes currently being examined are done.
+	 * {@link #runSearchAndGetLocalExpression()} then returns the genes examined so far.
+	 */
+	public void cancel()
+	{
+		isCancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		return isCancelled;
+	}
+
+	/**
+	 * The radii in increasing order, as used for the results.
+	 */
+	public double[] getRadii()
+	{
+		return micrometerRadii;
+	}
+
+	public int getSearchMipMapLevel( int radiusIndex )
+	{
+		return searchMipMapLevels[ radiusIndex ];
+	}
+
+	/**
+	 * Returns, for each radius in increasing order, the fraction of expressing voxels of all genes.
+	 *
+	 * @throws IllegalStateException if any gene could not be examined
+	 */
+	public List< Map< String, Double > > runSearchAndGetLocalExpression()
+	{
+		final Map< String, PlatySource > registeredSources = dataSources;
+		dataSources = GeneSearch.retainGeneSources( registeredSources );
+
+		try
+		{
+			return search();
+		}
+		finally
+		{
+			GeneSearch.releaseGeneSources( dataSources );
+			dataSources = registeredSources;
+		}
+	}
+
+	private List< Map< String, Double > > search()
+	{
+		final ArrayList< String > geneNames = GeneSearch.getGeneNames( dataSources );
+
+		final int numRadii = micrometerRadii.length;
+		final List< Map< String, Double > > localExpression = new ArrayList<>(  );
+		for ( int r = 0; r < numRadii; ++r ) localExpression.add( new LinkedHashMap<>(  ) );
+
+		if ( geneNames.size() == 0 || numRadii == 0 ) return localExpression;
+
+		final ArrayList< PlatySource > geneSources = new ArrayList<>(  );
+		for ( String name : geneNames ) geneSources.add( dataSources.get( name ) );
+
+		final File atlasDirectory = geneSources.get( 0 ).file.getParentFile();
+
+		setSearchLevels( geneSources.get( 0 ) );
+
+		final boolean[] isDone = getCachedExpression( geneSources, localExpression );
+
+		// the indexed genes are evaluated for all radii at once, per radius
+		final List< Map< String, Double > > indexedExpression = new ArrayList<>(  );
+		for ( int r = 0; r < numRadii; ++r )
+		{
+			indexedExpression.add( ! isDone[ r ] && isIndexed[ r ]
+					? index.getLocalExpression( micrometerPosition, micrometerRadii[ r ] )
+					: Collections.emptyMap() );
+		}
+
+		// genes without expression near the largest sphere to examine are not expressed in any of the smaller ones
+		int largest = -1;
+		for ( int r = 0; r < numRadii; ++r ) if ( ! isDone[ r ] ) largest = r;
+
+		final Set< String > prunedGenes = largest < 0 ? Collections.emptySet() :
+				GeneSearch.getPrunedGenes( atlasDirectory, geneNames, micrometerPosition, micrometerRadii[ largest ], searchVoxelSizes[ largest ] );
+
+		final Map< String, boolean[] > isExamined = new HashMap<>(  );
+		final ArrayList< String > examinedGenes = new ArrayList<>(  );
+		for ( String name : geneNames )
+		{
+			if ( prunedGenes.contains( name ) ) continue;
+
+			final boolean[] isExaminedAtRadius = new boolean[ numRadii ];
+			boolean isExaminedAny = false;
+			for ( int r = 0; r < numRadii; ++r )
+			{
+				isExaminedAtRadius[ r ] = ! isDone[ r ] && ! indexedExpression.get( r ).containsKey( name );
+				isExaminedAny |= isExaminedAtRadius[ r ];
+			}
+
+			if ( isExaminedAny )
+			{
+				isExamined.put( name, isExaminedAtRadius );
+				examinedGenes.add( name );
+			}
+		}
+
+		final Map< String, CompletableFuture< double[] > > futures = GeneSearchExecutor.examine(
+				examinedGenes, numThreads, name -> examine( name, isExamined.get( name ) ), () -> isCancelled );
+
+		try
+		{
+			// collecting in gene order keeps the order of the data sources
+			for ( String name : geneNames )
+			{
+				final double[] fractions = futures.containsKey( name ) ? getFractions( futures.get( name ) ) : null;
+
+				for ( int r = 0; r < numRadii; ++r )
+				{
+					if ( isDone[ r ] ) continue;
+
+					final Double indexed = indexedExpression.get( r ).get( name );
+					if ( indexed != null ) localExpression.get( r ).put( name, indexed );
+					else if ( prunedGenes.contains( name ) ) localExpression.get( r ).put( name, 0.0 );
+					else localExpression.get( r ).put( name, fractions[ r ] );
+				}
+			}
+		}
+		catch ( CancellationException e )
+		{
+			if ( ! isCancelled ) throw e;
+		}
+
+		if ( resultCache != null && ! isCancelled )
+		{
+			for ( int r = 0; r < numRadii; ++r )
+			{
+				if ( isDone[ r ] ) continue;
+				resultCache.put( geneSources, micrometerPosition, micrometerRadii[ r ], searchMipMapLevels[ r ], searchVoxelSizes[ r ], localExpression.get( r ) );
+			}
+		}
+
+		return localExpression;
+	}
+
+	/**
+	 * Waits for the examination of one gene, see {@link GeneSearch}.
+	 */
+	private double[] getFractions( Future< double[] > future )
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			// the genes that are not started yet are not examined any more
+			isCancelled = true;
+			throw new CancellationException( "Gene search interrupted" );
+		}
+		catch ( ExecutionException e )
+		{
+			if ( isCancelled ) throw new CancellationException( "Gene search cancelled" );
+
+			// a partial result would look like genes without expression
+			throw new IllegalStateException( "Gene search failed: " + e.getCause(), e.getCause() );
+		}
+	}
+
+	/**
+	 * Fills in the cached results and returns which radii they cover.
+	 */
+	private boolean[] getCachedExpression( List< PlatySource > geneSources, List< Map< String, Double > > localExpression )
+	{
+		final boolean[] isCached = new boolean[ micrometerRadii.length ];
+		if ( resultCache == null ) return isCached;
+
+		for ( int r = 0; r < micrometerRadii.length; ++r )
+		{
+			final Map< String, Double > cachedExpression = resultCache.get(
+					geneSources, micrometerPosition, micrometerRadii[ r ], searchMipMapLevels[ r ], searchVoxelSizes[ r ] );
+
+			if ( cachedExpression == null ) continue;
+
+			localExpression.get( r ).putAll( cachedExpression );
+			isCached[ r ] = true;
+		}
+
+		if ( isLogging ) Utils.log( "Gene search results of " + count( isCached ) + " of " + micrometerRadii.length + " radii taken from cache; " + resultCache );
+
+		return isCached;
+	}
+
+	private void setSearchLevels( PlatySource source )
+	{
+		final double[][] resolutions = source.getMipmapResolutions();
+		final double scale = micrometerVoxelSize / resolutions[ mipMapLevel ][ 0 ];
+
+		searchMipMapLevels = new int[ micrometerRadii.length ];
+		searchVoxelSizes = new double[ micrometerRadii.length ];
+		isIndexed = new boolean[ micrometerRadii.length ];
+		index = null;
+
+		for ( int r = 0; r < micrometerRadii.length; ++r )
+		{
+			searchMipMapLevels[ r ] = GeneSearch.getAppropriateLevel( micrometerRadii[ r ], scale, resolutions, mipMapLevel, minNumVoxelsPerRadius );
+			searchVoxelSizes[ r ] = scale * resolutions[ searchMipMapLevels[ r ] ][ 0 ];
+
+			// as in GeneSearch, the index is used for the radii that are searched on its level
+			final GenePresenceIndex radiusIndex = GeneSearch.getPresenceIndex( source.file.getParentFile(), searchMipMapLevels[ r ] );
+			if ( radiusIndex != null )
+			{
+				index = radiusIndex;
+				isIndexed[ r ] = true;
+			}
+		}
+	}
+
+	/**
+	 * @param isExamined
+	 * 			the radii for which the gene is examined; the fractions of all others are not set
+	 */
+	private < T extends RealType< T > & NativeType< T > > double[] examine( String name, boolean[] isExamined )
+	{
+		if ( isCancelled ) throw new CancellationException( "Gene search cancelled" );
+
+		if ( isLogging ) Utils.log( "Examining " + name );
+
+		final PlatySource source = dataSources.get( name );
+		final double[] fractions = new double[ micrometerRadii.length ];
+
+		// the radii of one level, in increasing order, are sampled in one sweep
+		final Map< Integer, List< Integer > > radiiPerLevel = new TreeMap<>(  );
+		for ( int r = 0; r < micrometerRadii.length; ++r )
+		{
+			if ( isExamined[ r ] ) radiiPerLevel.computeIfAbsent( searchMipMapLevels[ r ], level -> new ArrayList<>(  ) ).add( r );
+		}
+
+		for ( Map.Entry< Integer, List< Integer > > entry : radiiPerLevel.entrySet() )
+		{
+			final int level = entry.getKey();
+			final List< Integer > radii = entry.getValue();
+
+			final double[] levelRadii = new double[ radii.size() ];
+			for ( int i = 0; i < radii.size(); ++i ) levelRadii[ i ] = micrometerRadii[ radii.get( i ) ];
+
+			final RandomAccessibleInterval< T > image =
+					( RandomAccessibleInterval< T > ) GeneSearch.getSetupImgLoader( source ).getImage( 0, level );
+
+			final SphereKernel.Statistics[] statistics = Utils.getLocalStatistics(
+					image,
+					micrometerPosition,
+					levelRadii,
+					searchVoxelSizes[ radii.get( 0 ) ] );
+
+			for ( int i = 0; i < radii.size(); ++i )
+			{
+				fractions[ radii.get( i ) ] = GeneSearch.getExpression( source, level, statistics[ i ] );
+			}
+		}
+
+		return fractions;
+	}
+
+	private static int count( boolean[] values )
+	{
+		int count = 0;
+		for ( boolean value : values ) if ( value ) count++;
+		return count;
+	}
+}
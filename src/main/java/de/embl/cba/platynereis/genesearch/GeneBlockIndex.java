@@ -0,0 +1,419 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Inverted index from coarse atlas blocks to the genes expressed within them.
+ *
+ * The atlas is divided into cubic blocks of {@link #DEFAULT_BLOCK_SIZE} voxels of one
+ * mipmap level. For each block the index lists the genes with at least one non-zero voxel
+ * at full resolution, such that a search can skip all genes whose blocks do not touch the search sphere.
+ * Coarser levels are not scanned, as their averaged voxels may be zero next to sparse expression.
+ *
+ * The lists are held in memory as one array of gene indices with block offsets.
+ * On disk they are stored as deflated varints: the number of genes of each block,
+ * followed by the differences of its sorted gene indices.
+ *
+ * The index is not used once one of the gene sources it was built from changes; it then needs to be rebuilt.
+ */
+public class GeneBlockIndex
+{
+	public static final String FILE_NAME = "gene-block-index.bin";
+	public static final int DEFAULT_BLOCK_SIZE = 16;
+
+	private static final int MAGIC = 0x47424933; // "GBI3"
+
+	private static final Map< File, GeneBlockIndex > indices = new ConcurrentHashMap<>();
+
+	private final File file;
+	private final long lastModified;
+	private final int mipMapLevel;
+	private final double voxelSize;
+	private final int blockSize;
+	private final long[] numBlocks;
+	private final ArrayList< String > geneNames;
+	private final IndexedSources sources;
+	private final int[] blockOffsets;
+	private final int[] blockGenes;
+
+	private GeneBlockIndex( File file, int mipMapLevel, double voxelSize, int blockSize, long[] numBlocks,
+							ArrayList< String > geneNames, IndexedSources sources, int[] blockOffsets, int[] blockGenes )
+	{
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.mipMapLevel = mipMapLevel;
+		this.voxelSize = voxelSize;
+		this.blockSize = blockSize;
+		this.numBlocks = numBlocks;
+		this.geneNames = geneNames;
+		this.sources = sources;
+		this.blockOffsets = blockOffsets;
+		this.blockGenes = blockGenes;
+	}
+
+	/**
+	 * Returns the index stored in the atlas directory or null if there is none
+	 * or if it is outdated.
+	 */
+	public static GeneBlockIndex forDirectory( File directory )
+	{
+		final File file = new File( directory, FILE_NAME );
+
+		if ( ! file.exists() )
+		{
+			indices.remove( file );
+			return null;
+		}
+
+		GeneBlockIndex index = indices.get( file );
+		if ( index == null || index.lastModified != file.lastModified() )
+		{
+			try
+			{
+				index = open( file );
+				indices.put( file, index );
+			}
+			catch ( IOException e )
+			{
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		// pruning with an outdated index would drop genes that are expressed now
+		final String changedSource = index.sources.getChangedSource( directory );
+		if ( changedSource != null )
+		{
+			Utils.log( "Not using " + file + ", as " + changedSource + " has changed since; please rebuild the index." );
+			return null;
+		}
+
+		return index;
+	}
+
+	public static GeneBlockIndex open( File file ) throws IOException
+	{
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream(
+				new InflaterInputStream( new FileInputStream( file ) ), 1 << 16 ) ) )
+		{
+			if ( in.readInt() != MAGIC )
+			{
+				throw new IOException( "Not a gene block index: " + file );
+			}
+
+			final int mipMapLevel = in.readInt();
+			final double voxelSize = in.readDouble();
+			final int blockSize = in.readInt();
+			final long[] numBlocks = new long[]{ in.readLong(), in.readLong(), in.readLong() };
+			final int numGenes = in.readInt();
+			final ArrayList< String > geneNames = new ArrayList<>();
+			for ( int g = 0; g < numGenes; ++g )
+			{
+				geneNames.add( in.readUTF() );
+			}
+			final IndexedSources sources = IndexedSources.read( in );
+
+			final int numBlocksTotal = ( int ) ( numBlocks[ 0 ] * numBlocks[ 1 ] * numBlocks[ 2 ] );
+			final int[] blockOffsets = new int[ numBlocksTotal + 1 ];
+			final int numEntries = in.readInt();
+			final int[] blockGenes = new int[ numEntries ];
+
+			int entry = 0;
+			for ( int b = 0; b < numBlocksTotal; ++b )
+			{
+				final int numBlockGenes = readVarInt( in );
+				int gene = 0;
+				for ( int i = 0; i < numBlockGenes; ++i )
+				{
+					gene += readVarInt( in );
+					blockGenes[ entry++ ] = gene;
+				}
+				blockOffsets[ b + 1 ] = entry;
+			}
+
+			return new GeneBlockIndex( file, mipMapLevel, voxelSize, blockSize, numBlocks, geneNames, sources, blockOffsets, blockGenes );
+		}
+	}
+
+	/**
+	 * Builds the index from all gene sources in the atlas directory, scanning the genes in parallel.
+	 *
+	 * @param mipMapLevel the level whose voxels the blocks consist of; the genes are scanned at full resolution
+	 */
+	public static GeneBlockIndex build( File directory, int mipMapLevel, int blockSize, int numThreads ) throws IOException
+	{
+		final Map< String, PlatySource > geneSources = GeneSearch.getGeneSources( directory );
+
+		try
+		{
+			return build( directory, geneSources, mipMapLevel, blockSize, numThreads );
+		}
+		finally
+		{
+			GeneSearch.closeGeneSources( geneSources );
+		}
+	}
+
+	private static GeneBlockIndex build( File directory, Map< String, PlatySource > geneSources, int mipMapLevel, int blockSize, int numThreads ) throws IOException
+	{
+		if ( geneSources.size() == 0 )
+		{
+			throw new IOException( "No gene sources found in " + directory );
+		}
+
+		final ArrayList< String > geneNames = new ArrayList<>( geneSources.keySet() );
+		final IndexedSources sources = IndexedSources.of( geneSources.values() );
+
+		final PlatySource firstSource = geneSources.get( geneNames.get( 0 ) );
+		final long[] dimensions = Intervals.dimensionsAsLongArray( GeneSearch.getSetupImgLoader( firstSource ).getImage( 0, mipMapLevel ) );
+		final double voxelSize = GeneSearch.getVoxelSize( firstSource, mipMapLevel );
+
+		final long[] numBlocks = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d ) numBlocks[ d ] = ( dimensions[ d ] + blockSize - 1 ) / blockSize;
+		final double blockWidth = blockSize * voxelSize;
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+		final ArrayList< Future< BitSet > > futures = new ArrayList<>();
+		for ( String geneName : geneNames )
+		{
+			futures.add( executorService.submit( () ->
+					getExpressingBlocks( geneSources.get( geneName ), blockWidth, numBlocks ) ) );
+		}
+
+		final ArrayList< BitSet > expressingBlocks = new ArrayList<>();
+		try
+		{
+			for ( Future< BitSet > future : futures ) expressingBlocks.add( future.get() );
+		}
+		catch ( Exception e )
+		{
+			throw new IOException( "Building the gene block index failed", e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+
+		final File file = new File( directory, FILE_NAME );
+		final File tmpFile = new File( directory, FILE_NAME + ".tmp" );
+
+		// the stream is closed when written, the index is read into memory and the file is never mapped
+		write( tmpFile, mipMapLevel, voxelSize, blockSize, numBlocks, geneNames, sources, expressingBlocks );
+
+		indices.remove( file );
+
+		if ( ( file.exists() && ! file.delete() ) || ! tmpFile.renameTo( file ) )
+		{
+			throw new IOException( "Could not write " + file );
+		}
+
+		return forDirectory( directory );
+	}
+
+	/**
+	 * Marks the blocks that any non-zero full resolution voxel overlaps; voxels beyond the last block are
+	 * counted to it, such that it is a candidate for spheres outside of the index, too.
+	 */
+	private static BitSet getExpressingBlocks( PlatySource source, double blockWidth, long[] numBlocks )
+	{
+		Utils.log( "Indexing blocks of " + source.name );
+
+		final BitSet blocks = new BitSet();
+
+		final RandomAccessibleInterval< ? extends RealType< ? > > image =
+				( RandomAccessibleInterval< ? extends RealType< ? > > ) GeneSearch.getSetupImgLoader( source ).getImage( 0, 0 );
+		final double voxelSize = GeneSearch.getVoxelSize( source, 0 );
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( image ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			if ( cursor.next().getRealDouble() == 0 ) continue;
+
+			// unless the levels differ by integer factors, a voxel may overlap two blocks per dimension
+			for ( int d = 0; d < 3; ++d )
+			{
+				final long position = cursor.getLongPosition( d );
+				min[ d ] = Math.min( numBlocks[ d ] - 1, ( long ) Math.floor( position * voxelSize / blockWidth ) );
+				max[ d ] = Math.min( numBlocks[ d ] - 1, ( long ) Math.ceil( ( position + 1 ) * voxelSize / blockWidth ) - 1 );
+			}
+
+			for ( long z = min[ 2 ]; z <= max[ 2 ]; ++z )
+			{
+				for ( long y = min[ 1 ]; y <= max[ 1 ]; ++y )
+				{
+					for ( long x = min[ 0 ]; x <= max[ 0 ]; ++x )
+					{
+						blocks.set( ( int ) ( ( z * numBlocks[ 1 ] + y ) * numBlocks[ 0 ] + x ) );
+					}
+				}
+			}
+		}
+
+		return blocks;
+	}
+
+	private static void write( File file, int mipMapLevel, double voxelSize, int blockSize, long[] numBlocks,
+							   ArrayList< String > geneNames, IndexedSources sources, ArrayList< BitSet > expressingBlocks ) throws IOException
+	{
+		final int numBlocksTotal = ( int ) ( numBlocks[ 0 ] * numBlocks[ 1 ] * numBlocks[ 2 ] );
+
+		int numEntries = 0;
+		for ( BitSet blocks : expressingBlocks ) numEntries += blocks.cardinality();
+
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+				new DeflaterOutputStream( new FileOutputStream( file ) ), 1 << 16 ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( mipMapLevel );
+			out.writeDouble( voxelSize );
+			out.writeInt( blockSize );
+			for ( int d = 0; d < 3; ++d ) out.writeLong( numBlocks[ d ] );
+			out.writeInt( geneNames.size() );
+			for ( String geneName : geneNames ) out.writeUTF( geneName );
+			sources.write( out );
+			out.writeInt( numEntries );
+
+			final int[] blockGenes = new int[ geneNames.size() ];
+			for ( int b = 0; b < numBlocksTotal; ++b )
+			{
+				int numBlockGenes = 0;
+				for ( int g = 0; g < geneNames.size(); ++g )
+				{
+					if ( expressingBlocks.get( g ).get( b ) ) blockGenes[ numBlockGenes++ ] = g;
+				}
+
+				writeVarInt( out, numBlockGenes );
+				for ( int i = 0; i < numBlockGenes; ++i )
+				{
+					writeVarInt( out, i == 0 ? blockGenes[ 0 ] : blockGenes[ i ] - blockGenes[ i - 1 ] );
+				}
+			}
+		}
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public int getMipMapLevel()
+	{
+		return mipMapLevel;
+	}
+
+	public double getVoxelSize()
+	{
+		return voxelSize;
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	public boolean contains( String geneName )
+	{
+		return geneNames.contains( geneName );
+	}
+
+	/**
+	 * Returns the genes with any expression in a block touching the sphere.
+	 * Indexed genes that are not returned have no expression within the sphere.
+	 */
+	public Set< String > getCandidateGenes( double[] micrometerPosition, double micrometerRadius )
+	{
+		final double blockWidth = blockSize * voxelSize;
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = Math.max( 0, ( long ) Math.floor( ( micrometerPosition[ d ] - micrometerRadius ) / blockWidth ) );
+			max[ d ] = Math.min( numBlocks[ d ] - 1, ( long ) Math.floor( ( micrometerPosition[ d ] + micrometerRadius ) / blockWidth ) );
+		}
+
+		final boolean[] isCandidate = new boolean[ geneNames.size() ];
+		final double squaredRadius = micrometerRadius * micrometerRadius;
+
+		for ( long z = min[ 2 ]; z <= max[ 2 ]; ++z )
+		{
+			final double dz = getDistanceToBlock( micrometerPosition[ 2 ], z, blockWidth );
+			for ( long y = min[ 1 ]; y <= max[ 1 ]; ++y )
+			{
+				final double dy = getDistanceToBlock( micrometerPosition[ 1 ], y, blockWidth );
+				for ( long x = min[ 0 ]; x <= max[ 0 ]; ++x )
+				{
+					final double dx = getDistanceToBlock( micrometerPosition[ 0 ], x, blockWidth );
+					if ( dx * dx + dy * dy + dz * dz > squaredRadius ) continue;
+
+					final int block = ( int ) ( ( z * numBlocks[ 1 ] + y ) * numBlocks[ 0 ] + x );
+					for ( int i = blockOffsets[ block ]; i < blockOffsets[ block + 1 ]; ++i )
+					{
+						isCandidate[ blockGenes[ i ] ] = true;
+					}
+				}
+			}
+		}
+
+		final Set< String > candidateGenes = new HashSet<>();
+		for ( int g = 0; g < geneNames.size(); ++g )
+		{
+			if ( isCandidate[ g ] ) candidateGenes.add( geneNames.get( g ) );
+		}
+
+		return candidateGenes;
+	}
+
+	private static double getDistanceToBlock( double position, long block, double blockWidth )
+	{
+		final double blockMin = block * blockWidth;
+		final double blockMax = blockMin + blockWidth;
+		if ( position < blockMin ) return blockMin - position;
+		if ( position > blockMax ) return position - blockMax;
+		return 0.0;
+	}
+
+	private static void writeVarInt( DataOutputStream out, int value ) throws IOException
+	{
+		while ( ( value & ~0x7F ) != 0 )
+		{
+			out.writeByte( ( value & 0x7F ) | 0x80 );
+			value >>>= 7;
+		}
+		out.writeByte( value );
+	}
+
+	private static int readVarInt( DataInputStream in ) throws IOException
+	{
+		int value = 0;
+		int shift = 0;
+		int b;
+		do
+		{
+			b = in.readUnsignedByte();
+			value |= ( b & 0x7F ) << shift;
+			shift += 7;
+		}
+		while ( ( b & 0x80 ) != 0 );
+		return value;
+	}
+}
@@ -0,0 +1,418 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pairwise spatial overlap of all ProSPr genes at one mipmap level.
+ *
+ * For each pair of genes the matrix holds the number of voxels in which both are expressed;
+ * the diagonal holds the number of voxels of each gene. The Jaccard index of two genes is
+ * their overlap divided by the number of voxels in which either is expressed.
+ *
+ * The matrix is computed in one pass over the atlas: slabs of slices are processed in parallel,
+ * each gene's mask within a slab is packed into a bit array, and the overlaps are counted
+ * from the bitwise intersections of all genes expressed within the slab.
+ * The matrix is stored in the atlas directory; it is not used once one of the gene sources
+ * it was computed from changes, and then needs to be computed again.
+ */
+public class GeneCoexpression
+{
+	public static final String FILE_NAME = "gene-coexpression.bin";
+
+	private static final int MAGIC = 0x47434D32; // "GCM2"
+	private static final long MAX_VOXELS_PER_SLAB = 1L << 20;
+
+	private static final Map< File, GeneCoexpression > matrices = new ConcurrentHashMap<>();
+
+	private final File file;
+	private final long lastModified;
+	private final int mipMapLevel;
+	private final double voxelSize;
+	private final ArrayList< String > geneNames;
+	private final IndexedSources sources;
+	private final Map< String, Integer > geneIndices;
+	private final long[][] overlaps;
+
+	private GeneCoexpression( File file, int mipMapLevel, double voxelSize, ArrayList< String > geneNames, IndexedSources sources, long[][] overlaps )
+	{
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.mipMapLevel = mipMapLevel;
+		this.voxelSize = voxelSize;
+		this.geneNames = geneNames;
+		this.sources = sources;
+		this.overlaps = overlaps;
+
+		geneIndices = new HashMap<>();
+		for ( int g = 0; g < geneNames.size(); ++g ) geneIndices.put( geneNames.get( g ), g );
+	}
+
+	/**
+	 * Returns the matrix stored in the atlas directory or null if there is none
+	 * or if it is outdated.
+	 */
+	public static GeneCoexpression forDirectory( File directory )
+	{
+		final File file = new File( directory, FILE_NAME );
+
+		if ( ! file.exists() )
+		{
+			matrices.remove( file );
+			return null;
+		}
+
+		GeneCoexpression matrix = matrices.get( file );
+		if ( matrix == null || matrix.lastModified != file.lastModified() )
+		{
+			try
+			{
+				matrix = open( file );
+				matrices.put( file, matrix );
+			}
+			catch ( IOException e )
+			{
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		final String changedSource = matrix.sources.getChangedSource( directory );
+		if ( changedSource != null )
+		{
+			Utils.log( "Not using " + file + ", as " + changedSource + " has changed since; please compute the matrix again." );
+			return null;
+		}
+
+		return matrix;
+	}
+
+	public static GeneCoexpression open( File file ) throws IOException
+	{
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ) ) )
+		{
+			if ( in.readInt() != MAGIC )
+			{
+				throw new IOException( "Not a gene co-expression matrix: " + file );
+			}
+
+			final int mipMapLevel = in.readInt();
+			final double voxelSize = in.readDouble();
+			final int numGenes = in.readInt();
+			final ArrayList< String > geneNames = new ArrayList<>();
+			for ( int g = 0; g < numGenes; ++g )
+			{
+				geneNames.add( in.readUTF() );
+			}
+			final IndexedSources sources = IndexedSources.read( in );
+
+			// upper triangle, including the diagonal
+			final long[][] overlaps = new long[ numGenes ][ numGenes ];
+			for ( int a = 0; a < numGenes; ++a )
+			{
+				for ( int b = a; b < numGenes; ++b )
+				{
+					overlaps[ a ][ b ] = in.readLong();
+					overlaps[ b ][ a ] = overlaps[ a ][ b ];
+				}
+			}
+
+			return new GeneCoexpression( file, mipMapLevel, voxelSize, geneNames, sources, overlaps );
+		}
+	}
+
+	/**
+	 * Computes the matrix of all gene sources in the atlas directory, at the given mipmap level.
+	 * Genes whose dimensions differ from those of the first gene are left out of the matrix.
+	 */
+	public static GeneCoexpression build( File directory, int mipMapLevel, int numThreads ) throws IOException
+	{
+		final Map< String, PlatySource > geneSources = GeneSearch.getGeneSources( directory );
+
+		try
+		{
+			return build( directory, geneSources, mipMapLevel, numThreads );
+		}
+		finally
+		{
+			GeneSearch.closeGeneSources( geneSources );
+		}
+	}
+
+	private static GeneCoexpression build( File directory, Map< String, PlatySource > geneSources, int mipMapLevel, int numThreads ) throws IOException
+	{
+		if ( geneSources.size() == 0 )
+		{
+			throw new IOException( "No gene sources found in " + directory );
+		}
+
+		final IndexedSources sources = IndexedSources.of( geneSources.values() );
+
+		final PlatySource firstSource = geneSources.values().iterator().next();
+		final long[] dimensions = Intervals.dimensionsAsLongArray( GeneSearch.getSetupImgLoader( firstSource ).getImage( 0, mipMapLevel ) );
+		final double voxelSize = GeneSearch.getVoxelSize( firstSource, mipMapLevel );
+
+		// skipped genes are not in the matrix at all, rather than looking like genes without expression
+		final ArrayList< String > geneNames = new ArrayList<>();
+		final ArrayList< RandomAccessibleInterval< ? extends RealType< ? > > > images = new ArrayList<>();
+		for ( String geneName : geneSources.keySet() )
+		{
+			final RandomAccessibleInterval< ? extends RealType< ? > > image =
+					( RandomAccessibleInterval< ? extends RealType< ? > > ) GeneSearch.getSetupImgLoader( geneSources.get( geneName ) ).getImage( 0, mipMapLevel );
+
+			if ( ! Arrays.equals( Intervals.dimensionsAsLongArray( image ), dimensions ) )
+			{
+				Utils.log( "Skipping " + geneName + ": dimensions differ from " + firstSource.name );
+				continue;
+			}
+
+			geneNames.add( geneName );
+			images.add( image );
+		}
+
+		if ( geneNames.size() < geneSources.size() )
+		{
+			Utils.log( "Gene co-expression: " + ( geneSources.size() - geneNames.size() ) + " of " + geneSources.size() + " genes skipped." );
+		}
+
+		final int numGenes = geneNames.size();
+
+		final int slicesPerSlab = ( int ) Math.max( 1, MAX_VOXELS_PER_SLAB / ( dimensions[ 0 ] * dimensions[ 1 ] ) );
+		final int numSlabs = ( int ) ( ( dimensions[ 2 ] + slicesPerSlab - 1 ) / slicesPerSlab );
+		final AtomicInteger nextSlab = new AtomicInteger();
+
+		// each task sums into its own matrix, taking slabs until all are done
+		final int numTasks = Math.max( 1, Math.min( numThreads, numSlabs ) );
+		final ExecutorService executorService = Executors.newFixedThreadPool( numTasks );
+		final ArrayList< Future< long[][] > > futures = new ArrayList<>();
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			futures.add( executorService.submit( () ->
+					countOverlaps( images, dimensions, slicesPerSlab, numSlabs, nextSlab ) ) );
+		}
+
+		final long[][] overlaps = new long[ numGenes ][ numGenes ];
+		try
+		{
+			for ( Future< long[][] > future : futures )
+			{
+				final long[][] taskOverlaps = future.get();
+				for ( int a = 0; a < numGenes; ++a )
+					for ( int b = a; b < numGenes; ++b )
+						overlaps[ a ][ b ] += taskOverlaps[ a ][ b ];
+			}
+		}
+		catch ( Exception e )
+		{
+			throw new IOException( "Computing the gene co-expression matrix failed", e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+
+		for ( int a = 0; a < numGenes; ++a )
+			for ( int b = a + 1; b < numGenes; ++b )
+				overlaps[ b ][ a ] = overlaps[ a ][ b ];
+
+		final File file = new File( directory, FILE_NAME );
+		final File tmpFile = new File( directory, FILE_NAME + ".tmp" );
+
+		write( tmpFile, mipMapLevel, voxelSize, geneNames, sources, overlaps );
+
+		if ( ( file.exists() && ! file.delete() ) || ! tmpFile.renameTo( file ) )
+		{
+			throw new IOException( "Could not write " + file );
+		}
+
+		matrices.remove( file );
+
+		return forDirectory( directory );
+	}
+
+	private static long[][] countOverlaps(
+			ArrayList< RandomAccessibleInterval< ? extends RealType< ? > > > images,
+			long[] dimensions,
+			int slicesPerSlab,
+			int numSlabs,
+			AtomicInteger nextSlab )
+	{
+		final int numGenes = images.size();
+		final long[][] overlaps = new long[ numGenes ][ numGenes ];
+
+		final int maxNumWords = ( int ) ( ( dimensions[ 0 ] * dimensions[ 1 ] * slicesPerSlab + 63 ) / 64 );
+		final long[][] bits = new long[ numGenes ][ maxNumWords ];
+		final int[] expressedGenes = new int[ numGenes ];
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[]{ dimensions[ 0 ] - 1, dimensions[ 1 ] - 1, 0 };
+
+		for ( int slab = nextSlab.getAndIncrement(); slab < numSlabs; slab = nextSlab.getAndIncrement() )
+		{
+			min[ 2 ] = ( long ) slab * slicesPerSlab;
+			max[ 2 ] = Math.min( dimensions[ 2 ] - 1, min[ 2 ] + slicesPerSlab - 1 );
+			final int numWords = ( int ) ( ( dimensions[ 0 ] * dimensions[ 1 ] * ( max[ 2 ] - min[ 2 ] + 1 ) + 63 ) / 64 );
+
+			int numExpressedGenes = 0;
+			for ( int g = 0; g < numGenes; ++g )
+			{
+				if ( packBits( images.get( g ), min, max, bits[ g ], numWords ) ) expressedGenes[ numExpressedGenes++ ] = g;
+			}
+
+			// genes without expression in this slab contribute no overlaps
+			for ( int i = 0; i < numExpressedGenes; ++i )
+			{
+				final int a = expressedGenes[ i ];
+				final long[] bitsA = bits[ a ];
+
+				for ( int j = i; j < numExpressedGenes; ++j )
+				{
+					final int b = expressedGenes[ j ];
+					final long[] bitsB = bits[ b ];
+
+					long overlap = 0;
+					for ( int w = 0; w < numWords; ++w )
+					{
+						overlap += Long.bitCount( bitsA[ w ] & bitsB[ w ] );
+					}
+					overlaps[ a ][ b ] += overlap;
+				}
+			}
+		}
+
+		return overlaps;
+	}
+
+	/**
+	 * Sets one bit per non-zero voxel of the interval, in flat iteration order.
+	 *
+	 * @return whether any voxel is non-zero
+	 */
+	private static boolean packBits( RandomAccessibleInterval< ? extends RealType< ? > > image, long[] min, long[] max, long[] bits, int numWords )
+	{
+		Arrays.fill( bits, 0, numWords, 0L );
+
+		boolean isExpressed = false;
+		int i = 0;
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( Views.interval( image, min, max ) ).cursor();
+		while ( cursor.hasNext() )
+		{
+			if ( cursor.next().getRealDouble() != 0 )
+			{
+				bits[ i >>> 6 ] |= 1L << i;
+				isExpressed = true;
+			}
+			++i;
+		}
+
+		return isExpressed;
+	}
+
+	private static void write( File file, int mipMapLevel, double voxelSize, ArrayList< String > geneNames, IndexedSources sources, long[][] overlaps ) throws IOException
+	{
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( mipMapLevel );
+			out.writeDouble( voxelSize );
+			out.writeInt( geneNames.size() );
+			for ( String geneName : geneNames ) out.writeUTF( geneName );
+			sources.write( out );
+
+			for ( int a = 0; a < geneNames.size(); ++a )
+				for ( int b = a; b < geneNames.size(); ++b )
+					out.writeLong( overlaps[ a ][ b ] );
+		}
+	}
+
+	public boolean contains( String geneName )
+	{
+		return geneIndices.containsKey( geneName );
+	}
+
+	public long getNumVoxels( String geneName )
+	{
+		return getOverlap( geneName, geneName );
+	}
+
+	/**
+	 * @return the number of voxels in which both genes are expressed
+	 */
+	public long getOverlap( String geneName, String otherGeneName )
+	{
+		if ( ! contains( geneName ) || ! contains( otherGeneName ) ) return 0;
+
+		return overlaps[ geneIndices.get( geneName ) ][ geneIndices.get( otherGeneName ) ];
+	}
+
+	public double getJaccardIndex( String geneName, String otherGeneName )
+	{
+		final long overlap = getOverlap( geneName, otherGeneName );
+		final long union = getNumVoxels( geneName ) + getNumVoxels( otherGeneName ) - overlap;
+
+		return union > 0 ? 1.0 * overlap / union : 0.0;
+	}
+
+	/**
+	 * Returns up to k genes overlapping the given gene, by decreasing Jaccard index.
+	 */
+	public Map< String, Double > getMostSimilarGenes( String geneName, int k )
+	{
+		final Map< String, Double > jaccardIndices = new HashMap<>();
+
+		if ( contains( geneName ) )
+		{
+			for ( String otherGeneName : geneNames )
+			{
+				if ( otherGeneName.equals( geneName ) ) continue;
+
+				final double jaccardIndex = getJaccardIndex( geneName, otherGeneName );
+				if ( jaccardIndex > 0 ) jaccardIndices.put( otherGeneName, jaccardIndex );
+			}
+		}
+
+		final ArrayList< String > sortedGenes = new ArrayList<>( Utils.sortByValue( jaccardIndices ).keySet() );
+
+		final Map< String, Double > mostSimilarGenes = new LinkedHashMap<>();
+		for ( int i = sortedGenes.size() - 1; i >= 0 && mostSimilarGenes.size() < k; --i )
+		{
+			mostSimilarGenes.put( sortedGenes.get( i ), jaccardIndices.get( sortedGenes.get( i ) ) );
+		}
+
+		return mostSimilarGenes;
+	}
+
+	public List< String > getGeneNames()
+	{
+		return Collections.unmodifiableList( geneNames );
+	}
+
+	public int getMipMapLevel()
+	{
+		return mipMapLevel;
+	}
+
+	public double getVoxelSize()
+	{
+		return voxelSize;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+}
@@ -0,0 +1,381 @@
+package de.embl.cba.platynereis.genesearch;
+
+import bdv.ViewerSetupImgLoader;
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.utils.FileUtils;
+import de.embl.cba.platynereis.utils.SphereKernel;
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bit-sliced presence index of all ProSPr genes.
+ *
+ * For each voxel of one mipmap level the index holds one bit per gene, packed into
+ * longs. The file lives in the atlas directory and is memory-mapped, such that
+ * all genes can be evaluated within a sphere in a single pass.
+ *
+ * On coarser levels than the full resolution, whose voxels are averages of the mask, a voxel is
+ * counted as expressing if at least half of it expresses, see {@link GeneSearch#getMaskValue}.
+ * Partly expressing voxels at the border of a domain thus do not inflate the fraction of
+ * expressing voxels; the remaining error is below one voxel's volume per border voxel.
+ *
+ * The index is not used once one of the gene sources it was built from changes; it then needs to be rebuilt.
+ */
+public class GenePresenceIndex
+{
+	public static final String FILE_NAME = "gene-presence-index.bin";
+
+	private static final int MAGIC = 0x50474933; // "PGI3"
+	private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+	private static final Map< File, GenePresenceIndex > indices = new ConcurrentHashMap<>();
+
+	private final File file;
+	private final long lastModified;
+	private final int mipMapLevel;
+	private final double voxelSize;
+	private final long[] dimensions;
+	private final ArrayList< String > geneNames;
+	private final IndexedSources sources;
+	private final int wordsPerVoxel;
+	private final int slicesPerChunk;
+	private final MappedByteBuffer[] chunks;
+
+	private GenePresenceIndex( File file,
+							   int mipMapLevel,
+							   double voxelSize,
+							   long[] dimensions,
+							   ArrayList< String > geneNames,
+							   IndexedSources sources,
+							   long dataOffset,
+							   FileChannel.MapMode mapMode ) throws IOException
+	{
+		this.file = file;
+		this.mipMapLevel = mipMapLevel;
+		this.voxelSize = voxelSize;
+		this.dimensions = dimensions;
+		this.geneNames = geneNames;
+		this.sources = sources;
+		this.wordsPerVoxel = ( geneNames.size() + 63 ) / 64;
+
+		final long bytesPerSlice = dimensions[ 0 ] * dimensions[ 1 ] * wordsPerVoxel * 8;
+		if ( bytesPerSlice > MAX_CHUNK_BYTES )
+		{
+			throw new IOException( "Gene presence index slices are too large: " + bytesPerSlice + " bytes" );
+		}
+
+		this.slicesPerChunk = ( int ) Math.min( dimensions[ 2 ], MAX_CHUNK_BYTES / bytesPerSlice );
+		this.chunks = new MappedByteBuffer[ ( int ) ( ( dimensions[ 2 ] + slicesPerChunk - 1 ) / slicesPerChunk ) ];
+
+		try ( RandomAccessFile randomAccessFile = new RandomAccessFile( file, mapMode == FileChannel.MapMode.READ_ONLY ? "r" : "rw" ) )
+		{
+			if ( mapMode != FileChannel.MapMode.READ_ONLY )
+			{
+				randomAccessFile.setLength( dataOffset + bytesPerSlice * dimensions[ 2 ] );
+			}
+
+			final FileChannel channel = randomAccessFile.getChannel();
+			for ( int c = 0; c < chunks.length; ++c )
+			{
+				final long numSlices = Math.min( slicesPerChunk, dimensions[ 2 ] - ( long ) c * slicesPerChunk );
+				chunks[ c ] = channel.map( mapMode, dataOffset + c * slicesPerChunk * bytesPerSlice, numSlices * bytesPerSlice );
+				chunks[ c ].order( ByteOrder.LITTLE_ENDIAN );
+			}
+		}
+
+		this.lastModified = file.lastModified();
+	}
+
+	/**
+	 * Returns the index stored in the atlas directory or null if there is none
+	 * or if it is outdated.
+	 */
+	public static GenePresenceIndex forDirectory( File directory )
+	{
+		final File file = new File( directory, FILE_NAME );
+
+		if ( ! file.exists() )
+		{
+			indices.remove( file );
+			return null;
+		}
+
+		GenePresenceIndex index = indices.get( file );
+		if ( index == null || index.lastModified != file.lastModified() )
+		{
+			try
+			{
+				index = open( file );
+				indices.put( file, index );
+			}
+			catch ( IOException e )
+			{
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		final String changedSource = index.sources.getChangedSource( directory );
+		if ( changedSource != null )
+		{
+			Utils.log( "Not using " + file + ", as " + changedSource + " has changed since; please rebuild the index." );
+			return null;
+		}
+
+		return index;
+	}
+
+	public static GenePresenceIndex open( File file ) throws IOException
+	{
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+		{
+			if ( in.readInt() != MAGIC )
+			{
+				throw new IOException( "Not a gene presence index: " + file );
+			}
+
+			final int mipMapLevel = in.readInt();
+			final double voxelSize = in.readDouble();
+			final long[] dimensions = new long[]{ in.readLong(), in.readLong(), in.readLong() };
+			final int numGenes = in.readInt();
+			final ArrayList< String > geneNames = new ArrayList<>();
+			for ( int g = 0; g < numGenes; ++g )
+			{
+				geneNames.add( in.readUTF() );
+			}
+			final IndexedSources sources = IndexedSources.read( in );
+			final long dataOffset = in.readLong();
+
+			return new GenePresenceIndex( file, mipMapLevel, voxelSize, dimensions, geneNames, sources, dataOffset, FileChannel.MapMode.READ_ONLY );
+		}
+	}
+
+	/**
+	 * Builds the index from all gene sources in the atlas directory, at the given mipmap level.
+	 */
+	public static GenePresenceIndex build( File directory, int mipMapLevel, int numThreads ) throws IOException
+	{
+		final Map< String, PlatySource > geneSources = GeneSearch.getGeneSources( directory );
+
+		try
+		{
+			return build( directory, geneSources, mipMapLevel, numThreads );
+		}
+		finally
+		{
+			GeneSearch.closeGeneSources( geneSources );
+		}
+	}
+
+	private static GenePresenceIndex build( File directory, Map< String, PlatySource > geneSources, int mipMapLevel, int numThreads ) throws IOException
+	{
+		if ( geneSources.size() == 0 )
+		{
+			throw new IOException( "No gene sources found in " + directory );
+		}
+
+		final PlatySource firstSource = geneSources.values().iterator().next();
+		final ViewerSetupImgLoader< ?, ? > firstSetupImgLoader = GeneSearch.getSetupImgLoader( firstSource );
+		final long[] dimensions = Intervals.dimensionsAsLongArray( firstSetupImgLoader.getImage( 0, mipMapLevel ) );
+		final double voxelSize = GeneSearch.getVoxelSize( firstSource, mipMapLevel );
+
+		final ArrayList< String > geneNames = new ArrayList<>( geneSources.keySet() );
+		final IndexedSources sources = IndexedSources.of( geneSources.values() );
+
+		final File file = new File( directory, FILE_NAME );
+		final File tmpFile = new File( directory, FILE_NAME + ".tmp" );
+
+		final long dataOffset = writeHeader( tmpFile, mipMapLevel, voxelSize, dimensions, geneNames, sources );
+
+		final GenePresenceIndex index = new GenePresenceIndex(
+				tmpFile, mipMapLevel, voxelSize, dimensions, geneNames, sources, dataOffset, FileChannel.MapMode.READ_WRITE );
+
+		// each task owns one word, i.e. up to 64 genes, such that no two tasks write the same long
+		final ExecutorService executorService = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+		final ArrayList< Future< ? > > futures = new ArrayList<>();
+		for ( int word = 0; word < index.wordsPerVoxel; ++word )
+		{
+			final int firstGene = word * 64;
+			futures.add( executorService.submit( () -> {
+				for ( int g = firstGene; g < Math.min( firstGene + 64, geneNames.size() ); ++g )
+				{
+					index.addGene( g, geneSources.get( geneNames.get( g ) ) );
+				}
+			} ) );
+		}
+
+		try
+		{
+			for ( Future< ? > future : futures ) future.get();
+		}
+		catch ( Exception e )
+		{
+			throw new IOException( "Building the gene presence index failed", e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+
+		// a mapped file can neither be renamed nor replaced on Windows
+		for ( MappedByteBuffer chunk : index.chunks )
+		{
+			chunk.force();
+			FileUtils.unmap( chunk );
+		}
+
+		// running searches may still read the previous index, thus its mapping is released once it is collected
+		indices.remove( file );
+
+		if ( ( file.exists() && ! file.delete() ) || ! tmpFile.renameTo( file ) )
+		{
+			throw new IOException( "Could not write " + file );
+		}
+
+		return forDirectory( directory );
+	}
+
+	private static long writeHeader( File file, int mipMapLevel, double voxelSize, long[] dimensions, ArrayList< String > geneNames, IndexedSources sources ) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream( bytes );
+
+		out.writeInt( MAGIC );
+		out.writeInt( mipMapLevel );
+		out.writeDouble( voxelSize );
+		for ( int d = 0; d < 3; ++d ) out.writeLong( dimensions[ d ] );
+		out.writeInt( geneNames.size() );
+		for ( String geneName : geneNames ) out.writeUTF( geneName );
+		sources.write( out );
+
+		// data starts 8-byte aligned after the header and the offset field itself
+		final long dataOffset = ( ( bytes.size() + 8 + 7 ) / 8 ) * 8;
+		out.writeLong( dataOffset );
+		out.flush();
+
+		try ( FileOutputStream fileOutputStream = new FileOutputStream( file ) )
+		{
+			fileOutputStream.write( bytes.toByteArray() );
+		}
+
+		return dataOffset;
+	}
+
+	private void addGene( int gene, PlatySource source )
+	{
+		Utils.log( "Indexing " + source.name );
+
+		final RandomAccessibleInterval< ? extends RealType< ? > > image =
+				( RandomAccessibleInterval< ? extends RealType< ? > > ) GeneSearch.getSetupImgLoader( source ).getImage( 0, mipMapLevel );
+
+		if ( ! Arrays.equals( Intervals.dimensionsAsLongArray( image ), dimensions ) )
+		{
+			Utils.log( "Skipping " + source.name + ": dimensions differ from the index." );
+			return;
+		}
+
+		final int word = gene / 64;
+		final long bit = 1L << ( gene % 64 );
+
+		// at the full resolution all non-zero voxels are expressing
+		final double threshold = mipMapLevel == 0 ? Double.MIN_VALUE : 0.5 * GeneSearch.getMaskValue( source );
+
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( image ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			final double value = cursor.next().getRealDouble();
+			if ( value == 0 || value < threshold ) continue;
+
+			final MappedByteBuffer chunk = chunks[ ( int ) ( cursor.getLongPosition( 2 ) / slicesPerChunk ) ];
+			final int position = getBytePosition( cursor.getLongPosition( 0 ), cursor.getLongPosition( 1 ), cursor.getLongPosition( 2 ), word );
+			chunk.putLong( position, chunk.getLong( position ) | bit );
+		}
+	}
+
+	private int getBytePosition( long x, long y, long z, int word )
+	{
+		final long voxel = ( ( z % slicesPerChunk ) * dimensions[ 1 ] + y ) * dimensions[ 0 ] + x;
+		return ( int ) ( ( voxel * wordsPerVoxel + word ) * 8 );
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public int getMipMapLevel()
+	{
+		return mipMapLevel;
+	}
+
+	public double getVoxelSize()
+	{
+		return voxelSize;
+	}
+
+	public List< String > getGeneNames()
+	{
+		return Collections.unmodifiableList( geneNames );
+	}
+
+	public boolean contains( String geneName )
+	{
+		return geneNames.contains( geneName );
+	}
+
+	/**
+	 * Computes the fraction of expressing voxels of all indexed genes
+	 * within a sphere, reading each voxel's bits only once.
+	 */
+	public Map< String, Double > getLocalExpression( double[] micrometerPosition, double micrometerRadius )
+	{
+		final SphereKernel kernel = SphereKernel.forRadius( ( int ) Math.ceil( micrometerRadius / voxelSize ) );
+		final long[] center = Utils.getPixelPosition( micrometerPosition, voxelSize );
+
+		final long[] counts = new long[ geneNames.size() ];
+		final long[] numVoxels = new long[ 1 ];
+
+		kernel.forEachRun( center, new FinalInterval( dimensions ), ( y, z, xStart, xEnd ) -> {
+			final MappedByteBuffer chunk = chunks[ ( int ) ( z / slicesPerChunk ) ];
+			int position = getBytePosition( xStart, y, z, 0 );
+			for ( long x = xStart; x <= xEnd; ++x )
+			{
+				for ( int word = 0; word < wordsPerVoxel; ++word, position += 8 )
+				{
+					long bits = chunk.getLong( position );
+					while ( bits != 0 )
+					{
+						counts[ word * 64 + Long.numberOfTrailingZeros( bits ) ]++;
+						bits &= bits - 1;
+					}
+				}
+			}
+			numVoxels[ 0 ] += xEnd - xStart + 1;
+		} );
+
+		final Map< String, Double > localExpression = new LinkedHashMap<>();
+		for ( int g = 0; g < geneNames.size(); ++g )
+		{
+			// a sphere completely outside the atlas contains no expression
+			localExpression.put( geneNames.get( g ), numVoxels[ 0 ] == 0 ? 0.0 : 1.0 * counts[ g ] / numVoxels[ 0 ] );
+		}
+
+		return localExpression;
+	}
+}
@@ -0,0 +1,232 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.PlatySource;
+
+import java.util.*;
+
+/**
+ * Least recently used cache of gene search results.
+ *
+ * Results are keyed by the search position, quantized to the voxel grid of the
+ * resolution level the search runs on, together with radius and level. Positions
+ * within the same voxel thus share one result, as the search is centered on that voxel anyway.
+ *
+ * The cache remembers the gene sources its results refer to and is cleared as soon as
+ * it is queried with other sources. Sources are compared by identity, such that a gene
+ * whose source has been reloaded, e.g. after its file changed, invalidates the results.
+ * Only complete results, with a value for every gene, are cached.
+ *
+ * All caches are registered, such that replaced sources can be dropped from each of them,
+ * independent of the user interface the cache belongs to, see {@link #invalidateAll(PlatySource)}.
+ */
+public class GeneSearchCache
+{
+	private static final Set< GeneSearchCache > caches = Collections.newSetFromMap( new WeakHashMap<>() );
+
+	private final LinkedHashMap< Key, Map< String, Double > > results;
+	private int maxNumResults;
+	private List< PlatySource > geneSources;
+	private long numHits;
+	private long numMisses;
+
+	public GeneSearchCache( int maxNumResults )
+	{
+		this.maxNumResults = maxNumResults;
+		this.geneSources = new ArrayList<>();
+		this.results = new LinkedHashMap< Key, Map< String, Double > >( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry< Key, Map< String, Double > > eldest )
+			{
+				return size() > GeneSearchCache.this.maxNumResults;
+			}
+		};
+
+		synchronized ( caches )
+		{
+			caches.add( this );
+		}
+	}
+
+	/**
+	 * Removes the results referring to the source from all caches.
+	 */
+	public static void invalidateAll( PlatySource source )
+	{
+		final List< GeneSearchCache > cachesCopy;
+		synchronized ( caches )
+		{
+			cachesCopy = new ArrayList<>( caches );
+		}
+
+		for ( GeneSearchCache cache : cachesCopy ) cache.invalidate( source );
+	}
+
+	/**
+	 * Returns a copy of the cached expression levels, or null if there are none.
+	 */
+	public synchronized Map< String, Double > get( List< PlatySource > geneSources, double[] micrometerPosition, double micrometerRadius, int mipMapLevel, double micrometerVoxelSize )
+	{
+		invalidateIfSourcesChanged( geneSources );
+
+		final Map< String, Double > expression = results.get( new Key( micrometerPosition, micrometerRadius, mipMapLevel, micrometerVoxelSize ) );
+
+		if ( expression == null )
+		{
+			numMisses++;
+			return null;
+		}
+
+		numHits++;
+		return new LinkedHashMap<>( expression );
+	}
+
+	/**
+	 * Ignores incomplete results, i.e. without a value for each of the gene sources.
+	 */
+	public synchronized void put( List< PlatySource > geneSources, double[] micrometerPosition, double micrometerRadius, int mipMapLevel, double micrometerVoxelSize, Map< String, Double > expression )
+	{
+		if ( maxNumResults <= 0 ) return;
+
+		if ( ! isComplete( geneSources, expression ) ) return;
+
+		invalidateIfSourcesChanged( geneSources );
+
+		results.put( new Key( micrometerPosition, micrometerRadius, mipMapLevel, micrometerVoxelSize ), new LinkedHashMap<>( expression ) );
+	}
+
+	/**
+	 * Removes all results, e.g. after sources have been reloaded.
+	 */
+	public synchronized void invalidate()
+	{
+		results.clear();
+	}
+
+	/**
+	 * Removes all results if they refer to the source, e.g. as it has been replaced.
+	 */
+	public synchronized void invalidate( PlatySource source )
+	{
+		for ( PlatySource geneSource : geneSources )
+		{
+			if ( geneSource == source || geneSource.name.equals( source.name ) )
+			{
+				results.clear();
+				geneSources = new ArrayList<>();
+				return;
+			}
+		}
+	}
+
+	public synchronized void setMaxNumResults( int maxNumResults )
+	{
+		this.maxNumResults = maxNumResults;
+
+		final Iterator< Key > keys = results.keySet().iterator();
+		while ( results.size() > Math.max( 0, maxNumResults ) && keys.hasNext() )
+		{
+			keys.next();
+			keys.remove();
+		}
+	}
+
+	public synchronized int getMaxNumResults()
+	{
+		return maxNumResults;
+	}
+
+	public synchronized int size()
+	{
+		return results.size();
+	}
+
+	public synchronized long getNumHits()
+	{
+		return numHits;
+	}
+
+	public synchronized long getNumMisses()
+	{
+		return numMisses;
+	}
+
+	public synchronized void resetCounters()
+	{
+		numHits = 0;
+		numMisses = 0;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		final long numQueries = numHits + numMisses;
+		return String.format( "Gene search cache: %d / %d results, %d hits, %d misses (%.1f%% hits)",
+				results.size(), maxNumResults, numHits, numMisses,
+				numQueries > 0 ? 100.0 * numHits / numQueries : 0.0 );
+	}
+
+	private void invalidateIfSourcesChanged( List< PlatySource > geneSources )
+	{
+		boolean isSame = this.geneSources.size() == geneSources.size();
+		for ( int i = 0; isSame && i < geneSources.size(); ++i )
+		{
+			isSame = this.geneSources.get( i ) == geneSources.get( i );
+		}
+
+		if ( ! isSame )
+		{
+			results.clear();
+			this.geneSources = new ArrayList<>( geneSources );
+		}
+	}
+
+	private static boolean isComplete( List< PlatySource > geneSources, Map< String, Double > expression )
+	{
+		if ( expression.size() != geneSources.size() ) return false;
+
+		for ( PlatySource source : geneSources )
+		{
+			final Double value = expression.get( source.name );
+			if ( value == null || value.isNaN() ) return false;
+		}
+
+		return true;
+	}
+
+	private static class Key
+	{
+		private final long[] voxelPosition;
+		private final double micrometerRadius;
+		private final int mipMapLevel;
+
+		Key( double[] micrometerPosition, double micrometerRadius, int mipMapLevel, double micrometerVoxelSize )
+		{
+			// same quantization as the sphere center of the search, see Utils.getPixelPosition
+			this.voxelPosition = new long[ micrometerPosition.length ];
+			for ( int d = 0; d < micrometerPosition.length; ++d )
+			{
+				voxelPosition[ d ] = ( long ) ( micrometerPosition[ d ] / micrometerVoxelSize );
+			}
+			this.micrometerRadius = micrometerRadius;
+			this.mipMapLevel = mipMapLevel;
+		}
+
+		@Override
+		public boolean equals( Object o )
+		{
+			if ( this == o ) return true;
+			if ( ! ( o instanceof Key ) ) return false;
+			final Key key = ( Key ) o;
+			return mipMapLevel == key.mipMapLevel
+					&& Double.compare( micrometerRadius, key.micrometerRadius ) == 0
+					&& Arrays.equals( voxelPosition, key.voxelPosition );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * ( 31 * Arrays.hashCode( voxelPosition ) + Double.hashCode( micrometerRadius ) ) + mipMapLevel;
+		}
+	}
+}
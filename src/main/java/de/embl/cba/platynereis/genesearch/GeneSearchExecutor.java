@@ -0,0 +1,74 @@
+package de.embl.cba.platynereis.genesearch;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * The threads on which all gene searches examine their genes.
+ *
+ * The threads are shared, such that a search does not start threads of its own, and bounded by
+ * the number of processors, such that concurrent searches do not use more threads between them.
+ * Tasks must not wait for other tasks of this executor, as all threads may be waiting then.
+ */
+public class GeneSearchExecutor
+{
+	private static final ExecutorService executorService = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			runnable -> {
+				final Thread thread = new Thread( runnable, "PlatyBrowser gene search" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+
+	/**
+	 * Examines the genes on at most numThreads of the shared threads, in the given order.
+	 *
+	 * Genes that are not started before isCancelled returns true are cancelled.
+	 * A gene that cannot be examined completes its future exceptionally, with the exception thrown by examine.
+	 *
+	 * @return the result of each gene, in the given order
+	 */
+	public static < T > Map< String, CompletableFuture< T > > examine( List< String > geneNames, int numThreads, Function< String, T > examine, BooleanSupplier isCancelled )
+	{
+		final Map< String, CompletableFuture< T > > futures = new LinkedHashMap<>();
+		for ( String name : geneNames ) futures.put( name, new CompletableFuture<>() );
+
+		final AtomicInteger nextGene = new AtomicInteger();
+		final int numTasks = Math.max( 1, Math.min( numThreads, geneNames.size() ) );
+
+		// each task takes genes until all are taken
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			executorService.execute( () -> {
+				for ( int g = nextGene.getAndIncrement(); g < geneNames.size(); g = nextGene.getAndIncrement() )
+				{
+					final CompletableFuture< T > future = futures.get( geneNames.get( g ) );
+
+					if ( isCancelled.getAsBoolean() )
+					{
+						future.cancel( false );
+						continue;
+					}
+
+					try
+					{
+						future.complete( examine.apply( geneNames.get( g ) ) );
+					}
+					catch ( Throwable e )
+					{
+						future.completeExceptionally( e );
+					}
+				}
+			} );
+		}
+
+		return futures;
+	}
+}
@@ -0,0 +1,125 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.utils.FileUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The files and modification times of the sources an index of the atlas directory was built from,
+ * stored in the index header, such that an index is not used any more once one of them changes.
+ *
+ * The files are only checked again after {@link #sourcesChanged(File)}, which the directory
+ * watcher of the browser calls, such that searches do not need to access each source file.
+ */
+public class IndexedSources
+{
+	// incremented for each reported change of a directory
+	private static final Map< File, AtomicLong > directoryVersions = new ConcurrentHashMap<>();
+
+	private final String[] fileNames;
+	private final long[] lastModified;
+	private File checkedDirectory;
+	private long checkedVersion;
+	private String changedSource;
+
+	private IndexedSources( String[] fileNames, long[] lastModified )
+	{
+		this.fileNames = fileNames;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Must be called before the image data is read, such that changes during the indexing are detected.
+	 */
+	static IndexedSources of( Collection< PlatySource > sources )
+	{
+		final String[] fileNames = new String[ sources.size() ];
+		final long[] lastModified = new long[ sources.size() ];
+
+		int i = 0;
+		for ( PlatySource source : sources )
+		{
+			fileNames[ i ] = source.file.getName();
+			lastModified[ i ] = FileUtils.getSourceLastModified( source.file );
+			i++;
+		}
+
+		return new IndexedSources( fileNames, lastModified );
+	}
+
+	static IndexedSources read( DataInput in ) throws IOException
+	{
+		final int numSources = in.readInt();
+		final String[] fileNames = new String[ numSources ];
+		final long[] lastModified = new long[ numSources ];
+
+		for ( int i = 0; i < numSources; ++i )
+		{
+			fileNames[ i ] = in.readUTF();
+			lastModified[ i ] = in.readLong();
+		}
+
+		return new IndexedSources( fileNames, lastModified );
+	}
+
+	void write( DataOutput out ) throws IOException
+	{
+		out.writeInt( fileNames.length );
+		for ( int i = 0; i < fileNames.length; ++i )
+		{
+			out.writeUTF( fileNames[ i ] );
+			out.writeLong( lastModified[ i ] );
+		}
+	}
+
+	/**
+	 * Makes all indices of the directory check their sources again.
+	 */
+	public static void sourcesChanged( File directory )
+	{
+		getVersion( directory ).incrementAndGet();
+	}
+
+	/**
+	 * @return the name of a source file in the directory that was modified or removed since the indexing, or null
+	 */
+	synchronized String getChangedSource( File directory )
+	{
+		directory = directory.getAbsoluteFile();
+
+		// a change reported while checking is checked by the next call
+		final long version = getVersion( directory ).get();
+		if ( ! directory.equals( checkedDirectory ) || version != checkedVersion )
+		{
+			changedSource = findChangedSource( directory );
+			checkedDirectory = directory;
+			checkedVersion = version;
+		}
+
+		return changedSource;
+	}
+
+	private static AtomicLong getVersion( File directory )
+	{
+		return directoryVersions.computeIfAbsent( directory.getAbsoluteFile(), d -> new AtomicLong() );
+	}
+
+	private String findChangedSource( File directory )
+	{
+		for ( int i = 0; i < fileNames.length; ++i )
+		{
+			final File file = new File( directory, fileNames[ i ] );
+			if ( ! file.exists() || FileUtils.getSourceLastModified( file ) != lastModified[ i ] ) return fileNames[ i ];
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,311 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.utils.SphereKernel;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Max-pooled (logical OR) pyramid of one binary gene mask.
+ *
+ * Bit (x,y,z) of pyramid level k is set if any voxel of the full resolution mask within
+ * [x * 2^k, (x+1) * 2^k) x ... is non-zero. Unlike the averaged mipmaps of the sources,
+ * a zero bit thus guarantees that there is no expression within the cell.
+ *
+ * The pyramid is used to search a sphere on a mipmap level whose voxels are aligned
+ * power-of-two multiples of the full resolution voxels: cells are tested from the coarsest
+ * level downwards, and only voxels within cells that may be non-zero are read from the image.
+ */
+public class MaxPooledPyramid
+{
+	public static final int DEFAULT_MIN_LEVEL = 2;
+	public static final int DEFAULT_MAX_LEVEL = 6;
+
+	private static final int MAGIC = 0x4D505032; // "MPP2"
+
+	private final long[] dimensions;
+	private final int minLevel;
+	private final int maxLevel;
+	private final long[][] levelDimensions;
+	private final long[][] levelBits;
+
+	// the gene source the pyramid was built from, if it was read from a file
+	private IndexedSources sources;
+
+	private MaxPooledPyramid( long[] dimensions, int minLevel, int maxLevel )
+	{
+		this.dimensions = dimensions;
+		this.minLevel = minLevel;
+		this.maxLevel = maxLevel;
+
+		levelDimensions = new long[ maxLevel + 1 ][];
+		levelBits = new long[ maxLevel + 1 ][];
+		for ( int k = minLevel; k <= maxLevel; ++k )
+		{
+			levelDimensions[ k ] = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d ) levelDimensions[ k ][ d ] = ( ( dimensions[ d ] - 1 ) >> k ) + 1;
+
+			final long numCells = levelDimensions[ k ][ 0 ] * levelDimensions[ k ][ 1 ] * levelDimensions[ k ][ 2 ];
+			levelBits[ k ] = new long[ ( int ) ( ( numCells + 63 ) / 64 ) ];
+		}
+	}
+
+	/**
+	 * Computes the pyramid from the full resolution mask.
+	 */
+	public static MaxPooledPyramid create( RandomAccessibleInterval< ? extends RealType< ? > > image, int minLevel, int maxLevel )
+	{
+		final long[] dimensions = new long[]{ image.dimension( 0 ), image.dimension( 1 ), image.dimension( 2 ) };
+		final MaxPooledPyramid pyramid = new MaxPooledPyramid( dimensions, minLevel, maxLevel );
+
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( image ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			if ( cursor.next().getRealDouble() == 0 ) continue;
+
+			pyramid.set( minLevel,
+					cursor.getLongPosition( 0 ) >> minLevel,
+					cursor.getLongPosition( 1 ) >> minLevel,
+					cursor.getLongPosition( 2 ) >> minLevel );
+		}
+
+		for ( int k = minLevel + 1; k <= maxLevel; ++k )
+		{
+			final long[] finer = pyramid.levelDimensions[ k - 1 ];
+			for ( long z = 0; z < finer[ 2 ]; ++z )
+				for ( long y = 0; y < finer[ 1 ]; ++y )
+					for ( long x = 0; x < finer[ 0 ]; ++x )
+						if ( pyramid.get( k - 1, x, y, z ) )
+							pyramid.set( k, x >> 1, y >> 1, z >> 1 );
+		}
+
+		return pyramid;
+	}
+
+	/**
+	 * Returns log2 of the downsampling factor of the mipmap level relative to level 0,
+	 * or -1 if the level is not an isotropic power-of-two downsampling.
+	 */
+	public static int getDownsamplingLog2( double[][] mipmapResolutions, int mipMapLevel )
+	{
+		final double factor = mipmapResolutions[ mipMapLevel ][ 0 ] / mipmapResolutions[ 0 ][ 0 ];
+		final long roundedFactor = Math.round( factor );
+
+		if ( Math.abs( factor - roundedFactor ) > 1e-6 || Long.bitCount( roundedFactor ) != 1 ) return -1;
+
+		for ( int d = 1; d < 3; ++d )
+		{
+			if ( Math.abs( mipmapResolutions[ mipMapLevel ][ d ] / mipmapResolutions[ 0 ][ d ] - factor ) > 1e-6 ) return -1;
+		}
+
+		return Long.numberOfTrailingZeros( roundedFactor );
+	}
+
+	/**
+	 * Exact statistics of the voxels within a sphere on a mipmap level, as computed by
+	 * {@link SphereKernel#sample}, reading only voxels in cells that may be non-zero.
+	 * As all other voxels are zero, the counts and the sum are those of the whole sphere,
+	 * but the maximum is only taken over the voxels read.
+	 *
+	 * @param image
+	 * 			the mipmap level
+	 * @param center
+	 * 			sphere center in voxels of the mipmap level
+	 * @param radius
+	 * 			sphere radius in voxels of the mipmap level
+	 * @param downsamplingLog2
+	 * 			see {@link #getDownsamplingLog2}
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	SphereKernel.Statistics sample( RandomAccessibleInterval< T > image, long[] center, int radius, int downsamplingLog2 )
+	{
+		final SphereKernel kernel = SphereKernel.forRadius( radius );
+
+		final long[] numVoxels = new long[ 1 ];
+		kernel.forEachRun( center, image, ( y, z, xStart, xEnd ) -> numVoxels[ 0 ] += xEnd - xStart + 1 );
+
+		final SphereKernel.Statistics statistics = new SphereKernel.Statistics();
+
+		// the sphere lies completely outside the image
+		if ( numVoxels[ 0 ] == 0 ) return statistics;
+
+		final int stopLevel = Math.min( maxLevel, Math.max( minLevel, downsamplingLog2 ) );
+		final Set< Long > cells = getCellsIntersectingSphere( center, radius, downsamplingLog2, stopLevel );
+
+		if ( cells.isEmpty() )
+		{
+			statistics.numVoxels = numVoxels[ 0 ];
+			return statistics;
+		}
+
+		if ( stopLevel < downsamplingLog2 )
+		{
+			// the image voxels are larger than the pyramid cells, thus read the whole sphere
+			return kernel.sample( image, center );
+		}
+
+		// edge length of the cells in image voxels; each image voxel lies within exactly one cell
+		final long cellSize = 1L << ( stopLevel - downsamplingLog2 );
+
+		final SphereKernel.RunScanner scanner = SphereKernel.createScanner( image );
+
+		kernel.forEachRun( center, image, ( y, z, xStart, xEnd ) -> {
+			for ( long cellX = xStart / cellSize; cellX <= xEnd / cellSize; ++cellX )
+			{
+				if ( ! cells.contains( pack( cellX, y / cellSize, z / cellSize ) ) ) continue;
+
+				scanner.scan( y, z,
+						Math.max( xStart, cellX * cellSize ),
+						Math.min( xEnd, ( cellX + 1 ) * cellSize - 1 ),
+						statistics );
+			}
+		} );
+
+		statistics.numVoxels = numVoxels[ 0 ];
+		return statistics;
+	}
+
+	/**
+	 * Descends from the coarsest level to stopLevel, keeping the set cells that intersect the sphere.
+	 */
+	private Set< Long > getCellsIntersectingSphere( long[] center, int radius, int downsamplingLog2, int stopLevel )
+	{
+		// sphere bounding box in full resolution voxels
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = Math.max( 0, ( center[ d ] - radius ) << downsamplingLog2 );
+			max[ d ] = Math.min( dimensions[ d ] - 1, ( ( center[ d ] + radius + 1 ) << downsamplingLog2 ) - 1 );
+			if ( max[ d ] < min[ d ] ) return new HashSet<>();
+		}
+
+		ArrayList< long[] > cells = new ArrayList<>();
+		for ( long z = min[ 2 ] >> maxLevel; z <= max[ 2 ] >> maxLevel; ++z )
+			for ( long y = min[ 1 ] >> maxLevel; y <= max[ 1 ] >> maxLevel; ++y )
+				for ( long x = min[ 0 ] >> maxLevel; x <= max[ 0 ] >> maxLevel; ++x )
+					if ( isCandidate( maxLevel, x, y, z, center, radius, downsamplingLog2 ) )
+						cells.add( new long[]{ x, y, z } );
+
+		for ( int k = maxLevel - 1; k >= stopLevel && ! cells.isEmpty(); --k )
+		{
+			final ArrayList< long[] > children = new ArrayList<>();
+			for ( long[] cell : cells )
+				for ( int i = 0; i < 8; ++i )
+				{
+					final long x = 2 * cell[ 0 ] + ( i & 1 );
+					final long y = 2 * cell[ 1 ] + ( ( i >> 1 ) & 1 );
+					final long z = 2 * cell[ 2 ] + ( ( i >> 2 ) & 1 );
+					if ( isCandidate( k, x, y, z, center, radius, downsamplingLog2 ) )
+						children.add( new long[]{ x, y, z } );
+				}
+			cells = children;
+		}
+
+		final Set< Long > packedCells = new HashSet<>();
+		for ( long[] cell : cells ) packedCells.add( pack( cell[ 0 ], cell[ 1 ], cell[ 2 ] ) );
+		return packedCells;
+	}
+
+	private boolean isCandidate( int level, long x, long y, long z, long[] center, int radius, int downsamplingLog2 )
+	{
+		if ( ! get( level, x, y, z ) ) return false;
+
+		// squared distance from the sphere center to the nearest image voxel of the cell
+		final long[] cell = new long[]{ x, y, z };
+		long squaredDistance = 0;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final long cellMin = ( cell[ d ] << level ) >> downsamplingLog2;
+			final long cellMax = ( ( ( cell[ d ] + 1 ) << level ) - 1 ) >> downsamplingLog2;
+			final long distance = center[ d ] < cellMin ? cellMin - center[ d ] : ( center[ d ] > cellMax ? center[ d ] - cellMax : 0 );
+			squaredDistance += distance * distance;
+		}
+
+		return squaredDistance <= ( long ) radius * radius;
+	}
+
+	private static long pack( long x, long y, long z )
+	{
+		return ( z << 42 ) | ( y << 21 ) | x;
+	}
+
+	private boolean get( int level, long x, long y, long z )
+	{
+		final long[] dims = levelDimensions[ level ];
+		if ( x < 0 || y < 0 || z < 0 || x >= dims[ 0 ] || y >= dims[ 1 ] || z >= dims[ 2 ] ) return false;
+
+		final long index = ( z * dims[ 1 ] + y ) * dims[ 0 ] + x;
+		return ( levelBits[ level ][ ( int ) ( index >> 6 ) ] & ( 1L << index ) ) != 0;
+	}
+
+	private void set( int level, long x, long y, long z )
+	{
+		final long[] dims = levelDimensions[ level ];
+		final long index = ( z * dims[ 1 ] + y ) * dims[ 0 ] + x;
+		levelBits[ level ][ ( int ) ( index >> 6 ) ] |= 1L << index;
+	}
+
+	IndexedSources getSources()
+	{
+		return sources;
+	}
+
+	/**
+	 * @param sources the gene source, taken before its image data was read
+	 */
+	void write( File file, IndexedSources sources ) throws IOException
+	{
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+				new DeflaterOutputStream( new FileOutputStream( file ), new Deflater( Deflater.BEST_SPEED ), 1 << 16 ) ) ) )
+		{
+			out.writeInt( MAGIC );
+			sources.write( out );
+			for ( int d = 0; d < 3; ++d ) out.writeLong( dimensions[ d ] );
+			out.writeInt( minLevel );
+			out.writeInt( maxLevel );
+
+			for ( int k = minLevel; k <= maxLevel; ++k )
+			{
+				for ( long word : levelBits[ k ] ) out.writeLong( word );
+			}
+		}
+	}
+
+	public static MaxPooledPyramid read( File file ) throws IOException
+	{
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream(
+				new InflaterInputStream( new FileInputStream( file ) ), 1 << 16 ) ) )
+		{
+			if ( in.readInt() != MAGIC )
+			{
+				throw new IOException( "Not a max-pooled pyramid: " + file );
+			}
+
+			final IndexedSources sources = IndexedSources.read( in );
+			final long[] dimensions = new long[]{ in.readLong(), in.readLong(), in.readLong() };
+			final int minLevel = in.readInt();
+			final int maxLevel = in.readInt();
+
+			final MaxPooledPyramid pyramid = new MaxPooledPyramid( dimensions, minLevel, maxLevel );
+			pyramid.sources = sources;
+			for ( int k = minLevel; k <= maxLevel; ++k )
+			{
+				final long[] bits = pyramid.levelBits[ k ];
+				for ( int i = 0; i < bits.length; ++i ) bits[ i ] = in.readLong();
+			}
+
+			return pyramid;
+		}
+	}
+}
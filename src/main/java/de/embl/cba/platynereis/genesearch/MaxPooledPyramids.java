@@ -0,0 +1,193 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The max-pooled pyramids of all genes of one atlas directory.
+ *
+ * Pyramids are stored as one file per gene in {@link #FOLDER} and are only
+ * read from disk when a gene is searched for the first time.
+ *
+ * A pyramid is not used once its gene source changes, as pruning with it could drop voxels
+ * that express now; it then needs to be rebuilt. Pyramids whose file is rewritten are read anew.
+ */
+public class MaxPooledPyramids
+{
+	public static final String FOLDER = "max_pooled_pyramids";
+	public static final String SUFFIX = ".mpp";
+	public static final int DEFAULT_MAX_NUM_LOADED_PYRAMIDS = 256;
+
+	private static final Map< File, MaxPooledPyramids > pyramids = new ConcurrentHashMap<>();
+
+	private static class LoadedPyramid
+	{
+		final MaxPooledPyramid pyramid;
+		final long lastModified;
+
+		LoadedPyramid( MaxPooledPyramid pyramid, long lastModified )
+		{
+			this.pyramid = pyramid;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final File directory;
+	private final File folder;
+	private final Map< String, LoadedPyramid > loadedPyramids;
+
+	private MaxPooledPyramids( File directory, File folder, int maxNumLoadedPyramids )
+	{
+		this.directory = directory;
+		this.folder = folder;
+		this.loadedPyramids = Collections.synchronizedMap( new LinkedHashMap< String, LoadedPyramid >( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry< String, LoadedPyramid > eldest )
+			{
+				return size() > maxNumLoadedPyramids;
+			}
+		} );
+	}
+
+	/**
+	 * Returns the pyramids of the atlas directory or null if none have been built.
+	 */
+	public static MaxPooledPyramids forDirectory( File directory )
+	{
+		final File folder = new File( directory, FOLDER );
+
+		if ( ! folder.isDirectory() ) return null;
+
+		return pyramids.computeIfAbsent( folder, f -> new MaxPooledPyramids( directory, f, DEFAULT_MAX_NUM_LOADED_PYRAMIDS ) );
+	}
+
+	public boolean contains( String geneName )
+	{
+		return getFile( geneName ).exists();
+	}
+
+	/**
+	 * Returns the pyramid of the gene, loading it on first access, or null if it does not exist
+	 * or if the gene source changed since it was built.
+	 */
+	public MaxPooledPyramid get( String geneName )
+	{
+		final File file = getFile( geneName );
+
+		LoadedPyramid loaded = loadedPyramids.get( geneName );
+		if ( loaded == null || loaded.lastModified != file.lastModified() )
+		{
+			loadedPyramids.remove( geneName );
+
+			if ( ! file.exists() ) return null;
+
+			try
+			{
+				loaded = new LoadedPyramid( MaxPooledPyramid.read( file ), file.lastModified() );
+				loadedPyramids.put( geneName, loaded );
+			}
+			catch ( IOException e )
+			{
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		final String changedSource = loaded.pyramid.getSources().getChangedSource( directory );
+		if ( changedSource != null )
+		{
+			loadedPyramids.remove( geneName );
+			Utils.log( "Not using " + file + ", as " + changedSource + " has changed since; please rebuild the pyramid." );
+			return null;
+		}
+
+		return loaded.pyramid;
+	}
+
+	private File getFile( String geneName )
+	{
+		return new File( folder, geneName + SUFFIX );
+	}
+
+	/**
+	 * Builds the pyramids of all gene sources in the atlas directory from their full resolution masks.
+	 */
+	public static MaxPooledPyramids build( File directory, int minLevel, int maxLevel, int numThreads ) throws IOException
+	{
+		final Map< String, PlatySource > geneSources = GeneSearch.getGeneSources( directory );
+
+		try
+		{
+			return build( directory, geneSources, minLevel, maxLevel, numThreads );
+		}
+		finally
+		{
+			GeneSearch.closeGeneSources( geneSources );
+		}
+	}
+
+	private static MaxPooledPyramids build( File directory, Map< String, PlatySource > geneSources, int minLevel, int maxLevel, int numThreads ) throws IOException
+	{
+		final File folder = new File( directory, FOLDER );
+		if ( ! folder.isDirectory() && ! folder.mkdirs() )
+		{
+			throw new IOException( "Could not create " + folder );
+		}
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+		final ArrayList< Future< ? > > futures = new ArrayList<>();
+
+		for ( PlatySource source : geneSources.values() )
+		{
+			futures.add( executorService.submit( () -> {
+				Utils.log( "Computing max-pooled pyramid of " + source.name );
+
+				final IndexedSources sources = IndexedSources.of( Collections.singletonList( source ) );
+
+				final RandomAccessibleInterval< ? extends RealType< ? > > image =
+						( RandomAccessibleInterval< ? extends RealType< ? > > ) GeneSearch.getSetupImgLoader( source ).getImage( 0, 0 );
+
+				// searches never read a partly written pyramid
+				final File file = new File( folder, source.name + SUFFIX );
+				final File tmpFile = new File( folder, source.name + SUFFIX + ".tmp" );
+				MaxPooledPyramid.create( image, minLevel, maxLevel ).write( tmpFile, sources );
+
+				if ( ( file.exists() && ! file.delete() ) || ! tmpFile.renameTo( file ) )
+				{
+					throw new IOException( "Could not write " + file );
+				}
+
+				return null;
+			} ) );
+		}
+
+		try
+		{
+			for ( Future< ? > future : futures ) future.get();
+		}
+		catch ( Exception e )
+		{
+			throw new IOException( "Building the max-pooled pyramids failed", e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+
+		pyramids.remove( folder );
+
+		return forDirectory( directory );
+	}
+}
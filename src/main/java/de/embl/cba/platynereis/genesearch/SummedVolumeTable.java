@@ -0,0 +1,227 @@
+package de.embl.cba.platynereis.genesearch;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Summed-volume table (3D integral image) of the expression of one gene.
+ *
+ * Each voxel contributes its expressing fraction, in units of 1 / {@link #UNITS_PER_VOXEL}:
+ * at the full resolution a non-zero voxel expresses completely, on the coarser levels, whose
+ * voxels are averages of the mask, the fraction is the voxel's value relative to the mask value,
+ * see {@link de.embl.cba.platynereis.GeneSearch#getMaskValue}. The fraction of a box thus means the
+ * same as when counting the non-zero full resolution voxels within it.
+ *
+ * Entry (x,y,z) holds the sum over [0,x) x [0,y) x [0,z), such that the sum within any box is
+ * obtained from eight entries.
+ *
+ * On disk the entries follow a header uncompressed; the file is memory-mapped, such that the
+ * tables of all genes can be queried without being read into the heap.
+ */
+public class SummedVolumeTable
+{
+	public static final int UNITS_PER_VOXEL = 256;
+
+	private static final int MAGIC = 0x53565432; // "SVT2"
+
+	private final int mipMapLevel;
+	private final double voxelSize;
+	private final long[] dimensions;
+	private final IndexedSources sources;
+	private final IntBuffer table;
+	private final int strideY;
+	private final int strideZ;
+
+	private SummedVolumeTable( int mipMapLevel, double voxelSize, long[] dimensions, IndexedSources sources, IntBuffer table )
+	{
+		this.mipMapLevel = mipMapLevel;
+		this.voxelSize = voxelSize;
+		this.dimensions = dimensions;
+		this.sources = sources;
+		this.table = table;
+		this.strideY = ( int ) ( dimensions[ 0 ] + 1 );
+		this.strideZ = strideY * ( int ) ( dimensions[ 1 ] + 1 );
+	}
+
+	/**
+	 * @param maskValue the value of the expressing voxels of the full resolution mask
+	 * @param sources the gene source, taken before its image data is read
+	 */
+	static SummedVolumeTable create( RandomAccessibleInterval< ? extends RealType< ? > > image, int mipMapLevel, double voxelSize, double maskValue, IndexedSources sources )
+	{
+		final long[] dimensions = new long[]{ image.dimension( 0 ), image.dimension( 1 ), image.dimension( 2 ) };
+
+		// entries are ints, and the table is mapped as a single buffer
+		final long size = ( dimensions[ 0 ] + 1 ) * ( dimensions[ 1 ] + 1 ) * ( dimensions[ 2 ] + 1 );
+		final long numVoxels = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		if ( size > ( Integer.MAX_VALUE - 8 ) / 4 || numVoxels > Integer.MAX_VALUE / UNITS_PER_VOXEL )
+		{
+			throw new IllegalArgumentException( "Image is too large for a summed-volume table; please use a coarser resolution level." );
+		}
+
+		final int[] t = new int[ ( int ) size ];
+		final SummedVolumeTable svt = new SummedVolumeTable( mipMapLevel, voxelSize, dimensions, sources, IntBuffer.wrap( t ) );
+		final int sy = svt.strideY;
+		final int sz = svt.strideZ;
+
+		// flat iteration visits x fastest, then y, then z, i.e. all predecessors are set
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( image ).cursor();
+		for ( int z = 1; z <= dimensions[ 2 ]; ++z )
+		{
+			for ( int y = 1; y <= dimensions[ 1 ]; ++y )
+			{
+				int i = z * sz + y * sy + 1;
+				for ( int x = 1; x <= dimensions[ 0 ]; ++x, ++i )
+				{
+					final int value = getUnits( cursor.next().getRealDouble(), mipMapLevel, maskValue );
+					t[ i ] = value
+							+ t[ i - 1 ] + t[ i - sy ] + t[ i - sz ]
+							- t[ i - 1 - sy ] - t[ i - 1 - sz ] - t[ i - sy - sz ]
+							+ t[ i - 1 - sy - sz ];
+				}
+			}
+		}
+
+		return svt;
+	}
+
+	private static int getUnits( double value, int mipMapLevel, double maskValue )
+	{
+		if ( value == 0 || maskValue == 0 ) return 0;
+		if ( mipMapLevel == 0 ) return UNITS_PER_VOXEL;
+
+		return ( int ) Math.round( UNITS_PER_VOXEL * Math.min( 1.0, value / maskValue ) );
+	}
+
+	public int getMipMapLevel()
+	{
+		return mipMapLevel;
+	}
+
+	public double getVoxelSize()
+	{
+		return voxelSize;
+	}
+
+	IndexedSources getSources()
+	{
+		return sources;
+	}
+
+	/**
+	 * Summed expression within the box [min, max] (voxel units, inclusive), clipped to the image,
+	 * in units of 1 / {@link #UNITS_PER_VOXEL} voxels.
+	 */
+	public long getExpressionUnits( long[] min, long[] max )
+	{
+		final int x0 = ( int ) Math.max( 0, min[ 0 ] ), x1 = ( int ) Math.min( dimensions[ 0 ] - 1, max[ 0 ] ) + 1;
+		final int y0 = ( int ) Math.max( 0, min[ 1 ] ), y1 = ( int ) Math.min( dimensions[ 1 ] - 1, max[ 1 ] ) + 1;
+		final int z0 = ( int ) Math.max( 0, min[ 2 ] ), z1 = ( int ) Math.min( dimensions[ 2 ] - 1, max[ 2 ] ) + 1;
+
+		if ( x1 <= x0 || y1 <= y0 || z1 <= z0 ) return 0;
+
+		return ( long ) get( x1, y1, z1 )
+				- get( x0, y1, z1 ) - get( x1, y0, z1 ) - get( x1, y1, z0 )
+				+ get( x0, y0, z1 ) + get( x0, y1, z0 ) + get( x1, y0, z0 )
+				- get( x0, y0, z0 );
+	}
+
+	/**
+	 * Number of voxels within the box [min, max] (voxel units, inclusive), clipped to the image.
+	 */
+	public long getNumVoxels( long[] min, long[] max )
+	{
+		long numVoxels = 1;
+		for ( int d = 0; d < 3; ++d )
+		{
+			numVoxels *= Math.max( 0, Math.min( dimensions[ d ] - 1, max[ d ] ) - Math.max( 0, min[ d ] ) + 1 );
+		}
+		return numVoxels;
+	}
+
+	/**
+	 * Fraction of expressing voxels within a box given in micrometer units.
+	 */
+	public double getFractionOfExpressingVoxels( double[] micrometerMin, double[] micrometerMax )
+	{
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = ( long ) Math.floor( micrometerMin[ d ] / voxelSize );
+			max[ d ] = ( long ) Math.floor( micrometerMax[ d ] / voxelSize );
+		}
+
+		final long numVoxels = getNumVoxels( min, max );
+		if ( numVoxels == 0 ) return 0.0;
+
+		return 1.0 * getExpressionUnits( min, max ) / ( ( double ) numVoxels * UNITS_PER_VOXEL );
+	}
+
+	private int get( int x, int y, int z )
+	{
+		return table.get( z * strideZ + y * strideY + x );
+	}
+
+	public void write( File file ) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream header = new DataOutputStream( bytes );
+
+		header.writeInt( MAGIC );
+		header.writeInt( mipMapLevel );
+		header.writeDouble( voxelSize );
+		for ( int d = 0; d < 3; ++d ) header.writeLong( dimensions[ d ] );
+		sources.write( header );
+
+		// data starts 8-byte aligned after the header and the offset field itself
+		final long dataOffset = ( ( bytes.size() + 8 + 7 ) / 8 ) * 8;
+		header.writeLong( dataOffset );
+		while ( bytes.size() < dataOffset ) header.writeByte( 0 );
+		header.flush();
+
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ) ) )
+		{
+			out.write( bytes.toByteArray() );
+			for ( int i = 0; i < table.limit(); ++i ) out.writeInt( table.get( i ) );
+		}
+	}
+
+	/**
+	 * Maps the table; the mapping is released once the table is garbage collected.
+	 */
+	public static SummedVolumeTable open( File file ) throws IOException
+	{
+		try ( RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" ) )
+		{
+			if ( randomAccessFile.readInt() != MAGIC )
+			{
+				throw new IOException( "Not a summed-volume table: " + file );
+			}
+
+			final int mipMapLevel = randomAccessFile.readInt();
+			final double voxelSize = randomAccessFile.readDouble();
+			final long[] dimensions = new long[]{ randomAccessFile.readLong(), randomAccessFile.readLong(), randomAccessFile.readLong() };
+			final IndexedSources sources = IndexedSources.read( randomAccessFile );
+			final long dataOffset = randomAccessFile.readLong();
+
+			final long size = ( dimensions[ 0 ] + 1 ) * ( dimensions[ 1 ] + 1 ) * ( dimensions[ 2 ] + 1 );
+			if ( dataOffset + size * 4 != randomAccessFile.length() )
+			{
+				throw new IOException( "Incomplete summed-volume table: " + file );
+			}
+
+			// big endian, as written by DataOutputStream
+			final MappedByteBuffer buffer = randomAccessFile.getChannel().map( FileChannel.MapMode.READ_ONLY, dataOffset, size * 4 );
+
+			return new SummedVolumeTable( mipMapLevel, voxelSize, dimensions, sources, buffer.asIntBuffer() );
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package de.embl.cba.platynereis.genesearch;
+
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The summed-volume tables of all genes of one atlas directory.
+ *
+ * Tables are stored as one file per gene in {@link #FOLDER} and are memory-mapped when a gene
+ * is queried for the first time; they stay mapped, as box queries sweep over all genes.
+ * A table is not used once its gene source changes; it then needs to be rebuilt.
+ */
+public class SummedVolumeTables
+{
+	public static final String FOLDER = "summed_volume_tables";
+	public static final String SUFFIX = ".svt";
+
+	private static final Map< File, SummedVolumeTables > tables = new ConcurrentHashMap<>();
+
+	private static class LoadedTable
+	{
+		final SummedVolumeTable table;
+		final long lastModified;
+
+		LoadedTable( SummedVolumeTable table, long lastModified )
+		{
+			this.table = table;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final File directory;
+	private final File folder;
+	private final Map< String, LoadedTable > loadedTables = new ConcurrentHashMap<>();
+
+	private SummedVolumeTables( File directory, File folder )
+	{
+		this.directory = directory;
+		this.folder = folder;
+	}
+
+	/**
+	 * Returns the tables of the atlas directory or null if none have been built.
+	 */
+	public static SummedVolumeTables forDirectory( File directory )
+	{
+		final File folder = new File( directory, FOLDER );
+
+		if ( ! folder.isDirectory() ) return null;
+
+		return tables.computeIfAbsent( folder, f -> new SummedVolumeTables( directory, f ) );
+	}
+
+	public boolean contains( String geneName )
+	{
+		return getFile( geneName ).exists();
+	}
+
+	/**
+	 * Returns the table of the gene, mapping it on first access, or null if it does not exist
+	 * or if the gene source changed since it was built.
+	 */
+	public SummedVolumeTable get( String geneName )
+	{
+		final File file = getFile( geneName );
+
+		LoadedTable loaded = loadedTables.get( geneName );
+		if ( loaded == null || loaded.lastModified != file.lastModified() )
+		{
+			loadedTables.remove( geneName );
+
+			if ( ! file.exists() ) return null;
+
+			try
+			{
+				loaded = new LoadedTable( SummedVolumeTable.open( file ), file.lastModified() );
+				loadedTables.put( geneName, loaded );
+			}
+			catch ( IOException e )
+			{
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		final String changedSource = loaded.table.getSources().getChangedSource( directory );
+		if ( changedSource != null )
+		{
+			Utils.log( "Not using " + file + ", as " + changedSource + " has changed since; please rebuild the table." );
+			return null;
+		}
+
+		return loaded.table;
+	}
+
+	private File getFile( String geneName )
+	{
+		return new File( folder, geneName + SUFFIX );
+	}
+
+	/**
+	 * Builds the tables of all gene sources in the atlas directory, at the given mipmap level.
+	 */
+	public static SummedVolumeTables build( File directory, int mipMapLevel, int numThreads ) throws IOException
+	{
+		final Map< String, PlatySource > geneSources = GeneSearch.getGeneSources( directory );
+
+		try
+		{
+			return build( directory, geneSources, mipMapLevel, numThreads );
+		}
+		finally
+		{
+			GeneSearch.closeGeneSources( geneSources );
+		}
+	}
+
+	private static SummedVolumeTables build( File directory, Map< String, PlatySource > geneSources, int mipMapLevel, int numThreads ) throws IOException
+	{
+		final File folder = new File( directory, FOLDER );
+		if ( ! folder.isDirectory() && ! folder.mkdirs() )
+		{
+			throw new IOException( "Could not create " + folder );
+		}
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+		final ArrayList< Future< ? > > futures = new ArrayList<>();
+
+		for ( PlatySource source : geneSources.values() )
+		{
+			futures.add( executorService.submit( () -> {
+				Utils.log( "Computing summed-volume table of " + source.name );
+
+				final IndexedSources sources = IndexedSources.of( Collections.singletonList( source ) );
+
+				final RandomAccessibleInterval< ? extends RealType< ? > > image =
+						( RandomAccessibleInterval< ? extends RealType< ? > > ) GeneSearch.getSetupImgLoader( source ).getImage( 0, mipMapLevel );
+
+				final SummedVolumeTable table = SummedVolumeTable.create(
+						image, mipMapLevel, GeneSearch.getVoxelSize( source, mipMapLevel ), GeneSearch.getMaskValue( source ), sources );
+
+				// searches never see a partly written table
+				final File file = new File( folder, source.name + SUFFIX );
+				final File tmpFile = new File( folder, source.name + SUFFIX + ".tmp" );
+				table.write( tmpFile );
+
+				if ( ( file.exists() && ! file.delete() ) || ! tmpFile.renameTo( file ) )
+				{
+					throw new IOException( "Could not write " + file );
+				}
+
+				return null;
+			} ) );
+		}
+
+		try
+		{
+			for ( Future< ? > future : futures ) future.get();
+		}
+		catch ( Exception e )
+		{
+			throw new IOException( "Building the summed-volume tables failed", e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+
+		tables.remove( folder );
+
+		return forDirectory( directory );
+	}
+}
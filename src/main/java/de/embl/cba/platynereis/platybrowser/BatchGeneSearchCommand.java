@@ -0,0 +1,102 @@
+package de.embl.cba.platynereis.platybrowser;
+
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.genesearch.BatchGeneSearch;
+import de.embl.cba.platynereis.utils.Utils;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Searches genes at positions and radii listed in a file and writes one TSV row per position.
+ *
+ * Only the gene sources of the atlas folder are opened; neither a viewer nor any other
+ * window is created, such that the command also runs on headless machines, e.g.
+ *
+ * java -Djava.awt.headless=true -cp ... de.embl.cba.platynereis.platybrowser.BatchGeneSearchCommand atlasFolder positions.txt genes.tsv
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>EMBL>Explore>Platynereis Batch Gene Search", headless = true )
+public class BatchGeneSearchCommand implements Command
+{
+	@Parameter ( label = "Platynereis Atlas Folder", style = "directory" )
+	public File dataFolder;
+
+	@Parameter ( label = "Positions (x y z radius [micrometer], one per line)" )
+	public File queriesFile;
+
+	@Parameter ( label = "Output table (existing tables are resumed)", style = "save" )
+	public File outputFile;
+
+	@Parameter ( label = "Number of threads" )
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			runBatchGeneSearch();
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private void runBatchGeneSearch() throws IOException
+	{
+		final ArrayList< BatchGeneSearch.Query > queries = BatchGeneSearch.readQueries( queriesFile );
+
+		final Map< String, PlatySource > geneSources = GeneSearch.getGeneSources( dataFolder );
+
+		try
+		{
+			final BatchGeneSearch batchGeneSearch = new BatchGeneSearch( geneSources );
+			batchGeneSearch.setNumThreads( numThreads );
+
+			Utils.log( "Searching " + batchGeneSearch.getGeneNames().size() + " genes at " + queries.size() + " positions..." );
+
+			batchGeneSearch.run( queries, outputFile );
+
+			Utils.log( "Gene expression written to " + outputFile );
+		}
+		finally
+		{
+			GeneSearch.closeGeneSources( geneSources );
+		}
+	}
+
+	public static void main( String[] args )
+	{
+		if ( args.length < 3 )
+		{
+			System.err.println( "Usage: BatchGeneSearchCommand <atlas folder> <positions file> <output tsv> [number of threads]" );
+			System.exit( 1 );
+		}
+
+		System.setProperty( "java.awt.headless", "true" );
+
+		final BatchGeneSearchCommand command = new BatchGeneSearchCommand();
+		command.dataFolder = new File( args[ 0 ] );
+		command.queriesFile = new File( args[ 1 ] );
+		command.outputFile = new File( args[ 2 ] );
+		if ( args.length > 3 ) command.numThreads = Integer.parseInt( args[ 3 ] );
+
+		// unlike run(), fail with an exit code, such that scripts and cluster jobs notice
+		try
+		{
+			command.runBatchGeneSearch();
+		}
+		catch ( Exception e )
+		{
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package de.embl.cba.platynereis.platybrowser;
 
+import de.embl.cba.platynereis.StartupTimings;
 import de.embl.cba.tables.TableUtils;
 import de.embl.cba.tables.modelview.images.PlatynereisImageSourcesModel;
 import de.embl.cba.tables.modelview.images.PlatynereisImageSourcesModelFactory;
@@ -22,30 +23,51 @@ public class ExplorePlatynereisAtlasCommand implements Command
 	@Parameter ( label = "Platynereis Atlas Folder" )
 	public File dataFolder;
 
+	public static final String SEGMENTS_TABLE = "/label_attributes/em-segmented-cells-labels-morphology-v2.csv";
+
 	private static final String COLUMN_NAME_LABEL_IMAGE_ID = "label_image_id";
 
 	private LinkedHashMap< String, ArrayList< Object > > columns;
 
+	private StartupTimings startupTimings;
+
 	@Override
 	public void run()
 	{
+		startupTimings = new StartupTimings( dataFolder.toString() );
+
 		final File segmentsTableFile =
-				new File( dataFolder + "/label_attributes/em-segmented-cells-labels-morphology-v2.csv" );
+				new File( dataFolder + SEGMENTS_TABLE );
 
+		long start = System.nanoTime();
 		final ArrayList< ColumnBasedTableRowImageSegment > tableRowImageSegments
 				= createAnnotatedImageSegmentsFromTableFile( segmentsTableFile );
+		startupTimings.record( StartupTimings.Phase.TABLE_LOADING, start );
 
+		// includes listing the directory, which the factory does not separate
+		start = System.nanoTime();
 		final PlatynereisImageSourcesModel imageSourcesModel
 				= new PlatynereisImageSourcesModelFactory( dataFolder ).getModel();
+		startupTimings.record( StartupTimings.Phase.XML_PARSING, start );
 
+		start = System.nanoTime();
 		final DefaultBdvAndTableView view = new DefaultBdvAndTableView( tableRowImageSegments, imageSourcesModel );
+		startupTimings.record( StartupTimings.Phase.UI_CONSTRUCTION, start );
 
 		final ImageSegmentsBdvView bdvView = view.getImageSegmentsBdvView();
 
-		new PlatyBrowserMainFrame( bdvView );
+		new PlatyBrowserMainFrame( bdvView, startupTimings );
 
 	}
 
+	/**
+	 * The timings are logged once the viewer is fully rendered for the first time.
+	 */
+	public StartupTimings getStartupTimings()
+	{
+		return startupTimings;
+	}
+
 	private ArrayList< ColumnBasedTableRowImageSegment > createAnnotatedImageSegmentsFromTableFile(
 			File tableFile )
 	{
@@ -1,6 +1,7 @@
 package de.embl.cba.platynereis.platybrowser;
 
 import bdv.tools.HelpDialog;
+import de.embl.cba.platynereis.StartupTimings;
 import de.embl.cba.tables.modelview.views.bdv.ImageSegmentsBdvView;
 
 import javax.swing.*;
@@ -17,10 +18,19 @@ public class PlatyBrowserMainFrame extends JFrame
 	private HelpDialog helpDialog;
 	private final JSplitPane splitPane;
 	private AbstractAction help;
+	private final StartupTimings startupTimings;
 
 	public PlatyBrowserMainFrame( ImageSegmentsBdvView bdvView ) throws HeadlessException
+	{
+		this( bdvView, new StartupTimings( PlatyBrowserMainFrame.class.getSimpleName() ) );
+	}
+
+	public PlatyBrowserMainFrame( ImageSegmentsBdvView bdvView, StartupTimings startupTimings ) throws HeadlessException
 	{
 		this.bdvView = bdvView;
+		this.startupTimings = startupTimings;
+
+		final long start = System.nanoTime();
 
 		actionPanel = new PlatyBrowserActionPanel( this, bdvView );
 		sourcesPanel = new PlatyBrowserSourcesPanel( this, bdvView );
@@ -45,6 +55,9 @@ public class PlatyBrowserMainFrame extends JFrame
 
 		initHelpDialog();
 
+		startupTimings.record( StartupTimings.Phase.UI_CONSTRUCTION, start );
+
+		startupTimings.recordFirstFrame( bdvView.getBdv().getBdvHandle().getViewerPanel() );
 	}
 
 	public void initHelpDialog()
@@ -78,6 +91,11 @@ public class PlatyBrowserMainFrame extends JFrame
 		return sourcesPanel;
 	}
 
+	public StartupTimings getStartupTimings()
+	{
+		return startupTimings;
+	}
+
 
 
 }
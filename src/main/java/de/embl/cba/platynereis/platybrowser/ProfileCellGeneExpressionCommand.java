@@ -0,0 +1,120 @@
+package de.embl.cba.platynereis.platybrowser;
+
+import de.embl.cba.platynereis.GeneSearch;
+import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.genesearch.BatchGeneSearch;
+import de.embl.cba.platynereis.utils.Utils;
+import de.embl.cba.tables.TableUtils;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static de.embl.cba.platynereis.platybrowser.ExplorePlatynereisAtlasCommand.SEGMENTS_TABLE;
+
+/**
+ * Computes the cell x gene expression matrix by searching genes around
+ * the centroid of every segmented cell.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>EMBL>Explore>Platynereis Cell Gene Expression", headless = true )
+public class ProfileCellGeneExpressionCommand implements Command
+{
+	@Parameter ( label = "Platynereis Atlas Folder", style = "directory" )
+	public File dataFolder;
+
+	@Parameter ( label = "Search radius [micrometer]" )
+	public double micrometerRadius = 2.0;
+
+	@Parameter ( label = "Output table (existing tables are resumed)", style = "save" )
+	public File outputFile;
+
+	@Parameter ( label = "Number of threads" )
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * @throws IllegalStateException if the table could not be written, such that the run fails visibly
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			profileCellGeneExpression();
+		}
+		catch ( IOException e )
+		{
+			Utils.log( "Cell gene expression failed: " + e.getMessage() );
+			throw new IllegalStateException( "Cell gene expression failed", e );
+		}
+	}
+
+	private void profileCellGeneExpression() throws IOException
+	{
+		final LinkedHashMap< String, ArrayList< Object > > columns =
+				TableUtils.columnsFromTableFile( new File( dataFolder + SEGMENTS_TABLE ), null );
+
+		final ArrayList< BatchGeneSearch.Query > queries = createQueries( columns, micrometerRadius );
+
+		final Map< String, PlatySource > geneSources = GeneSearch.getGeneSources( dataFolder );
+
+		try
+		{
+			final BatchGeneSearch batchGeneSearch = new BatchGeneSearch( geneSources );
+			batchGeneSearch.setNumThreads( numThreads );
+
+			Utils.log( "Profiling " + batchGeneSearch.getGeneNames().size() + " genes in " + queries.size() + " cells..." );
+
+			batchGeneSearch.run( queries, outputFile );
+
+			Utils.log( "Cell gene expression written to " + outputFile );
+		}
+		finally
+		{
+			GeneSearch.closeGeneSources( geneSources );
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the table lacks the label id or a centroid column
+	 */
+	public static ArrayList< BatchGeneSearch.Query > createQueries(
+			LinkedHashMap< String, ArrayList< Object > > columns,
+			double micrometerRadius )
+	{
+		final ArrayList< Object > labelIds = getColumn( columns, "label_id" );
+		final ArrayList< Object > xs = getColumn( columns, "com_x_microns" );
+		final ArrayList< Object > ys = getColumn( columns, "com_y_microns" );
+		final ArrayList< Object > zs = getColumn( columns, "com_z_microns" );
+
+		final ArrayList< BatchGeneSearch.Query > queries = new ArrayList<>();
+
+		for ( int row = 0; row < labelIds.size(); row++ )
+		{
+			final double[] position = new double[]{
+					Double.parseDouble( xs.get( row ).toString() ),
+					Double.parseDouble( ys.get( row ).toString() ),
+					Double.parseDouble( zs.get( row ).toString() ) };
+
+			queries.add( new BatchGeneSearch.Query( labelIds.get( row ).toString(), position, micrometerRadius ) );
+		}
+
+		return queries;
+	}
+
+	private static ArrayList< Object > getColumn( LinkedHashMap< String, ArrayList< Object > > columns, String name )
+	{
+		final ArrayList< Object > column = columns.get( name );
+
+		if ( column == null )
+		{
+			throw new IllegalArgumentException( "The cell table has no column " + name + "; found: " + columns.keySet() );
+		}
+
+		return column;
+	}
+}
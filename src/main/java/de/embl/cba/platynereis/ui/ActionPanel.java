@@ -1,16 +1,18 @@
 package de.embl.cba.platynereis.ui;
 
-import bdv.ViewerImgLoader;
-import bdv.ViewerSetupImgLoader;
 import bdv.util.Bdv;
 import de.embl.cba.bdv.utils.BdvUtils;
 import de.embl.cba.platynereis.Constants;
 import de.embl.cba.platynereis.GeneSearch;
 import de.embl.cba.platynereis.PlatyBrowser;
 import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.SourcePrefetcher;
+import de.embl.cba.platynereis.genesearch.CellGeneSearch;
+import de.embl.cba.platynereis.genesearch.CellSpans;
+import de.embl.cba.platynereis.genesearch.ConcentricGeneSearch;
+import de.embl.cba.platynereis.genesearch.GeneSearchCache;
 import de.embl.cba.platynereis.utils.Utils;
 import net.imglib2.RealPoint;
-import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import org.scijava.ui.behaviour.ClickBehaviour;
@@ -23,10 +25,10 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
-import static de.embl.cba.platynereis.utils.Utils.openSpimData;
+import java.util.concurrent.CompletableFuture;
 
 public class ActionPanel < T extends RealType< T > & NativeType< T > > extends JPanel
 {
@@ -35,9 +37,14 @@ public class ActionPanel < T extends RealType< T > & NativeType< T > > extends J
 	private final PlatyBrowser platyBrowser;
 	private final MainUI mainUI;
 	private Behaviours behaviours;
-	private int geneSearchMipMapLevel;
-	private double geneSearchVoxelSize;
-	private ArrayList< Double > geneSearchRadii;
+	private volatile int geneSearchMipMapLevel;
+	private volatile double geneSearchVoxelSize;
+	private double geneSearchMinNumVoxelsPerRadius = Constants.GENE_SEARCH_MIN_NUM_VOXELS_PER_RADIUS;
+	// read in the background, as this may open a gene source, see readGeneSearchRadii
+	private CompletableFuture< ArrayList< Double > > geneSearchRadii;
+	private GeneSearch currentGeneSearch;
+	private ConcentricGeneSearch currentConcentricGeneSearch;
+	private final GeneSearchCache geneSearchCache = new GeneSearchCache( Constants.GENE_SEARCH_CACHE_SIZE );
 
 	private double[] defaultTargetNormalVector = new double[]{0.70,0.56,0.43};
 	private double[] targetNormalVector;
@@ -67,9 +74,27 @@ public class ActionPanel < T extends RealType< T > & NativeType< T > > extends J
 
 	}
 
+	/**
+	 * Waits until the radii are read; must not be called on the event dispatch thread.
+	 */
 	public ArrayList< Double > getGeneSearchRadii()
 	{
-		return geneSearchRadii;
+		return geneSearchRadii.join();
+	}
+
+	public GeneSearchCache getGeneSearchCache()
+	{
+		return geneSearchCache;
+	}
+
+	public void setGeneSearchCacheSize( int maxNumResults )
+	{
+		geneSearchCache.setMaxNumResults( maxNumResults );
+	}
+
+	public void setGeneSearchMinNumVoxelsPerRadius( double minNumVoxelsPerRadius )
+	{
+		this.geneSearchMinNumVoxelsPerRadius = minNumVoxelsPerRadius;
 	}
 
 	private void addPositionPrintUI( JPanel panel )
@@ -154,13 +179,24 @@ public class ActionPanel < T extends RealType< T > & NativeType< T > > extends J
 
 		horizontalLayoutPanel.add( new JLabel( "Gene discovery radius [micrometer]: " ) );
 
-		setGeneSearchRadii();
-
 		final JComboBox radiiComboBox = new JComboBox( );
-		for ( double radius : geneSearchRadii )
+		radiiComboBox.setEnabled( false );
+
+		geneSearchRadii = CompletableFuture.supplyAsync( this::readGeneSearchRadii );
+		geneSearchRadii.whenComplete( ( radii, throwable ) -> SwingUtilities.invokeLater( () ->
 		{
-			radiiComboBox.addItem( "" + radius );
-		}
+			if ( throwable != null )
+			{
+				throwable.printStackTrace();
+				return;
+			}
+
+			for ( double radius : radii )
+			{
+				radiiComboBox.addItem( "" + radius );
+			}
+			radiiComboBox.setEnabled( true );
+		} ) );
 
 		horizontalLayoutPanel.add( radiiComboBox );
 
@@ -169,26 +205,82 @@ public class ActionPanel < T extends RealType< T > & NativeType< T > > extends J
 			double[] micrometerPosition = new double[ 3 ];
 			BdvUtils.getGlobalMouseCoordinates( bdv ).localize( micrometerPosition );
 
+			if ( radiiComboBox.getSelectedItem() == null )
+			{
+				Utils.log( "Gene search: the radii are not yet known, please try again." );
+				return;
+			}
+
 			double micrometerRadius = Double.parseDouble( ( String ) radiiComboBox.getSelectedItem() );
 
 			final BdvTextOverlay bdvTextOverlay = new BdvTextOverlay( bdv, "Searching expressed genes; please wait...", micrometerPosition );
 
 			(new Thread(new Runnable(){
 				public void run(){
-					searchGenes( micrometerPosition, micrometerRadius );
-					bdvTextOverlay.setText( "" );
+					searchGenes( micrometerPosition, micrometerRadius, bdvTextOverlay );
+					bdvTextOverlay.removeFromBdv();
 				}
 			})).start();
 
 
 		}, "discover genes", "D" );
 
+		behaviours.behaviour( ( ClickBehaviour ) ( x, y ) -> {
+
+			double[] micrometerPosition = new double[ 3 ];
+			BdvUtils.getGlobalMouseCoordinates( bdv ).localize( micrometerPosition );
+
+			if ( radiiComboBox.getSelectedItem() == null )
+			{
+				Utils.log( "Gene search: the radii are not yet known, please try again." );
+				return;
+			}
+
+			double micrometerRadius = Double.parseDouble( ( String ) radiiComboBox.getSelectedItem() );
+
+			final BdvTextOverlay bdvTextOverlay = new BdvTextOverlay( bdv, "Searching expressed genes at all radii; please wait...", micrometerPosition );
+
+			(new Thread(new Runnable(){
+				public void run(){
+					searchGenesConcentric( micrometerPosition, getGeneSearchRadii(), micrometerRadius );
+					bdvTextOverlay.removeFromBdv();
+				}
+			})).start();
+
+		}, "discover genes at all radii", "shift D" );
+
+		behaviours.behaviour( ( ClickBehaviour ) ( x, y ) -> {
+
+			double[] micrometerPosition = new double[ 3 ];
+			BdvUtils.getGlobalMouseCoordinates( bdv ).localize( micrometerPosition );
+
+			final BdvTextOverlay bdvTextOverlay = new BdvTextOverlay( bdv, "Searching genes expressed in cell; please wait...", micrometerPosition );
+
+			(new Thread(new Runnable(){
+				public void run(){
+					searchGenesInCell( micrometerPosition );
+					bdvTextOverlay.removeFromBdv();
+				}
+			})).start();
+
+		}, "discover genes in cell", "C" );
+
 		panel.add( horizontalLayoutPanel );
 
 	}
 
 	public void searchGenes( double[] micrometerPosition, double micrometerRadius )
 	{
+		searchGenes( micrometerPosition, micrometerRadius, null );
+	}
+
+	/**
+	 * Starting a search cancels the previous one, if it is still running.
+	 */
+	private void searchGenes( double[] micrometerPosition, double micrometerRadius, BdvTextOverlay bdvTextOverlay )
+	{
+		platyBrowser.prefetchGeneSources( SourcePrefetcher.PRIORITY_GENE_SEARCH );
+
 		GeneSearch geneSearch = new GeneSearch(
 				micrometerRadius,
 				micrometerPosition,
@@ -197,14 +289,163 @@ public class ActionPanel < T extends RealType< T > & NativeType< T > > extends J
 				geneSearchMipMapLevel,
 				geneSearchVoxelSize );
 
-		final Map< String, Double > geneExpressionLevels = geneSearch.runSearchAndGetLocalExpression();
+		geneSearch.setMinNumVoxelsPerRadius( geneSearchMinNumVoxelsPerRadius );
+		geneSearch.setResultCache( geneSearchCache );
+
+		if ( bdvTextOverlay != null )
+		{
+			geneSearch.setProgressListener( ( sortedExpressionLevels, numExaminedGenes, numGenes ) ->
+					bdvTextOverlay.setText( GeneExpressions.getSearchProgressText(
+							sortedExpressionLevels, numExaminedGenes, numGenes, 10 ) ) );
+		}
+
+		synchronized ( this )
+		{
+			cancelCurrentGeneSearches();
+			currentGeneSearch = geneSearch;
+		}
+
+		final Map< String, Double > geneExpressionLevels;
+		try
+		{
+			geneExpressionLevels = geneSearch.runSearchAndGetLocalExpression();
+		}
+		catch ( IllegalStateException e )
+		{
+			Utils.log( e.getMessage() );
+			e.printStackTrace();
+			return;
+		}
+		finally
+		{
+			synchronized ( this )
+			{
+				if ( currentGeneSearch == geneSearch ) currentGeneSearch = null;
+			}
+		}
+
+		if ( geneSearch.isCancelled() ) return;
 		final Map< String, Double > sortedGeneExpressionLevels = geneSearch.getSortedExpressionLevels();
+		final int searchMipMapLevel = geneSearch.getSearchMipMapLevel();
 
 		addSortedGenesToViewerPanel( sortedGeneExpressionLevels, 15 );
 
-		GeneExpressions.addRowToGeneExpressionTable( micrometerPosition, micrometerRadius, geneExpressionLevels );
-		GeneExpressions.logGeneExpression( micrometerPosition, micrometerRadius, sortedGeneExpressionLevels );
+		GeneExpressions.addRowToGeneExpressionTable( micrometerPosition, micrometerRadius, searchMipMapLevel, geneExpressionLevels );
+		GeneExpressions.logGeneExpression( micrometerPosition, micrometerRadius, searchMipMapLevel, sortedGeneExpressionLevels );
+
+	}
+
+	private synchronized void cancelCurrentGeneSearches()
+	{
+		if ( currentGeneSearch != null ) currentGeneSearch.cancel();
+		if ( currentConcentricGeneSearch != null ) currentConcentricGeneSearch.cancel();
+	}
+
+	/**
+	 * Searches all radii in one pass and adds one row per radius to the gene expression table.
+	 * The genes found within the displayed radius are added to the viewer.
+	 */
+	public void searchGenesConcentric( double[] micrometerPosition, List< Double > micrometerRadii, double displayedMicrometerRadius )
+	{
+		final ConcentricGeneSearch geneSearch = new ConcentricGeneSearch(
+				micrometerRadii.stream().mapToDouble( Double::doubleValue ).toArray(),
+				micrometerPosition,
+				platyBrowser.dataSources,
+				geneSearchMipMapLevel,
+				geneSearchVoxelSize );
+
+		geneSearch.setMinNumVoxelsPerRadius( geneSearchMinNumVoxelsPerRadius );
+		geneSearch.setResultCache( geneSearchCache );
+
+		synchronized ( this )
+		{
+			cancelCurrentGeneSearches();
+			currentConcentricGeneSearch = geneSearch;
+		}
+
+		final List< Map< String, Double > > geneExpressionLevels;
+		try
+		{
+			geneExpressionLevels = geneSearch.runSearchAndGetLocalExpression();
+		}
+		catch ( IllegalStateException e )
+		{
+			Utils.log( e.getMessage() );
+			e.printStackTrace();
+			return;
+		}
+		finally
+		{
+			synchronized ( this )
+			{
+				if ( currentConcentricGeneSearch == geneSearch ) currentConcentricGeneSearch = null;
+			}
+		}
+
+		if ( geneSearch.isCancelled() ) return;
+
+		final double[] radii = geneSearch.getRadii();
+
+		for ( int r = 0; r < radii.length; ++r )
+		{
+			final Map< String, Double > sortedGeneExpressionLevels = Utils.sortByValue( geneExpressionLevels.get( r ) );
+			sortedGeneExpressionLevels.values().removeIf( value -> value == 0.0 );
+
+			if ( radii[ r ] == displayedMicrometerRadius )
+			{
+				addSortedGenesToViewerPanel( sortedGeneExpressionLevels, 15 );
+			}
+
+			GeneExpressions.addRowToGeneExpressionTable( micrometerPosition, radii[ r ], geneSearch.getSearchMipMapLevel( r ), geneExpressionLevels.get( r ) );
+			GeneExpressions.logGeneExpression( micrometerPosition, radii[ r ], geneSearch.getSearchMipMapLevel( r ), sortedGeneExpressionLevels );
+		}
+	}
+
+	/**
+	 * Searches the genes expressed within the segmented cell at the given position.
+	 */
+	public void searchGenesInCell( double[] micrometerPosition )
+	{
+		PlatySource labels = null;
+		for ( PlatySource source : platyBrowser.dataSources.values() )
+		{
+			if ( source.name.contains( Constants.DEFAULT_LABELS_FILE_ID ) ) labels = source;
+		}
+
+		if ( labels == null )
+		{
+			Utils.log( "Cell gene search: " + Constants.DEFAULT_LABELS_FILE_ID + " is not loaded." );
+			return;
+		}
+
+		final double labelId = CellSpans.getLabelId( labels, micrometerPosition );
+
+		if ( labelId == 0 )
+		{
+			Utils.log( "Cell gene search: there is no cell at the clicked position." );
+			return;
+		}
+
+		final CellGeneSearch cellGeneSearch = new CellGeneSearch( labels, platyBrowser.dataSources );
+		cellGeneSearch.setGeneMipMapLevel( geneSearchMipMapLevel );
+
+		final Map< String, Double > sortedGeneExpressionLevels;
+		try
+		{
+			sortedGeneExpressionLevels = Utils.sortByValue( cellGeneSearch.runSearchAndGetLocalExpression( labelId, micrometerPosition ) );
+		}
+		catch ( IllegalStateException e )
+		{
+			Utils.log( e.getMessage() );
+			e.printStackTrace();
+			return;
+		}
+
+		sortedGeneExpressionLevels.values().removeIf( value -> value == 0.0 );
 
+		addSortedGenesToViewerPanel( sortedGeneExpressionLevels, 15 );
+
+		GeneExpressions.logCellGeneExpression( labelId, sortedGeneExpressionLevels );
 	}
 
 	public void addSortedGenesToViewerPanel( Map sortedExpressionLevels, int maxNumGenes )
@@ -222,11 +463,14 @@ public class ActionPanel < T extends RealType< T > & NativeType< T > > extends J
 		}
 	}
 
-	private void setGeneSearchRadii( )
+	/**
+	 * Opens a gene source unless it is in the source catalog, thus is not run on the event dispatch thread.
+	 */
+	private ArrayList< Double > readGeneSearchRadii( )
 	{
 		final Set< String > sources = platyBrowser.dataSources.keySet();
 
-		geneSearchRadii = new ArrayList<>();
+		final ArrayList< Double > radii = new ArrayList<>();
 
 		for ( String name : sources )
 		{
@@ -234,19 +478,11 @@ public class ActionPanel < T extends RealType< T > & NativeType< T > > extends J
 
 			final PlatySource source = platyBrowser.dataSources.get( name );
 
-			if ( source.spimData == null )
-			{
-				source.spimData = openSpimData( source.file );
-			}
-
-			final ViewerImgLoader imgLoader = ( ViewerImgLoader ) source.spimData.getSequenceDescription().getImgLoader();
-			final ViewerSetupImgLoader< ?, ? > setupImgLoader = imgLoader.getSetupImgLoader( 0 );
-			final AffineTransform3D viewRegistration = source.spimData.getViewRegistrations().getViewRegistration( 0, 0 ).getModel();
+			// without opening the source if it is in the source catalog
+			double scale = source.getSourceTransform().get( 0, 0 );
+			final double[][] resolutions = source.getMipmapResolutions();
 
-			double scale = viewRegistration.get( 0, 0 );
-			final double[][] resolutions = setupImgLoader.getMipmapResolutions();
-
-			geneSearchMipMapLevel = 0; // highest resolution
+			geneSearchMipMapLevel = 0; // finest level; the search itself picks a coarser one for large radii
 			geneSearchVoxelSize = scale * resolutions[ geneSearchMipMapLevel ][ 0 ];
 
 			break;
@@ -254,27 +490,13 @@ public class ActionPanel < T extends RealType< T > & NativeType< T > > extends J
 
 		for ( int i = 0; i < 8; ++i )
 		{
-			geneSearchRadii.add( Math.pow( 2, i ) * geneSearchVoxelSize );
+			radii.add( Math.pow( 2, i ) * geneSearchVoxelSize );
 		}
 
+		return radii;
 	}
 
 
-	private int getAppropriateLevel( double radius, double scale, double[][] resolutions )
-	{
-		int appropriateLevel = 0;
-		for( int level = 0; level < resolutions.length; ++level )
-		{
-			double levelBinning = resolutions[ level ][ 0 ];
-			if ( levelBinning * scale > radius )
-			{
-				appropriateLevel = level - 1;
-				break;
-			}
-		}
-		return appropriateLevel;
-	}
-
 	private void addSourceSelectionUI( JPanel panel )
 	{
 		final JPanel horizontalLayoutPanel = SwingUtils.horizontalLayoutPanel();
@@ -290,6 +512,13 @@ public class ActionPanel < T extends RealType< T > & NativeType< T > > extends J
 			dataSources.addItem( name );
 		}
 
+		// sources added to the atlas directory while running, see PlatyBrowser.watchDirectory
+		platyBrowser.addSourcesListener( name -> {
+			int index = 0;
+			while ( index < dataSources.getItemCount() && ( ( String ) dataSources.getItemAt( index ) ).compareToIgnoreCase( name ) < 0 ) index++;
+			dataSources.insertItemAt( name, index );
+		} );
+
 		dataSources.addActionListener( new ActionListener()
 		{
 			@Override
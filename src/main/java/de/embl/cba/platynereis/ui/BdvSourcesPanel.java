@@ -2,6 +2,7 @@ package de.embl.cba.platynereis.ui;
 
 import bdv.util.Bdv;
 import de.embl.cba.platynereis.*;
+import de.embl.cba.platynereis.genesearch.GeneCoexpression;
 import de.embl.cba.platynereis.utils.Utils;
 import mpicbg.spim.data.SpimData;
 
@@ -89,12 +90,14 @@ public class BdvSourcesPanel extends JPanel implements ActionListener
         addSourceToViewer( source );
 
         addSourceToPanel( source );
+
+        platyBrowser.showAttributeTable( source );
     }
 
     private void addSourceToViewer( PlatySource source )
     {
 
-        if ( source.bdvStackSource == null || source.bdvStackSource.getBdvHandle() == null )
+        if ( source.getBdvStackSource() == null || source.getBdvStackSource().getBdvHandle() == null )
         {
             switch ( Constants.BDV_XML_SUFFIX ) // TODO: makes no sense...
             {
@@ -102,10 +105,6 @@ public class BdvSourcesPanel extends JPanel implements ActionListener
                     Utils.loadAndShowSourceFromTiffFile( source, bdv  );
                     break;
                 case ".xml":
-                    if ( source.spimData == null && ! source.isLabelSource )
-                    {
-                        source.spimData = Utils.openSpimData( source.file );
-                    }
                     Utils.showSourceInBdv( source, bdv  );
                     break;
                 default:
@@ -116,10 +115,10 @@ public class BdvSourcesPanel extends JPanel implements ActionListener
         if ( ! source.isLabelSource )
         {
             source.color = getColor( source );
-            source.bdvStackSource.setColor( asArgbType( source.color ) );
+            source.getBdvStackSource().setColor( asArgbType( source.color ) );
         }
 
-        source.bdvStackSource.setActive( true );
+        source.getBdvStackSource().setActive( true );
 
         source.isActive = true;
     }
@@ -144,10 +143,10 @@ public class BdvSourcesPanel extends JPanel implements ActionListener
 
             int[] buttonDimensions = new int[]{ 50, 30 };
 
-            final JButton colorButton = createColorButton( panel, buttonDimensions, dataSource.bdvStackSource );
-            final JButton brightnessButton = createBrightnessButton( buttonDimensions, dataSource.name, dataSource.bdvStackSource );
+            final JButton colorButton = createColorButton( panel, buttonDimensions, dataSource.getBdvStackSource() );
+            final JButton brightnessButton = createBrightnessButton( buttonDimensions, dataSource.name, dataSource.getBdvStackSource() );
             final JButton removeButton = createRemoveButton( dataSource, buttonDimensions );
-            final JCheckBox visibilityCheckbox = createVisibilityCheckbox( buttonDimensions, dataSource.bdvStackSource, true );
+            final JCheckBox visibilityCheckbox = createVisibilityCheckbox( buttonDimensions, dataSource.getBdvStackSource(), true );
 
             panel.add( jLabel );
             panel.add( colorButton );
@@ -155,6 +154,11 @@ public class BdvSourcesPanel extends JPanel implements ActionListener
             panel.add( removeButton );
             panel.add( visibilityCheckbox );
 
+            if ( GeneSearch.isGeneSource( dataSource.name ) )
+            {
+                panel.add( createSimilarGenesButton( dataSource, buttonDimensions ) );
+            }
+
             //Font font = Font.createFont(Font.TRUETYPE_FONT, new FileInputStream("font.ttf"));
             //button.setFont( new Font.createFont( Font.TRUETYPE_FONT ) );
 
@@ -183,6 +187,35 @@ public class BdvSourcesPanel extends JPanel implements ActionListener
     }
 
 
+    private JButton createSimilarGenesButton( PlatySource dataSource, int[] buttonDimensions )
+    {
+        JButton similarGenesButton = new JButton( "~" );
+        similarGenesButton.setToolTipText( "Log the genes with the most similar expression" );
+        similarGenesButton.setPreferredSize( new Dimension( buttonDimensions[ 0 ], buttonDimensions[ 1 ] ) );
+        similarGenesButton.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( ActionEvent e )
+			{
+				logSimilarGenes( dataSource );
+			}
+		} );
+        return similarGenesButton;
+    }
+
+    private void logSimilarGenes( PlatySource dataSource )
+    {
+        final GeneCoexpression coexpression = GeneCoexpression.forDirectory( dataSource.file.getParentFile() );
+
+        if ( coexpression == null || ! coexpression.contains( dataSource.name ) )
+        {
+            Utils.log( "No co-expression of " + dataSource.name + " found; please run [ Plugins > EMBL > PlatyBrowser Build Gene Co-expression Matrix ]." );
+            return;
+        }
+
+        GeneExpressions.logSimilarGenes( dataSource.name, coexpression.getMostSimilarGenes( dataSource.name, Constants.NUM_SIMILAR_GENES ) );
+    }
+
     private String padded( String string )
     {
         return string;
@@ -243,7 +276,7 @@ public class BdvSourcesPanel extends JPanel implements ActionListener
     {
         final PlatySource source = dataSources.get( name );
 
-        if ( source.bdvStackSource == null || source.bdvStackSource.getBdvHandle() == null )
+        if ( source.getBdvStackSource() == null || source.getBdvStackSource().getBdvHandle() == null )
         {
             addSourceToViewer( source );
         }
@@ -251,7 +284,7 @@ public class BdvSourcesPanel extends JPanel implements ActionListener
         {
             boolean isActive = source.isActive;
             source.isActive = !isActive;
-            source.bdvStackSource.setActive( !isActive );
+            source.getBdvStackSource().setActive( !isActive );
         }
 
     }
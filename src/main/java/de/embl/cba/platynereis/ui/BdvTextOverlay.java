@@ -9,7 +9,7 @@ import java.util.ArrayList;
 public class BdvTextOverlay extends BdvOverlay
 {
 
-	String text;
+	volatile String text;
 	final double[] position;
 	final int textSize;
 	final Bdv bdv;
@@ -44,6 +44,7 @@ public class BdvTextOverlay extends BdvOverlay
 	public void setText( String text )
 	{
 		this.text = text;
+		bdv.getBdvHandle().getViewerPanel().getDisplay().repaint();
 	}
 
 	@Override
@@ -63,9 +64,14 @@ public class BdvTextOverlay extends BdvOverlay
 
 		final FontMetrics fontMetrics = setFont( g, textSize );
 
-		int[] stringPosition = getStringPosition( text, center, fontMetrics );
+		final String[] lines = text.split( "\n" );
 
-		g.drawString( text, stringPosition[ 0 ], stringPosition[ 1 ] );
+		for ( int i = 0; i < lines.length; ++i )
+		{
+			int[] stringPosition = getStringPosition( lines[ i ], center, fontMetrics );
+
+			g.drawString( lines[ i ], stringPosition[ 0 ], stringPosition[ 1 ] + i * fontMetrics.getHeight() );
+		}
 
 	}
 
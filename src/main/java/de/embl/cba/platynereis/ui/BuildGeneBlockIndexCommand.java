@@ -0,0 +1,42 @@
+package de.embl.cba.platynereis.ui;
+
+import de.embl.cba.platynereis.genesearch.GeneBlockIndex;
+import de.embl.cba.platynereis.utils.Utils;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+
+@Plugin(type = Command.class, menuPath = "Plugins>EMBL>PlatyBrowser Build Gene Block Index" )
+public class BuildGeneBlockIndexCommand implements Command
+{
+	@Parameter ( style = "directory" )
+	File directory;
+
+	// of the blocks; the genes are scanned at full resolution
+	@Parameter ( label = "Block resolution level" )
+	int mipMapLevel = 0;
+
+	@Parameter ( label = "Block size [voxels]" )
+	int blockSize = GeneBlockIndex.DEFAULT_BLOCK_SIZE;
+
+	public void run()
+	{
+		try
+		{
+			final GeneBlockIndex index = GeneBlockIndex.build(
+					directory,
+					mipMapLevel,
+					blockSize,
+					Runtime.getRuntime().availableProcessors() );
+
+			Utils.log( "Gene block index written: " + index.getFile() );
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package de.embl.cba.platynereis.ui;
+
+import de.embl.cba.platynereis.genesearch.GeneCoexpression;
+import de.embl.cba.platynereis.utils.Utils;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+
+@Plugin(type = Command.class, menuPath = "Plugins>EMBL>PlatyBrowser Build Gene Co-expression Matrix" )
+public class BuildGeneCoexpressionCommand implements Command
+{
+	@Parameter ( style = "directory" )
+	File directory;
+
+	@Parameter ( label = "Resolution level" )
+	int mipMapLevel = 0;
+
+	public void run()
+	{
+		try
+		{
+			final GeneCoexpression coexpression = GeneCoexpression.build(
+					directory,
+					mipMapLevel,
+					Runtime.getRuntime().availableProcessors() );
+
+			Utils.log( "Gene co-expression matrix written: " + coexpression.getFile() );
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package de.embl.cba.platynereis.ui;
+
+import de.embl.cba.platynereis.genesearch.GenePresenceIndex;
+import de.embl.cba.platynereis.utils.Utils;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+
+@Plugin(type = Command.class, menuPath = "Plugins>EMBL>PlatyBrowser Build Gene Index" )
+public class BuildGenePresenceIndexCommand implements Command
+{
+	@Parameter ( style = "directory" )
+	File directory;
+
+	@Parameter ( label = "Resolution level" )
+	int mipMapLevel = 1;
+
+	public void run()
+	{
+		try
+		{
+			final GenePresenceIndex index = GenePresenceIndex.build(
+					directory,
+					mipMapLevel,
+					Runtime.getRuntime().availableProcessors() );
+
+			Utils.log( "Gene presence index written: " + index.getFile() );
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package de.embl.cba.platynereis.ui;
+
+import de.embl.cba.platynereis.genesearch.MaxPooledPyramid;
+import de.embl.cba.platynereis.genesearch.MaxPooledPyramids;
+import de.embl.cba.platynereis.utils.Utils;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+
+@Plugin(type = Command.class, menuPath = "Plugins>EMBL>PlatyBrowser Build Max Pooled Pyramids" )
+public class BuildMaxPooledPyramidsCommand implements Command
+{
+	@Parameter ( style = "directory" )
+	File directory;
+
+	@Parameter ( label = "Finest pyramid level [log2 of cell size]" )
+	int minLevel = MaxPooledPyramid.DEFAULT_MIN_LEVEL;
+
+	@Parameter ( label = "Coarsest pyramid level [log2 of cell size]" )
+	int maxLevel = MaxPooledPyramid.DEFAULT_MAX_LEVEL;
+
+	public void run()
+	{
+		try
+		{
+			MaxPooledPyramids.build(
+					directory,
+					minLevel,
+					maxLevel,
+					Runtime.getRuntime().availableProcessors() );
+
+			Utils.log( "Max-pooled pyramids written to: " + new File( directory, MaxPooledPyramids.FOLDER ) );
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
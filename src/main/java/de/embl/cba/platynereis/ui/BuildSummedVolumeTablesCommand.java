@@ -0,0 +1,38 @@
+package de.embl.cba.platynereis.ui;
+
+import de.embl.cba.platynereis.genesearch.SummedVolumeTables;
+import de.embl.cba.platynereis.utils.Utils;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+
+@Plugin(type = Command.class, menuPath = "Plugins>EMBL>PlatyBrowser Build Summed Volume Tables" )
+public class BuildSummedVolumeTablesCommand implements Command
+{
+	@Parameter ( style = "directory" )
+	File directory;
+
+	// coarser levels are averaged, the tables then sum the expressing fraction of each voxel
+	@Parameter ( label = "Resolution level" )
+	int mipMapLevel = 2;
+
+	public void run()
+	{
+		try
+		{
+			SummedVolumeTables.build(
+					directory,
+					mipMapLevel,
+					Runtime.getRuntime().availableProcessors() );
+
+			Utils.log( "Summed-volume tables written to: " + new File( directory, SummedVolumeTables.FOLDER ) );
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -5,6 +5,7 @@ import de.embl.cba.tables.objects.ObjectTablePanel;
 
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
+import java.util.ArrayList;
 import java.util.Map;
 
 import static de.embl.cba.platynereis.utils.Utils.combine;
@@ -15,18 +16,52 @@ public class GeneExpressions
 
 	public static ObjectTablePanel geneExpressionTablePanel;
 
-	public static void logGeneExpression( double[] micrometerPosition, double micrometerRadius, Map< String, Double > sortedGeneExpressionLevels )
+	public static void logGeneExpression( double[] micrometerPosition, double micrometerRadius, int mipMapLevel, Map< String, Double > sortedGeneExpressionLevels )
 	{
 		Utils.log( "\n# Expression levels [fraction of search volume]" );
 		Utils.logVector( "Center position [um]" , micrometerPosition );
 		Utils.log( "Radius [um]: " + micrometerRadius );
+		Utils.log( "Resolution level: " + mipMapLevel );
 		for ( String gene : sortedGeneExpressionLevels.keySet() )
 		{
 			Utils.log( gene  + ": " + sortedGeneExpressionLevels.get( gene ) );
 		}
 	}
 
-	public static synchronized void addRowToGeneExpressionTable( double[] micrometerPosition, double micrometerRadius, Map< String, Double > geneExpressionLevels )
+	public static void logCellGeneExpression( double labelId, Map< String, Double > sortedGeneExpressionLevels )
+	{
+		Utils.log( "\n# Expression levels [fraction of cell volume]" );
+		Utils.log( "Cell: " + ( long ) labelId );
+		for ( String gene : sortedGeneExpressionLevels.keySet() )
+		{
+			Utils.log( gene  + ": " + sortedGeneExpressionLevels.get( gene ) );
+		}
+	}
+
+	public static void logSimilarGenes( String geneName, Map< String, Double > mostSimilarGenes )
+	{
+		Utils.log( "\n# Genes with the most similar expression [Jaccard index]" );
+		Utils.log( "Gene: " + geneName );
+		for ( String gene : mostSimilarGenes.keySet() )
+		{
+			Utils.log( gene  + ": " + String.format( "%.3f", mostSimilarGenes.get( gene ) ) );
+		}
+	}
+
+	public static String getSearchProgressText( Map< String, Double > sortedGeneExpressionLevels, int numExaminedGenes, int numGenes, int maxNumGenes )
+	{
+		String text = "Searching expressed genes: " + ( 100 * numExaminedGenes / numGenes ) + "%";
+
+		final ArrayList< String > sortedGenes = new ArrayList<>( sortedGeneExpressionLevels.keySet() );
+		for ( int i = sortedGenes.size() - 1; i >= 0 && i >= sortedGenes.size() - maxNumGenes; --i )
+		{
+			text += "\n" + sortedGenes.get( i ) + String.format( ": %.2f", sortedGeneExpressionLevels.get( sortedGenes.get( i ) ) );
+		}
+
+		return text;
+	}
+
+	public static synchronized void addRowToGeneExpressionTable( double[] micrometerPosition, double micrometerRadius, int mipMapLevel, Map< String, Double > geneExpressionLevels )
 	{
 		if ( geneExpressionTablePanel == null )
 		{
@@ -34,7 +69,7 @@ public class GeneExpressions
 		}
 
 		final Double[] position = { micrometerPosition [ 0 ], micrometerPosition[ 1 ], micrometerPosition[ 2 ], 0.0 };
-		final Double[] parameters = { micrometerRadius };
+		final Double[] parameters = { micrometerRadius, ( double ) mipMapLevel };
 		final Double[] expressionLevels = geneExpressionLevels.values().toArray( new Double[ geneExpressionLevels.size() ] );
 		((DefaultTableModel)geneExpressionTablePanel.getTable().getModel()).addRow( combine( combine( position, parameters ), expressionLevels ) );
 	}
@@ -42,7 +77,7 @@ public class GeneExpressions
 	public static void initGeneExpressionTable( Map< String, Double > geneExpressionLevels )
 	{
 		final String[] position = { "X", "Y", "Z", "T" };
-		final String[] searchParameters = { "SearchRadius_um" };
+		final String[] searchParameters = { "SearchRadius_um", "SearchResolutionLevel" };
 		final String[] genes = geneExpressionLevels.keySet().toArray( new String[ geneExpressionLevels.keySet().size() ] );
 
 		final DefaultTableModel model = new DefaultTableModel();
@@ -18,9 +18,12 @@ public class PlatyBrowserCommand implements Command
     @Parameter ( style = "directory" )
 	File directory;
 
+    @Parameter ( label = "Preload label attribute tables" )
+    boolean preloadAttributeTables = false;
+
     public void run()
     {
-    	new PlatyBrowser( directory.toString() );
+    	new PlatyBrowser( directory.toString(), preloadAttributeTables );
     }
 
 }
\ No newline at end of file
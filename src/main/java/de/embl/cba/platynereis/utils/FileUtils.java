@@ -1,6 +1,12 @@
 package de.embl.cba.platynereis.utils;
 
+import de.embl.cba.platynereis.Constants;
+
 import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -41,4 +47,55 @@ public class FileUtils
 			}
 		}
 	}
+
+	/**
+	 * The image data of a BDV XML, which lies next to it and has the same name in the atlas directory.
+	 */
+	public static File getHdf5File( File xmlFile )
+	{
+		return new File( xmlFile.getParentFile(), xmlFile.getName().replace( Constants.BDV_XML_SUFFIX, Constants.HDF5_SUFFIX ) );
+	}
+
+	/**
+	 * The last modification of a source, i.e. of its XML or its image data, whichever is later.
+	 */
+	public static long getSourceLastModified( File xmlFile )
+	{
+		return Math.max( xmlFile.lastModified(), getHdf5File( xmlFile ).lastModified() );
+	}
+
+	/**
+	 * Releases the mapping of the buffer right away instead of once it is garbage collected,
+	 * such that its file can be replaced, also on Windows. The buffer must not be accessed any more.
+	 */
+	public static void unmap( MappedByteBuffer buffer )
+	{
+		try
+		{
+			// Java 9 and later
+			final Class< ? > unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			final Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+			theUnsafe.setAccessible( true );
+			unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class ).invoke( theUnsafe.get( null ), buffer );
+		}
+		catch ( NoSuchMethodException e )
+		{
+			// Java 8
+			try
+			{
+				final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+				cleanerMethod.setAccessible( true );
+				final Object cleaner = cleanerMethod.invoke( buffer );
+				if ( cleaner != null ) cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+			}
+			catch ( Exception e8 )
+			{
+				e8.printStackTrace();
+			}
+		}
+		catch ( Exception e )
+		{
+			e.printStackTrace();
+		}
+	}
 }
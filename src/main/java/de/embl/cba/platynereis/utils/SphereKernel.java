@@ -0,0 +1,443 @@
+package de.embl.cba.platynereis.utils;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Samples a 3D sphere of integer voxel radius as a list of x-runs.
+ *
+ * The runs are computed once per radius and cached. Voxels are read directly from the
+ * backing arrays of cell and array images of unsigned byte, short and long type;
+ * all other images are read via a {@link RandomAccess}, one run at a time.
+ *
+ * Only voxels within the image interval are sampled, i.e. spheres touching the image
+ * border are clipped.
+ *
+ * Several concentric spheres can be sampled in one sweep, see {@link #sampleConcentric}.
+ */
+public class SphereKernel
+{
+	private static final Map< Integer, SphereKernel > kernels = new ConcurrentHashMap<>();
+
+	private final int radius;
+	private final int[] runDy;
+	private final int[] runDz;
+	private final int[] runHalfWidth;
+
+	public static SphereKernel forRadius( int radius )
+	{
+		return kernels.computeIfAbsent( radius, SphereKernel::new );
+	}
+
+	private SphereKernel( int radius )
+	{
+		this.radius = radius;
+
+		int numRuns = 0;
+		for ( int dz = -radius; dz <= radius; ++dz )
+			for ( int dy = -radius; dy <= radius; ++dy )
+				if ( dy * dy + dz * dz <= radius * radius )
+					numRuns++;
+
+		runDy = new int[ numRuns ];
+		runDz = new int[ numRuns ];
+		runHalfWidth = new int[ numRuns ];
+
+		int i = 0;
+		for ( int dz = -radius; dz <= radius; ++dz )
+		{
+			for ( int dy = -radius; dy <= radius; ++dy )
+			{
+				final int remainder = radius * radius - dy * dy - dz * dz;
+				if ( remainder < 0 ) continue;
+
+				runDy[ i ] = dy;
+				runDz[ i ] = dz;
+				runHalfWidth[ i ] = ( int ) Math.floor( Math.sqrt( remainder ) );
+				i++;
+			}
+		}
+	}
+
+	public int getRadius()
+	{
+		return radius;
+	}
+
+	public int getNumRuns()
+	{
+		return runDy.length;
+	}
+
+	public interface RunConsumer
+	{
+		void accept( long y, long z, long xStart, long xEnd );
+	}
+
+	/**
+	 * Calls the consumer for each x-run of the sphere around center,
+	 * clipped to the interval. Runs that are completely outside are skipped.
+	 */
+	public void forEachRun( long[] center, Interval interval, RunConsumer consumer )
+	{
+		for ( int i = 0; i < runDy.length; ++i )
+		{
+			final long y = center[ 1 ] + runDy[ i ];
+			final long z = center[ 2 ] + runDz[ i ];
+			if ( y < interval.min( 1 ) || y > interval.max( 1 ) || z < interval.min( 2 ) || z > interval.max( 2 ) ) continue;
+
+			final long xStart = Math.max( center[ 0 ] - runHalfWidth[ i ], interval.min( 0 ) );
+			final long xEnd = Math.min( center[ 0 ] + runHalfWidth[ i ], interval.max( 0 ) );
+			if ( xStart > xEnd ) continue;
+
+			consumer.accept( y, z, xStart, xEnd );
+		}
+	}
+
+	public static class Statistics
+	{
+		public long numVoxels;
+		public long numNonZeroVoxels;
+		public double sum;
+		public double max = - Double.MAX_VALUE;
+
+		/**
+		 * @return 0 if the sphere lies completely outside the image
+		 */
+		public double getFractionOfNonZeroVoxels()
+		{
+			if ( numVoxels == 0 ) return 0.0;
+			return 1.0 * numNonZeroVoxels / numVoxels;
+		}
+
+		/**
+		 * Mean intensity relative to the value of the foreground of a binary mask, i.e. the fraction
+		 * of foreground voxels at the full resolution if the image is an averaged mipmap level of the mask.
+		 *
+		 * @return 0 if the sphere lies completely outside the image or the mask has no foreground
+		 */
+		public double getFractionOfMaskValue( double maskValue )
+		{
+			if ( numVoxels == 0 || maskValue <= 0 ) return 0.0;
+			return Math.min( 1.0, sum / numVoxels / maskValue );
+		}
+	}
+
+	public < T extends RealType< T > & NativeType< T > >
+	Statistics sample( RandomAccessibleInterval< T > rai, long[] center )
+	{
+		final Statistics statistics = new Statistics();
+		final RunScanner scanner = createScanner( rai );
+
+		for ( int i = 0; i < runDy.length; ++i )
+		{
+			final long y = center[ 1 ] + runDy[ i ];
+			final long z = center[ 2 ] + runDz[ i ];
+			if ( y < rai.min( 1 ) || y > rai.max( 1 ) || z < rai.min( 2 ) || z > rai.max( 2 ) ) continue;
+
+			final long x = Math.max( center[ 0 ] - runHalfWidth[ i ], rai.min( 0 ) );
+			final long xEnd = Math.min( center[ 0 ] + runHalfWidth[ i ], rai.max( 0 ) );
+			if ( x > xEnd ) continue;
+
+			scanner.scan( y, z, x, xEnd, statistics );
+		}
+
+		return statistics;
+	}
+
+	/**
+	 * Samples the spheres of all given radii around the same center in a single sweep
+	 * over the largest one. Each voxel is read once and counted in the innermost shell
+	 * it belongs to, i.e. the smallest radius r with dx^2 + dy^2 + dz^2 <= r^2.
+	 *
+	 * @param radii
+	 * 			voxel radii in increasing order
+	 * @return the statistics of the full sphere of each radius
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	Statistics[] sampleConcentric( RandomAccessibleInterval< T > rai, long[] center, int[] radii )
+	{
+		final Statistics[] shells = new Statistics[ radii.length ];
+		for ( int k = 0; k < radii.length; ++k )
+		{
+			if ( k > 0 && radii[ k ] <= radii[ k - 1 ] )
+			{
+				throw new IllegalArgumentException( "Radii must be strictly increasing: " + Arrays.toString( radii ) );
+			}
+			shells[ k ] = new Statistics();
+		}
+
+		if ( radii.length == 0 ) return shells;
+
+		final SphereKernel outer = forRadius( radii[ radii.length - 1 ] );
+		final RunScanner scanner = createScanner( rai );
+
+		final long minX = rai.min( 0 );
+		final long maxX = rai.max( 0 );
+
+		for ( int i = 0; i < outer.runDy.length; ++i )
+		{
+			final long y = center[ 1 ] + outer.runDy[ i ];
+			final long z = center[ 2 ] + outer.runDz[ i ];
+			if ( y < rai.min( 1 ) || y > rai.max( 1 ) || z < rai.min( 2 ) || z > rai.max( 2 ) ) continue;
+
+			final int squaredDistanceYZ = outer.runDy[ i ] * outer.runDy[ i ] + outer.runDz[ i ] * outer.runDz[ i ];
+
+			// half width of the run within the previous, smaller sphere; -1 if that sphere does not reach this row
+			int innerHalfWidth = -1;
+
+			for ( int k = 0; k < radii.length; ++k )
+			{
+				final int remainder = radii[ k ] * radii[ k ] - squaredDistanceYZ;
+				if ( remainder < 0 ) continue;
+
+				final int halfWidth = ( int ) Math.floor( Math.sqrt( remainder ) );
+
+				if ( innerHalfWidth < 0 )
+				{
+					scanClipped( scanner, y, z, center[ 0 ] - halfWidth, center[ 0 ] + halfWidth, minX, maxX, shells[ k ] );
+				}
+				else if ( halfWidth > innerHalfWidth )
+				{
+					scanClipped( scanner, y, z, center[ 0 ] - halfWidth, center[ 0 ] - innerHalfWidth - 1, minX, maxX, shells[ k ] );
+					scanClipped( scanner, y, z, center[ 0 ] + innerHalfWidth + 1, center[ 0 ] + halfWidth, minX, maxX, shells[ k ] );
+				}
+
+				innerHalfWidth = halfWidth;
+			}
+		}
+
+		// accumulate the shells into spheres
+		for ( int k = 1; k < radii.length; ++k )
+		{
+			shells[ k ].numVoxels += shells[ k - 1 ].numVoxels;
+			shells[ k ].numNonZeroVoxels += shells[ k - 1 ].numNonZeroVoxels;
+			shells[ k ].sum += shells[ k - 1 ].sum;
+			shells[ k ].max = Math.max( shells[ k ].max, shells[ k - 1 ].max );
+		}
+
+		return shells;
+	}
+
+	private static void scanClipped( RunScanner scanner, long y, long z, long x, long xEnd, long minX, long maxX, Statistics statistics )
+	{
+		x = Math.max( x, minX );
+		xEnd = Math.min( xEnd, maxX );
+		if ( x > xEnd ) return;
+
+		scanner.scan( y, z, x, xEnd, statistics );
+	}
+
+	/**
+	 * Accumulates the voxels of the x-run [x, xEnd] of row (y, z), which must lie within the image.
+	 */
+	public interface RunScanner
+	{
+		void scan( long y, long z, long x, long xEnd, Statistics statistics );
+	}
+
+	/**
+	 * Creates a scanner reading the image's backing arrays where possible.
+	 * Scanners are not thread-safe.
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RunScanner createScanner( RandomAccessibleInterval< T > rai )
+	{
+		if ( rai instanceof AbstractCellImg )
+		{
+			final AbstractCellImg< T, ?, ?, ? > cellImg = ( AbstractCellImg< T, ?, ?, ? > ) rai;
+			if ( isSupportedType( cellImg.createLinkedType() ) )
+			{
+				return createCellScanner( cellImg );
+			}
+		}
+		else if ( rai instanceof ArrayImg )
+		{
+			final ArrayImg< T, ? > arrayImg = ( ArrayImg< T, ? > ) rai;
+			if ( isSupportedType( arrayImg.createLinkedType() )
+					&& arrayImg.update( null ) instanceof ArrayDataAccess )
+			{
+				return createArrayScanner( arrayImg );
+			}
+		}
+
+		return createRandomAccessScanner( rai );
+	}
+
+	private static boolean isSupportedType( Object type )
+	{
+		return type instanceof UnsignedByteType
+				|| type instanceof UnsignedShortType
+				|| type instanceof UnsignedLongType;
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	RunScanner createCellScanner( AbstractCellImg< T, ?, ?, ? > img )
+	{
+		final int[] cellDimensions = new int[ 3 ];
+		img.getCellGrid().cellDimensions( cellDimensions );
+
+		final RandomAccess< ? extends Cell< ? > > cellAccess = img.getCells().randomAccess();
+
+		final long[] cellMin = new long[ 3 ];
+		final int[] cellDims = new int[ 3 ];
+
+		return ( y, z, x, xEnd, statistics ) ->
+		{
+			cellAccess.setPosition( y / cellDimensions[ 1 ], 1 );
+			cellAccess.setPosition( z / cellDimensions[ 2 ], 2 );
+
+			while ( x <= xEnd )
+			{
+				cellAccess.setPosition( x / cellDimensions[ 0 ], 0 );
+				final Cell< ? > cell = cellAccess.get();
+				cell.min( cellMin );
+				cell.dimensions( cellDims );
+
+				final long cellEnd = Math.min( xEnd, cellMin[ 0 ] + cellDims[ 0 ] - 1 );
+
+				final int offset = ( int ) ( ( ( z - cellMin[ 2 ] ) * cellDims[ 1 ]
+						+ ( y - cellMin[ 1 ] ) ) * cellDims[ 0 ]
+						+ ( x - cellMin[ 0 ] ) );
+
+				scan( ( ( ArrayDataAccess< ? > ) cell.getData() ).getCurrentStorageArray(),
+						offset, offset + ( int ) ( cellEnd - x ), statistics );
+
+				x = cellEnd + 1;
+			}
+		};
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	RunScanner createArrayScanner( ArrayImg< T, ? > img )
+	{
+		final Object data = ( ( ArrayDataAccess< ? > ) img.update( null ) ).getCurrentStorageArray();
+
+		final long dimX = img.dimension( 0 );
+		final long dimY = img.dimension( 1 );
+
+		return ( y, z, x, xEnd, statistics ) ->
+		{
+			final int offset = ( int ) ( ( z * dimY + y ) * dimX + x );
+
+			scan( data, offset, offset + ( int ) ( xEnd - x ), statistics );
+		};
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	RunScanner createRandomAccessScanner( RandomAccessibleInterval< T > rai )
+	{
+		final RandomAccess< T > access = rai.randomAccess();
+
+		return ( y, z, x, xEnd, statistics ) ->
+		{
+			long numNonZeroVoxels = 0;
+			double sum = 0;
+			double max = statistics.max;
+
+			access.setPosition( x, 0 );
+			access.setPosition( y, 1 );
+			access.setPosition( z, 2 );
+
+			for ( long xi = x; xi <= xEnd; ++xi )
+			{
+				final double value = access.get().getRealDouble();
+				if ( value != 0 ) numNonZeroVoxels++;
+				sum += value;
+				if ( value > max ) max = value;
+				access.fwd( 0 );
+			}
+
+			statistics.numVoxels += xEnd - x + 1;
+			statistics.numNonZeroVoxels += numNonZeroVoxels;
+			statistics.sum += sum;
+			statistics.max = max;
+		};
+	}
+
+	private static void scan( Object data, int from, int to, Statistics statistics )
+	{
+		if ( data instanceof byte[] )
+			scan( ( byte[] ) data, from, to, statistics );
+		else if ( data instanceof short[] )
+			scan( ( short[] ) data, from, to, statistics );
+		else
+			scan( ( long[] ) data, from, to, statistics );
+	}
+
+	private static void scan( byte[] data, int from, int to, Statistics statistics )
+	{
+		long numNonZeroVoxels = 0;
+		long sum = 0;
+		int max = 0;
+
+		for ( int i = from; i <= to; ++i )
+		{
+			final int value = data[ i ] & 0xff;
+			if ( value != 0 ) numNonZeroVoxels++;
+			sum += value;
+			if ( value > max ) max = value;
+		}
+
+		statistics.numVoxels += to - from + 1;
+		statistics.numNonZeroVoxels += numNonZeroVoxels;
+		statistics.sum += sum;
+		if ( max > statistics.max ) statistics.max = max;
+	}
+
+	private static void scan( short[] data, int from, int to, Statistics statistics )
+	{
+		long numNonZeroVoxels = 0;
+		long sum = 0;
+		int max = 0;
+
+		for ( int i = from; i <= to; ++i )
+		{
+			final int value = data[ i ] & 0xffff;
+			if ( value != 0 ) numNonZeroVoxels++;
+			sum += value;
+			if ( value > max ) max = value;
+		}
+
+		statistics.numVoxels += to - from + 1;
+		statistics.numNonZeroVoxels += numNonZeroVoxels;
+		statistics.sum += sum;
+		if ( max > statistics.max ) statistics.max = max;
+	}
+
+	private static void scan( long[] data, int from, int to, Statistics statistics )
+	{
+		long numNonZeroVoxels = 0;
+		double sum = 0;
+		double max = 0;
+
+		for ( int i = from; i <= to; ++i )
+		{
+			final long value = data[ i ];
+			if ( value == 0 ) continue;
+			numNonZeroVoxels++;
+			final double unsignedValue = value > 0 ? value : ( value >>> 1 ) * 2.0 + ( value & 1 );
+			sum += unsignedValue;
+			if ( unsignedValue > max ) max = unsignedValue;
+		}
+
+		statistics.numVoxels += to - from + 1;
+		statistics.numNonZeroVoxels += numNonZeroVoxels;
+		statistics.sum += sum;
+		if ( max > statistics.max ) statistics.max = max;
+	}
+}
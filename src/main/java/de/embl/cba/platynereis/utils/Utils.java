@@ -1,29 +1,34 @@
 package de.embl.cba.platynereis.utils;
 
+import bdv.VolatileSpimSource;
 import bdv.util.*;
 import de.embl.cba.bdv.utils.behaviour.BehaviourTransformEventHandler3DLeftMouseDrag;
+import de.embl.cba.bdv.utils.selection.BdvSelectionEventHandler;
+import de.embl.cba.bdv.utils.sources.SelectableARGBConvertedRealSource;
 import de.embl.cba.platynereis.Constants;
+import de.embl.cba.platynereis.Hdf5ReaderPool;
 import de.embl.cba.platynereis.PlatySource;
+import de.embl.cba.platynereis.PooledHdf5ImageLoader;
+import de.embl.cba.platynereis.XmlIoPooledHdf5ImageLoader;
 import ij.IJ;
 import ij.ImagePlus;
 import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.SpimDataException;
 import mpicbg.spim.data.XmlIoSpimData;
 import net.imglib2.*;
-import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
-import net.imglib2.algorithm.neighborhood.HyperSphereShape;
-import net.imglib2.algorithm.neighborhood.Neighborhood;
-import net.imglib2.algorithm.neighborhood.Shape;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.RealType;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
 
 import java.awt.*;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.List;
 
@@ -79,80 +84,56 @@ public class Utils
 	public static < T extends RealType< T > &  NativeType< T > >
 	double getLocalMaximum( final RandomAccessibleInterval< T > rai, double[] position, double radius, double calibration )
 	{
-		// TODO: add out-of-bounds strategy or is this handled by the Neighborhood?
-		Shape shape = new HyperSphereShape( (int) Math.ceil( radius / calibration ) );
-		final RandomAccessible< Neighborhood< T > > nra = shape.neighborhoodsRandomAccessible( rai );
-		final RandomAccess< Neighborhood< T > > neighborhoodRandomAccess = nra.randomAccess();
-		neighborhoodRandomAccess.setPosition( getPixelPosition( position, calibration ) );
-
-		final Neighborhood< T > neighborhood = neighborhoodRandomAccess.get();
-
-		final Cursor< T > cursor = neighborhood.cursor();
-		double max = - Double.MAX_VALUE;
-		double value;
-		while( cursor.hasNext() )
-		{
-			value = cursor.next().getRealDouble();
-			if ( value > max )
-			{
-				max = value;
-			}
-		}
-
-		return max;
+		return getLocalStatistics( rai, position, radius, calibration ).max;
 	}
 
 	public static < T extends RealType< T > &  NativeType< T > >
 	double getLocalSum( final RandomAccessibleInterval< T > rai, double[] position, double radius, double calibration )
 	{
-		// TODO: add out-of-bounds strategy or is this handled by the Neighborhood?
-		Shape shape = new HyperSphereShape( (int) Math.ceil( radius / calibration ) );
-		final RandomAccessible< Neighborhood< T > > nra = shape.neighborhoodsRandomAccessible( rai );
-		final RandomAccess< Neighborhood< T > > neighborhoodRandomAccess = nra.randomAccess();
-		neighborhoodRandomAccess.setPosition( getPixelPosition( position, calibration ) );
-
-		final Neighborhood< T > neighborhood = neighborhoodRandomAccess.get();
-
-		final Cursor< T > cursor = neighborhood.cursor();
-		double sum = 0.0;
-		while( cursor.hasNext() )
-		{
-			sum += cursor.next().getRealDouble();
-		}
-
-		return sum;
+		return getLocalStatistics( rai, position, radius, calibration ).sum;
 	}
 
 
 	public static < T extends RealType< T > &  NativeType< T > >
 	double getFractionOfNonZeroVoxels( final RandomAccessibleInterval< T > rai, double[] position, double radius, double calibration )
 	{
-		// TODO: add out-of-bounds strategy or is this handled by the Neighborhood?
-		Shape shape = new HyperSphereShape( (int) Math.ceil( radius / calibration ) );
-		final RandomAccessible< Neighborhood< T > > nra = shape.neighborhoodsRandomAccessible( rai );
-		final RandomAccess< Neighborhood< T > > neighborhoodRandomAccess = nra.randomAccess();
-		neighborhoodRandomAccess.setPosition( getPixelPosition( position, calibration ) );
-
-		final Neighborhood< T > neighborhood = neighborhoodRandomAccess.get();
-
-		final Cursor< T > neighborhoodCursor = neighborhood.cursor();
+		return getLocalStatistics( rai, position, radius, calibration ).getFractionOfNonZeroVoxels();
+	}
 
-		long numberOfNonZeroVoxels = 0;
-		long numberOfVoxels = 0;
+	public static < T extends RealType< T > &  NativeType< T > >
+	SphereKernel.Statistics getLocalStatistics( final RandomAccessibleInterval< T > rai, double[] position, double radius, double calibration )
+	{
+		final SphereKernel kernel = SphereKernel.forRadius( (int) Math.ceil( radius / calibration ) );
+		return kernel.sample( rai, getPixelPosition( position, calibration ) );
+	}
 
-		while( neighborhoodCursor.hasNext() )
+	/**
+	 * Statistics of the spheres of all given radii around position, sampled in a single sweep.
+	 *
+	 * @param radii
+	 * 			in increasing order; radii that round to the same number of voxels share one result
+	 */
+	public static < T extends RealType< T > &  NativeType< T > >
+	SphereKernel.Statistics[] getLocalStatistics( final RandomAccessibleInterval< T > rai, double[] position, double[] radii, double calibration )
+	{
+		final int[] voxelRadii = new int[ radii.length ];
+		for ( int i = 0; i < radii.length; ++i )
 		{
-			numberOfVoxels++;
+			voxelRadii[ i ] = (int) Math.ceil( radii[ i ] / calibration );
+		}
 
-			final double realDouble = neighborhoodCursor.next().getRealDouble();
+		final int[] distinctVoxelRadii = Arrays.stream( voxelRadii ).distinct().sorted().toArray();
 
-			if ( realDouble != 0)
-			{
-				numberOfNonZeroVoxels++;
-			}
+		final SphereKernel.Statistics[] distinctStatistics =
+				SphereKernel.sampleConcentric( rai, getPixelPosition( position, calibration ), distinctVoxelRadii );
+
+		final SphereKernel.Statistics[] statistics = new SphereKernel.Statistics[ radii.length ];
+		for ( int i = 0; i < radii.length; ++i )
+		{
+			statistics[ i ] = distinctStatistics[ Arrays.binarySearch( distinctVoxelRadii, voxelRadii[ i ] ) ];
 		}
 
-		return 1.0 * numberOfNonZeroVoxels / numberOfVoxels;
+		return statistics;
 	}
 
 
@@ -173,7 +154,7 @@ public class Utils
 		return result;
 	}
 
-	private static long[] getPixelPosition( double[] position, double calibration )
+	public static long[] getPixelPosition( double[] position, double calibration )
 	{
 		long[] pixelPosition = new long[ position.length ];
 		for ( int d = 0; d < position.length; ++d )
@@ -183,14 +164,27 @@ public class Utils
 		return pixelPosition;
 	}
 
+	/**
+	 * Opens a BDV XML; HDF5 image data is read with the shared readers of the {@link Hdf5ReaderPool}.
+	 * Use {@link #closeSpimData(SpimData)} to give the reader back.
+	 */
 	public static SpimData openSpimData( File file )
 	{
 		try
 		{
-			SpimData spimData = new XmlIoSpimData().load( file.toString() );
-			return spimData;
+			final Element root = new SAXBuilder().build( file ).getRootElement();
+
+			// BDV's loader would open a reader of its own while being created, see XmlIoPooledHdf5ImageLoader
+			final Element sequenceDescription = root.getChild( "SequenceDescription" );
+			final Element imgLoader = sequenceDescription == null ? null : sequenceDescription.getChild( "ImageLoader" );
+			if ( imgLoader != null && XmlIoPooledHdf5ImageLoader.BDV_FORMAT.equals( imgLoader.getAttributeValue( "format" ) ) )
+			{
+				imgLoader.setAttribute( "format", XmlIoPooledHdf5ImageLoader.FORMAT );
+			}
+
+			return new XmlIoSpimData().fromXml( root, file );
 		}
-		catch ( SpimDataException e )
+		catch ( SpimDataException | JDOMException | IOException e )
 		{
 			System.out.println( file.toString() );
 			e.printStackTrace();
@@ -198,6 +192,17 @@ public class Utils
 		}
 	}
 
+	/**
+	 * Clears the cache of image data opened with {@link #openSpimData(File)} and gives its HDF5 reader back to the pool.
+	 * Images obtained from it before stop working.
+	 */
+	public static void closeSpimData( SpimData spimData )
+	{
+		if ( spimData == null || ! ( spimData.getSequenceDescription().getImgLoader() instanceof PooledHdf5ImageLoader ) ) return;
+
+		( ( PooledHdf5ImageLoader ) spimData.getSequenceDescription().getImgLoader() ).release();
+	}
+
 	public static ARGBType asArgbType( Color color )
 	{
 		return new ARGBType( ARGBType.rgba( color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha() ) );
@@ -214,45 +219,56 @@ public class Utils
 		final BdvStackSource bdvStackSource = BdvFunctions.show( img, dataSource.name, Bdv.options().addTo( bdv ).sourceTransform( prosprScaling ) );
 		bdvStackSource.setColor( asArgbType( Constants.DEFAULT_GENE_COLOR ) );
 		dataSource.color = Constants.DEFAULT_GENE_COLOR;
-		dataSource.bdvStackSource = bdvStackSource;
+		dataSource.setBdvStackSource( bdvStackSource );
 	}
 
 	public static Bdv showSourceInBdv( PlatySource source, Bdv bdv )
 	{
+		BdvStackSource bdvStackSource = null;
+
 		if ( source.isSpimDataMinimal )
 		{
-			source.bdvStackSource = BdvFunctions.show( source.spimDataMinimal,
+			bdvStackSource = BdvFunctions.show( source.spimDataMinimal,
 					BdvOptions.options()
 							.addTo( bdv )
 							.transformEventHandlerFactory( new BehaviourTransformEventHandler3DLeftMouseDrag.BehaviourTransformEventHandler3DFactory() ))
 					.get( 0 );
 
-			source.bdvStackSource.setColor( asArgbType( source.color ) );
-			source.bdvStackSource.setDisplayRange( 0.0, source.maxLutValue );
+			bdvStackSource.setColor( asArgbType( source.color ) );
+			bdvStackSource.setDisplayRange( 0.0, source.maxLutValue );
 		}
-		else if ( source.spimData != null)
+		else if ( source.isLabelSource )
 		{
-			source.bdvStackSource = BdvFunctions.show( source.spimData,
+			if ( source.getLabelSource() == null )
+			{
+				source.setLabelSource( new SelectableARGBConvertedRealSource(
+						new VolatileSpimSource( source.getSpimData(), 0, source.name ) ) );
+
+				source.bdvSelectionEventHandler = new BdvSelectionEventHandler( bdv, source.getLabelSource() );
+			}
+
+			bdvStackSource = BdvFunctions.show( source.getLabelSource(),
 					BdvOptions.options()
 							.addTo( bdv )
-							.transformEventHandlerFactory( new BehaviourTransformEventHandler3DLeftMouseDrag.BehaviourTransformEventHandler3DFactory() ) )
-					.get( 0 );
-
-			source.bdvStackSource.setColor( asArgbType( source.color ) );
-			source.bdvStackSource.setDisplayRange( 0.0, source.maxLutValue );
+							.transformEventHandlerFactory( new BehaviourTransformEventHandler3DLeftMouseDrag.BehaviourTransformEventHandler3DFactory() ) );
+			bdvStackSource.setDisplayRange( 0.0, source.maxLutValue );
 		}
-		else if ( source.labelSource != null )
+		else if ( source.getSpimData() != null)
 		{
-			source.bdvStackSource = BdvFunctions.show( source.labelSource,
+			bdvStackSource = BdvFunctions.show( source.getSpimData(),
 					BdvOptions.options()
 							.addTo( bdv )
-							.transformEventHandlerFactory( new BehaviourTransformEventHandler3DLeftMouseDrag.BehaviourTransformEventHandler3DFactory() ) );
-			source.bdvStackSource.setDisplayRange( 0.0, source.maxLutValue );
+							.transformEventHandlerFactory( new BehaviourTransformEventHandler3DLeftMouseDrag.BehaviourTransformEventHandler3DFactory() ) )
+					.get( 0 );
+
+			bdvStackSource.setColor( asArgbType( source.color ) );
+			bdvStackSource.setDisplayRange( 0.0, source.maxLutValue );
 		}
 
+		source.setBdvStackSource( bdvStackSource );
 
 		BdvOptions.options().addTo( bdv ).transformEventHandlerFactory( new BehaviourTransformEventHandler3DLeftMouseDrag.BehaviourTransformEventHandler3DFactory() );
-		return source.bdvStackSource.getBdvHandle();
+		return bdvStackSource.getBdvHandle();
 
 	}
 
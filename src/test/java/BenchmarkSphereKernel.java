@@ -0,0 +1,122 @@
+import de.embl.cba.platynereis.utils.SphereKernel;
+import de.embl.cba.platynereis.utils.Utils;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.neighborhood.HyperSphereShape;
+import net.imglib2.algorithm.neighborhood.Neighborhood;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class BenchmarkSphereKernel
+{
+	public static void main( String[] args )
+	{
+		// ProSPr-like binary gene mask: 0.5 micrometer voxels, 64^3 cells as written by BigDataViewer
+		final CellImg< UnsignedShortType, ? > image =
+				new CellImgFactory<>( new UnsignedShortType(), 64 ).create( 550, 520, 460 );
+
+		final Random random = new Random( 42 );
+		for ( UnsignedShortType voxel : image )
+		{
+			if ( random.nextDouble() < 0.1 ) voxel.set( 1 );
+		}
+
+		final double[] position = new double[]{ 137.0, 130.0, 115.0 };
+		final int numRepetitions = 20;
+
+		for ( double radius = 0.5; radius <= 32.0; radius *= 2 )
+		{
+			long start = System.currentTimeMillis();
+			double fractionOld = 0;
+			for ( int i = 0; i < numRepetitions; ++i )
+			{
+				fractionOld = getFractionOfNonZeroVoxelsHyperSphereShape( image, position, radius, 0.5 );
+			}
+			final long timeOld = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			double fractionNew = 0;
+			for ( int i = 0; i < numRepetitions; ++i )
+			{
+				fractionNew = Utils.getFractionOfNonZeroVoxels( image, position, radius, 0.5 );
+			}
+			final long timeNew = System.currentTimeMillis() - start;
+
+			System.out.println( "Radius [um]: " + radius
+					+ "; HyperSphereShape: " + timeOld + " ms (" + fractionOld + ")"
+					+ "; SphereKernel: " + timeNew + " ms (" + fractionNew + ")"
+					+ "; Speedup: " + ( 1.0 * timeOld / Math.max( 1, timeNew ) ) );
+		}
+
+		benchmarkConcentric( image, position, numRepetitions );
+	}
+
+	private static void benchmarkConcentric( CellImg< UnsignedShortType, ? > image, double[] position, int numRepetitions )
+	{
+		final double[] radii = new double[]{ 0.5, 1.0, 2.0, 4.0, 8.0, 16.0, 32.0 };
+
+		long start = System.currentTimeMillis();
+		final double[] fractionsSeparate = new double[ radii.length ];
+		for ( int i = 0; i < numRepetitions; ++i )
+		{
+			for ( int r = 0; r < radii.length; ++r )
+			{
+				fractionsSeparate[ r ] = Utils.getFractionOfNonZeroVoxels( image, position, radii[ r ], 0.5 );
+			}
+		}
+		final long timeSeparate = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		final double[] fractionsConcentric = new double[ radii.length ];
+		for ( int i = 0; i < numRepetitions; ++i )
+		{
+			final SphereKernel.Statistics[] statistics = Utils.getLocalStatistics( image, position, radii, 0.5 );
+			for ( int r = 0; r < radii.length; ++r )
+			{
+				fractionsConcentric[ r ] = statistics[ r ].getFractionOfNonZeroVoxels();
+			}
+		}
+		final long timeConcentric = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		for ( int i = 0; i < numRepetitions; ++i )
+		{
+			Utils.getFractionOfNonZeroVoxels( image, position, radii[ radii.length - 1 ], 0.5 );
+		}
+		final long timeLargest = System.currentTimeMillis() - start;
+
+		System.out.println( "All radii separately: " + timeSeparate + " ms " + Arrays.toString( fractionsSeparate ) );
+		System.out.println( "All radii concentric: " + timeConcentric + " ms " + Arrays.toString( fractionsConcentric ) );
+		System.out.println( "Largest radius only: " + timeLargest + " ms" );
+	}
+
+	private static double getFractionOfNonZeroVoxelsHyperSphereShape(
+			RandomAccessibleInterval< UnsignedShortType > rai, double[] position, double radius, double calibration )
+	{
+		final HyperSphereShape shape = new HyperSphereShape( (int) Math.ceil( radius / calibration ) );
+		final RandomAccessible< Neighborhood< UnsignedShortType > > nra = shape.neighborhoodsRandomAccessible( rai );
+		final RandomAccess< Neighborhood< UnsignedShortType > > access = nra.randomAccess();
+		for ( int d = 0; d < position.length; ++d )
+		{
+			access.setPosition( (long) ( position[ d ] / calibration ), d );
+		}
+
+		final Cursor< UnsignedShortType > cursor = access.get().cursor();
+
+		long numberOfNonZeroVoxels = 0;
+		long numberOfVoxels = 0;
+		while( cursor.hasNext() )
+		{
+			numberOfVoxels++;
+			if ( cursor.next().getRealDouble() != 0 ) numberOfNonZeroVoxels++;
+		}
+
+		return 1.0 * numberOfNonZeroVoxels / numberOfVoxels;
+	}
+}
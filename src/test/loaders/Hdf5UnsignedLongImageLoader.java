@@ -18,8 +18,8 @@ import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.img.hdf5.*;
 import bdv.util.ConstantRandomAccessible;
 import bdv.util.MipmapTransforms;
-import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import de.embl.cba.platynereis.Hdf5ReaderPool;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
@@ -67,13 +67,16 @@ public class Hdf5UnsignedLongImageLoader implements ViewerImgLoader, MultiResolu
 	/**
 	 * The {@link Hdf5ImageLoader} can be constructed with an existing
 	 * {@link IHDF5Reader} which if non-null will be used instead of creating a
-	 * new one on {@link #hdf5File}.
+	 * shared one of the {@link Hdf5ReaderPool} on {@link #hdf5File}.
 	 *
 	 * <p>
 	 * <em>Note that {@link #close()} will not close the existingHdf5Reader!</em>
 	 */
 	protected IHDF5Reader existingHdf5Reader;
 
+	// acquired from the Hdf5ReaderPool while open, and given back on close
+	private IHDF5Reader pooledHdf5Reader;
+
 	protected IHDF5UnsignedLongAccess hdf5Access;
 
 	protected VolatileGlobalCellCache cache;
@@ -150,7 +153,8 @@ public class Hdf5UnsignedLongImageLoader implements ViewerImgLoader, MultiResolu
 					return;
 				isOpen = true;
 
-				final IHDF5Reader hdf5Reader = ( existingHdf5Reader != null ) ? existingHdf5Reader : HDF5Factory.openForReading( hdf5File );
+				final IHDF5Reader hdf5Reader = ( existingHdf5Reader != null ) ? existingHdf5Reader : Hdf5ReaderPool.acquire( hdf5File );
+				if ( existingHdf5Reader == null ) pooledHdf5Reader = hdf5Reader;
 
 				maxNumLevels = 0;
 				final List< ? extends BasicViewSetup > setups = sequenceDescription.getViewSetupsOrdered();
@@ -211,11 +215,12 @@ public class Hdf5UnsignedLongImageLoader implements ViewerImgLoader, MultiResolu
 				isOpen = false;
 
 				cache.clearCache();
-				hdf5Access.closeAllDataSets();
+				if ( hdf5Access != null )
+					hdf5Access.closeAllDataSets();
 
-				// only close reader if we constructed it ourselves
+				// only give the reader back if we acquired it ourselves; it is shared with other loaders
 				if ( existingHdf5Reader == null )
-					hdf5Access.close();
+					Hdf5ReaderPool.release( pooledHdf5Reader );
 			}
 		}
 	}